@@ -0,0 +1,196 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generate data sets for benchmarks: TPED, TFAM, VCF and BED files.
+ *
+ * Data sets are random, but reproducible (fixed seed), so the same
+ * parameters always create the same files. Files are created in
+ * 'askat_benchmark' in the temporary directory (or the directory set
+ * by the 'askat.benchmark.dir' system property) and reused by later
+ * runs, since large data sets take a while to create.
+ *
+ * Variants are bi-allelic SNPs, 'VARIANT_SPACING' bases apart. BED
+ * intervals span 'INTERVAL_VARIANTS' variants and overlap by half.
+ *
+ * @author pcingola
+ */
+public class BenchmarkData {
+
+	public static final long SEED = 20130905;
+	public static final String CHR = "1";
+	public static final int VARIANT_SPACING = 100;
+	public static final int INTERVAL_VARIANTS = 50;
+	public static final char BASES[] = { 'A', 'C', 'G', 'T' };
+
+	int numSamples, numVariants;
+	String dir, name;
+
+	public BenchmarkData(int numSamples, int numVariants) {
+		this.numSamples = numSamples;
+		this.numVariants = numVariants;
+		dir = System.getProperty("askat.benchmark.dir", System.getProperty("java.io.tmpdir") + "/askat_benchmark");
+		name = dir + "/bench_" + numSamples + "_" + numVariants;
+		new File(dir).mkdirs();
+	}
+
+	/**
+	 * BED file (create it if it doesn't exist)
+	 */
+	public String bedFile() {
+		String bedFile = name + ".bed";
+		if (new File(bedFile).exists()) return bedFile;
+
+		StringBuilder sb = new StringBuilder();
+		int step = INTERVAL_VARIANTS / 2;
+		for (int i = 0, num = 1; i < numVariants; i += step, num++) {
+			int start = position(i);
+			int end = position(Math.min(i + INTERVAL_VARIANTS, numVariants) - 1) + 1;
+			sb.append(CHR + "\t" + start + "\t" + end + "\tinterval_" + num + "\n");
+		}
+		write(bedFile, sb.toString());
+		return bedFile;
+	}
+
+	/**
+	 * Genotypes for one variant: Number of non-reference alleles (0, 1 or 2) for each sample
+	 */
+	byte[] genotypes(Random random) {
+		double af = 0.01 + 0.49 * random.nextDouble(); // Alternative allele frequency
+		byte gt[] = new byte[numSamples];
+		for (int i = 0; i < numSamples; i++)
+			gt[i] = (byte) ((random.nextDouble() < af ? 1 : 0) + (random.nextDouble() < af ? 1 : 0));
+		return gt;
+	}
+
+	/**
+	 * Position (zero-based) of variant number 'i'
+	 */
+	int position(int i) {
+		return (i + 1) * VARIANT_SPACING;
+	}
+
+	/**
+	 * Reference and alternative bases for variant number 'i'
+	 */
+	char ref(int i) {
+		return BASES[i % BASES.length];
+	}
+
+	char alt(int i) {
+		return BASES[(i + 1) % BASES.length];
+	}
+
+	public String sampleId(int i) {
+		return "sample_" + i;
+	}
+
+	/**
+	 * TFAM file (create it if it doesn't exist)
+	 */
+	public String tfamFile() {
+		String tfamFile = name + ".tfam";
+		if (new File(tfamFile).exists()) return tfamFile;
+
+		Random random = new Random(SEED);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numSamples; i++)
+			sb.append("family_" + i + " " + sampleId(i) + " 0 0 " + (1 + random.nextInt(2)) + " " + (1 + random.nextInt(2)) + "\n");
+		write(tfamFile, sb.toString());
+		return tfamFile;
+	}
+
+	/**
+	 * TPED file (create it if it doesn't exist)
+	 */
+	public String tpedFile() {
+		String tpedFile = name + ".tped";
+		if (new File(tpedFile).exists()) return tpedFile;
+
+		Random random = new Random(SEED);
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(tpedFile));
+			for (int i = 0; i < numVariants; i++)
+				out.write(tpedLine(i, genotypes(random)) + "\n");
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + tpedFile + "'", e);
+		}
+		return tpedFile;
+	}
+
+	/**
+	 * Create a TPED line for variant number 'i'
+	 */
+	public String tpedLine(int i, byte gt[]) {
+		char ref = ref(i), alt = alt(i);
+		StringBuilder sb = new StringBuilder();
+		sb.append(CHR + " rs" + (i + 1) + " 0 " + (position(i) + 1));
+		for (int j = 0; j < gt.length; j++) {
+			sb.append(' ').append(gt[j] == 2 ? alt : ref);
+			sb.append(' ').append(gt[j] == 0 ? ref : alt);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Create 'num' TPED lines (in memory)
+	 */
+	public String[] tpedLines(int num) {
+		Random random = new Random(SEED);
+		String lines[] = new String[num];
+		for (int i = 0; i < num; i++)
+			lines[i] = tpedLine(i, genotypes(random));
+		return lines;
+	}
+
+	/**
+	 * VCF file (create it if it doesn't exist). Samples are in the same order as the TFAM file
+	 */
+	public String vcfFile() {
+		String vcfFile = name + ".vcf";
+		if (new File(vcfFile).exists()) return vcfFile;
+
+		Random random = new Random(SEED);
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(vcfFile));
+
+			// Header
+			out.write("##fileformat=VCFv4.1\n");
+			out.write("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+			for (int j = 0; j < numSamples; j++)
+				out.write("\t" + sampleId(j));
+			out.write("\n");
+
+			// Variants
+			for (int i = 0; i < numVariants; i++) {
+				byte gt[] = genotypes(random);
+				StringBuilder sb = new StringBuilder();
+				sb.append(CHR + "\t" + (position(i) + 1) + "\trs" + (i + 1) + "\t" + ref(i) + "\t" + alt(i) + "\t.\tPASS\t.\tGT");
+				for (int j = 0; j < gt.length; j++)
+					sb.append(gt[j] == 0 ? "\t0/0" : (gt[j] == 1 ? "\t0/1" : "\t1/1"));
+				out.write(sb.toString() + "\n");
+			}
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + vcfFile + "'", e);
+		}
+		return vcfFile;
+	}
+
+	void write(String fileName, String data) {
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+			out.write(data);
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + fileName + "'", e);
+		}
+	}
+
+}
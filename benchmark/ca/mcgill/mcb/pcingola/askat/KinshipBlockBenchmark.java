@@ -0,0 +1,90 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.mcgill.mcb.pcingola.fileIterator.BedFileIterator;
+import ca.mcgill.mcb.pcingola.interval.SeqChange;
+
+/**
+ * Benchmark splitting a block into batch files: Fixed size batches and intervals
+ *
+ * @author pcingola
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KinshipBlockBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	int numSamples;
+
+	@Param({ "100", "1000" })
+	int numVariants;
+
+	Askat askat;
+	String tpedFile;
+	List<SeqChange> intervals;
+	List<String> batchFiles;
+
+	@Setup
+	public void setup() {
+		BenchmarkData data = new BenchmarkData(numSamples, numVariants);
+		tpedFile = data.tpedFile();
+		intervals = new BedFileIterator(data.bedFile()).load();
+
+		askat = new Askat(new String[0]);
+		askat.setTfamFile(data.tfamFile());
+	}
+
+	/**
+	 * Split block into batches having a fixed number of variants
+	 */
+	@Benchmark
+	public List<String> batchFilesFixedSize() {
+		KinshipBlock kinshipBlock = new KinshipBlock(askat, tpedFile);
+		batchFiles = kinshipBlock.batchFilesFixedSize();
+		return batchFiles;
+	}
+
+	/**
+	 * Split block into one batch per interval
+	 */
+	@Benchmark
+	public List<String> batchFilesIntervals() {
+		KinshipBlock kinshipBlock = new KinshipBlock(askat, tpedFile);
+		kinshipBlock.setIntervals(intervals);
+		batchFiles = kinshipBlock.batchFilesIntervals();
+		return batchFiles;
+	}
+
+	/**
+	 * Delete batch files created by the last invocation
+	 */
+	@TearDown(Level.Invocation)
+	public void deleteBatchFiles() {
+		if (batchFiles == null) return;
+		for (String batchFile : batchFiles)
+			new File(batchFile).delete();
+		batchFiles = null;
+	}
+
+}
@@ -0,0 +1,75 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark TFAM files: Loading and sample lookup
+ *
+ * @author pcingola
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TfamBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	int numSamples;
+
+	String tfamFile;
+	Tfam tfam;
+	String ids[];
+	int next;
+
+	@Setup
+	public void setup() {
+		BenchmarkData data = new BenchmarkData(numSamples, 0);
+		tfamFile = data.tfamFile();
+		tfam = new Tfam(tfamFile);
+
+		// Look up samples all over the file (not only the first ones)
+		ids = new String[64];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = data.sampleId((int) ((((long) i) * 7919 * numSamples / ids.length) % numSamples));
+	}
+
+	/**
+	 * Find one sample by ID
+	 */
+	@Benchmark
+	public TfamEntry find() {
+		return tfam.find(ids[next++ % ids.length]);
+	}
+
+	/**
+	 * Load and parse a TFAM file
+	 */
+	@Benchmark
+	public Tfam load() {
+		return new Tfam(tfamFile);
+	}
+
+	/**
+	 * All sample names
+	 */
+	@Benchmark
+	public List<String> sampleNames() {
+		return tfam.getSampleNames();
+	}
+
+}
@@ -0,0 +1,128 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.mcgill.mcb.pcingola.interval.Genome;
+
+/**
+ * Benchmark TPED entries (one line at a time): Parsing, MAF and conversion to ASKAT's data format
+ *
+ * Parsing is measured both from Strings (legacy 'TpedEntry(genome, line)')
+ * and in place from a memory mapped file ('TpedScanner', 'TpedEntry.set()').
+ * The scanner reads a file of about 'SCAN_FILE_SIZE' bytes and starts over
+ * when it reaches the end, so re-opening the file is amortized over many lines.
+ *
+ * @author pcingola
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TpedEntryBenchmark {
+
+	public static final int NUM_LINES = 16; // Cycle over a few different lines
+	public static final int SCAN_FILE_SIZE = 16 * 1024 * 1024; // Approximate size of the file used by the scanner
+
+	@Param({ "1000", "10000", "100000" })
+	int numSamples;
+
+	Genome genome;
+	String lines[];
+	TpedEntry entries[];
+	TpedEntry entry; // Reused by 'scanSet'
+	String tpedFile;
+	TpedScanner tped;
+	int next;
+
+	@Setup
+	public void setup() {
+		genome = new Genome();
+		lines = new BenchmarkData(numSamples, NUM_LINES).tpedLines(NUM_LINES);
+
+		entries = new TpedEntry[NUM_LINES];
+		for (int i = 0; i < NUM_LINES; i++)
+			entries[i] = new TpedEntry(genome, lines[i]);
+
+		// File for the scanner: Each line is about 4 bytes per sample
+		int numScanLines = Math.max(NUM_LINES, SCAN_FILE_SIZE / (4 * numSamples));
+		tpedFile = new BenchmarkData(numSamples, numScanLines).tpedFile();
+		tped = new TpedScanner(tpedFile);
+		entry = new TpedEntry(genome);
+	}
+
+	@TearDown
+	public void tearDown() {
+		tped.close();
+	}
+
+	/**
+	 * Major allele, MAF and dosage from allele counts
+	 */
+	@Benchmark
+	public double maf() {
+		TpedEntry entry = entries[next++ % NUM_LINES];
+		entry.encode();
+		return entry.maf();
+	}
+
+	/**
+	 * Advance scanner to next line, starting over at the end of the file
+	 */
+	void nextLine() {
+		if (tped.next()) return;
+		tped.close();
+		tped = new TpedScanner(tpedFile);
+		tped.next();
+	}
+
+	/**
+	 * Parse a TPED line (split, count alleles, MAF and dosage)
+	 */
+	@Benchmark
+	public TpedEntry parse() {
+		return new TpedEntry(genome, lines[next++ % NUM_LINES]);
+	}
+
+	/**
+	 * Scan a TPED line in place and calculate MAF (as when splitting the input into blocks)
+	 */
+	@Benchmark
+	public double scan() {
+		nextLine();
+		return tped.maf();
+	}
+
+	/**
+	 * Scan a TPED line in place and set a reused entry (split, count alleles, MAF and dosage).
+	 * Same work as 'parse', without creating Strings or objects
+	 */
+	@Benchmark
+	public TpedEntry scanSet() {
+		nextLine();
+		return entry.set(tped);
+	}
+
+	/**
+	 * Convert to ASKAT's data format
+	 */
+	@Benchmark
+	public String tped2askatDat() {
+		return entries[next++ % NUM_LINES].tped2askatDat();
+	}
+
+}
@@ -0,0 +1,65 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark VCF to TPED conversion (Askat.vcf2Tped)
+ *
+ * @author pcingola
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class Vcf2TpedBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	int numSamples;
+
+	@Param({ "100", "1000" })
+	int numVariants;
+
+	@Param({ "1", "4" })
+	int numWorkers;
+
+	Askat askat;
+	String vcfFile, tpedFile;
+
+	@Setup
+	public void setup() {
+		BenchmarkData data = new BenchmarkData(numSamples, numVariants);
+		vcfFile = data.vcfFile();
+		tpedFile = data.name + ".vcf2tped.tped";
+
+		askat = new Askat(new String[0]);
+		askat.setTfamFile(data.tfamFile()); // Samples in the same order as the VCF file, so the TFAM file is not rewritten
+		askat.numWorkers = numWorkers;
+	}
+
+	@TearDown
+	public void tearDown() {
+		new File(tpedFile).delete();
+	}
+
+	@Benchmark
+	public void vcf2Tped() {
+		askat.vcf2Tped(vcfFile, tpedFile);
+	}
+
+}
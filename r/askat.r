@@ -63,6 +63,72 @@ library(GenABEL)
 library(nFactors)
 library(CompQuadForm)
 
+#-------------------------------------------------------------------------------
+# Null model context: Everything that only depends on the kinship block (i.e.
+# FaST-LMM results) and the phenotype. It is calculated once per kinship file
+# and shared by all sub-blocks.
+#
+# Diagonal matrices are stored as vectors, and P.0.tilde is never created 
+# (it is a rank one update of the identity: I - Z X.tilde X.tilde^T)
+#
+# fastlmm : Results form fastlmm program (see kinship.r)
+# Y.trait : Phenotypes
+#-------------------------------------------------------------------------------
+ASKAT.context <- function(fastlmm, Y.trait) {
+	estim.sigma.RG = as.numeric(as.character(fastlmm$nullGeneticVar));
+	estim.sigma.e = as.numeric(as.character(fastlmm$nullResidualVar));
+	S = fastlmm$S
+	U = fastlmm$U
+
+	Gamma = estim.sigma.RG[1] / estim.sigma.e[1] 
+	D.0 <- (Gamma * S) + 1						# Diagonal of D.0
+	inv.sqrt.D.0 <- 1/sqrt(D.0)
+	X.tilde <- inv.sqrt.D.0 * colSums(U)		# inv.sqrt.D.0 %*% UT %*% un.n
+	Y.tilde <- inv.sqrt.D.0 * crossprod(U, Y.trait)[,1]
+	Z <- 1 / sum(X.tilde^2)						# Same as 1/(t(un.n) %*% U %*% inv.D.0 %*% UT %*% un.n)
+
+	return( list(U = U, inv.sqrt.D.0 = inv.sqrt.D.0, X.tilde = X.tilde, Y.tilde = Y.tilde, Z = Z, XY.tilde = sum(X.tilde * Y.tilde), s2 = estim.sigma.e, Polygenic.VC = estim.sigma.RG, Env.VC = estim.sigma.e) );
+}
+
+#-------------------------------------------------------------------------------
+# Project variants: H = K.sqrt U D.0^(-1/2), where K.sqrt = diag(w) t(X)
+# Rows of RM = H P.0.tilde are never created, only H %*% X.tilde and 
+# H %*% Y.tilde are needed (see ASKAT.test)
+#
+# X   : Genotypes, one column per variant
+# ctx : Null model context (see ASKAT.context)
+#-------------------------------------------------------------------------------
+ASKAT.project <- function(X, ctx) {
+	X = as.matrix(X)
+	freq.MAF = apply(X, 2, mean)/2
+	w <- dbeta(freq.MAF, 1, 25)
+
+	# Genotypes are mostly zero (rare variants): Only use samples having non-zero genotypes
+	nz <- which( rowSums(X != 0) > 0 )
+	H <- w * crossprod(X[nz, , drop=FALSE], ctx$U[nz, , drop=FALSE])
+	H <- t( t(H) * ctx$inv.sqrt.D.0 )
+
+	return( list(H = H, HX = (H %*% ctx$X.tilde)[,1], HY = (H %*% ctx$Y.tilde)[,1]) );
+}
+
+#-------------------------------------------------------------------------------
+# ASKAT test on projected variants 'idx'
+#
+# Since P.0.tilde = I - Z X.tilde X.tilde^T is a projection:
+#		W = RM RM^T = H H^T - Z (H X.tilde) (H X.tilde)^T
+#		RM Y.tilde  = H Y.tilde - Z (H X.tilde) (X.tilde^T Y.tilde)
+#-------------------------------------------------------------------------------
+ASKAT.test <- function(proj, idx, ctx, pACC=1e-9) {
+	H <- proj$H[idx, , drop=FALSE]
+	HX <- proj$HX[idx]
+	W <- tcrossprod(H) - ctx$Z * tcrossprod(HX)
+	RMY <- proj$HY[idx] - ctx$Z * HX * ctx$XY.tilde
+	Q <- sum(RMY^2) / (2 * ctx$s2)
+
+	out <- Get_PValue.Modif(W/2, Q, pACC)
+	return( list(pvalue.ASKAT = out$p.value, Q.ASKAT = Q, Polygenic.VC = ctx$Polygenic.VC, Env.VC = ctx$Env.VC, lambda = out$lambda, is_converge = out$is_converge) );
+}
+
 #-------------------------------------------------------------------------------
 # ASKAT Main function
 #
@@ -70,62 +136,40 @@ library(CompQuadForm)
 #          should be differents for all subjects), phenotype as second column 
 #          and region-based SNPs that will be analized together  
 #
-# fastlmm: Results form fastlmm program (see kinship.r)
+# ctx    : Null model context (see ASKAT.context). The phenotype used to 
+#          create the context must be the same as the one in 'ped'
 #
 #-------------------------------------------------------------------------------
-ASKAT <- function(ped, fastlmm, pACC=1e-9) {
-
-	#####  STEP 1: Check for Missing Data and construction of pedigree without Missing Data   #####
-
-	Y.trait = ped[,2]
+ASKAT <- function(ped, ctx, pACC=1e-9) {
 	X = as.matrix(ped[,3:dim(ped)[2]])
+	proj <- ASKAT.project(X, ctx)
+	return( ASKAT.test(proj, 1:dim(X)[2], ctx, pACC) );
+}
 
-	##### STEP 2: Under the NULL we call FaST-LMM to estimate the VCs ####
-	estim.sigma.RG = as.numeric(as.character(fastlmm$nullGeneticVar));
-	estim.sigma.e = as.numeric(as.character(fastlmm$nullResidualVar));
-		
-	S = fastlmm$S
-	U = fastlmm$U
-  
-	##### STEP 3: Calculation of weights matrix W and the matrix K =GWG #####
-	freq.MAF = apply(X, 2, mean)/2
-	
-  
-  if( length(freq.MAF) == 1){
-  	w <- dbeta(freq.MAF, 1, 25)
-  	K.sqrt <- w * t(X)
-  } else {
-  	w <- vector(length = length(freq.MAF))
-  	for (i in 1:length(freq.MAF)){
-  	  w[i] <- dbeta(freq.MAF[i], 1, 25)
-   	}
-   	w <- diag(w)
-  	K.sqrt <- w %*% t(X)
-  }
-	
-##### STEP 2: ASKAT score test statistic calculations #####
+#-------------------------------------------------------------------------------
+# ASKAT on sliding (overlapping) windows
+#
+# Same as ASKAT(), but each variant is projected only once (rows of 'H' only 
+# depend on the variant), and all windows share the projections. Each 
+# window's W and Q are assembled from the rows of the window.
+#
+# X          : Genotypes, one column per variant (all variants in the data file)
+# windowSize : Number of variants in each window
+# starts     : First variant of each window
+#
+# Returns a list of results (same as ASKAT), one per window
+#-------------------------------------------------------------------------------
+ASKAT.windows <- function(X, ctx, windowSize, starts, pACC=1e-9) {
+	X = as.matrix(X)
+	proj <- ASKAT.project(X, ctx)
 
+	results <- list()
+	for( k in seq_along(starts) ) {
+		idx <- starts[k]:min( dim(X)[2], starts[k] + windowSize - 1 )
+		results[[k]] <- ASKAT.test(proj, idx, ctx, pACC)
+	}
 
-	Gamma = estim.sigma.RG[1] / estim.sigma.e[1] 
-	UT<-t(U)
-	D.0 <- (Gamma * S) + diag(1, dim(X)[1], dim(X)[1])
-	inv.sqrt.D.0 <- diag(1/sqrt(diag(D.0)))
-	inv.D.0 = diag(1/diag(D.0))
-	un.n <- c(rep(1,dim(U)[1]))
-	Z <- 1/(( t(un.n) %*% (U %*% (inv.D.0 %*% (UT %*% un.n))))[1,1]) 
-	X.tilde <- inv.sqrt.D.0 %*% (UT %*% un.n)
-	Y.tilde <- inv.sqrt.D.0 %*% (UT %*% Y.trait)
-	s2 = estim.sigma.e
-	P.0.tilde = (diag(1, dim(U)[1], dim(U)[2])) - (X.tilde %*% Z) %*% ((t(X.tilde)))
-	RM <- ((K.sqrt %*% U) %*% inv.sqrt.D.0) %*%  P.0.tilde
-	W <- RM %*% t(RM)
-	
-	Q <- (t(Y.tilde) %*% t(RM) %*% ((RM %*% Y.tilde)))/(2 * s2)
-	out <- Get_PValue.Modif(W/2, Q, pACC)
-  pvalue.davies <- out$p.value
-  lambda <- out$lambda
-  is_converge <- out$is_converge 
-	return( list(pvalue.ASKAT = pvalue.davies, Q.ASKAT = Q, Polygenic.VC = estim.sigma.RG, Env.VC = estim.sigma.e, lambda = lambda, is_converge = is_converge) );
+	return( results );
 }
 
 #-------------------------------------------------------------------------------
@@ -180,6 +224,200 @@ fatalError <- function(errStr)	{
 	stop( errStr ); 
 }
 
+#-------------------------------------------------------------------------------
+# Is this a binary batch file? (see AskatBatchFile.java)
+#-------------------------------------------------------------------------------
+isAskatBin <- function(dataFile) {
+	con <- file(dataFile, "rb")
+	magic <- readBin(con, "raw", n=4)
+	close(con)
+	return( identical(magic, charToRaw('ASKB')) );
+}
+
+#-------------------------------------------------------------------------------
+# Read a binary batch file (see AskatBatchFile.java)
+#
+# Format (little endian): 
+#		char[4] 'ASKB', int32 version, int32 n (number of samples)
+#		byte[m][(n+3)/4] genotypes (2 bits per sample, lower bits first)
+#		string[m] chromosome, string[m] ID, string[m] genetic distance (zero terminated)
+#		int32[m] positions, int32 m (number of variants)
+#
+# Returns a data frame having the same columns as a text 'askat' file 
+# (i.e. chr, id, genetic distance, position and one column per sample)
+#-------------------------------------------------------------------------------
+readAskatBin <- function(dataFile) {
+	con <- file(dataFile, "rb")
+	readBin(con, "raw", n=4)		# Magic
+	header <- readBin(con, "integer", n=2, size=4, endian="little")
+	if( header[1] != 1 )	{ fatalError(paste("Unsupported version", header[1], "in file", dataFile)); }
+	n <- header[2]
+	bytesPerVariant <- (n + 3) %/% 4
+
+	# Number of variants (at the end of the file)
+	seek(con, where=file.info(dataFile)$size - 4)
+	m <- readBin(con, "integer", n=1, size=4, endian="little")
+
+	# Genotypes
+	seek(con, where=12)
+	b <- as.integer( readBin(con, "raw", n=m * bytesPerVariant) )
+	geno <- rbind( b %% 4, (b %/% 4) %% 4, (b %/% 16) %% 4, (b %/% 64) %% 4 )	# Four samples per byte
+	geno <- matrix( as.vector(geno), nrow=4 * bytesPerVariant, ncol=m )[1:n, , drop=FALSE]
+
+	# Variant information
+	chr <- readBin(con, "character", n=m)
+	id <- readBin(con, "character", n=m)
+	dist <- readBin(con, "character", n=m)
+	pos <- readBin(con, "integer", n=m, size=4, endian="little")
+	close(con)
+
+	return( data.frame(chr, id, dist, pos, t(geno), stringsAsFactors=FALSE) );
+}
+
+#-------------------------------------------------------------------------------
+# Show ASKAT results for a sub-block (STDOUT)
+#-------------------------------------------------------------------------------
+showResults <- function(dat, dataFile, i, maxBlock, results) {
+		if (results$is_converge == 0) {Warning<-"\nWARNING: p-value calculation did not converge for this block, try to set pACC to a different value, default is 1e-9"}
+    else{Warning<-""}
+    
+    # Show results
+		cat("\nASKAT_RESULTS:"
+			, "p-value:" , results$pvalue.ASKAT 
+			, "chr:pos:", paste( dat[i,1], ':', dat[i,4], ' - ' , dat[maxBlock,1], ':', dat[maxBlock,4], sep="")
+			, "Block:", dataFile
+			, "Sub-Block:", paste( i, ' - ', maxBlock, sep="" )
+			, "Id:", paste( dat[i,2], ' - ', dat[maxBlock,2], sep="" )
+			, "Q:", results$Q.ASKAT 
+			, "Polygenic.VC:", results$Polygenic.VC
+			, "Env.VC:", results$Env.VC
+			, "lambda:", results$lambda
+      , "is converge:", results$is_converge
+      , "\n"
+			, sep="\t" 
+			);
+    cat(Warning)
+}
+
+#-------------------------------------------------------------------------------
+# Run ASKAT on every sub-block of a data file and show results (STDOUT)
+#
+# ctx  : Null model context (see ASKAT.context)
+# step : Sub-blocks start every 'step' variants. If 'step' is smaller than
+#        'subBlockSize', sub-blocks overlap (sliding windows) and projections
+#        are shared (see ASKAT.windows)
+#-------------------------------------------------------------------------------
+askatDataFile <- function(dataFile, tfam, ctx, subBlockSize, pACC, onlyOnce, step=subBlockSize) {
+	cat("Data file : ", dataFile , "\n" );
+
+	# Read data file
+	if( debug )	{ cat('Load data file: ', dataFile, '\n' ); }
+	if( isAskatBin(dataFile) )	{ dat <- readAskatBin(dataFile); }
+	else						{ dat <- read.csv(dataFile, sep="", header=FALSE ); }
+
+
+	#---
+	# Iterate for each sub-block
+	#---
+	snpIdx <- 5:dim(dat)[2];							# Columns having SNP data
+	ped12 <- tfam[,c(2,6)]; 							# First two columns of data structure (inividualID and phenotype)
+	sbIdx <- seq( 1, dim(dat)[1] , by = step );		# SubBlock indices
+	sbIdx <- sbIdx[ (sbIdx == 1) | (sbIdx - step + subBlockSize - 1 < dim(dat)[1]) ];	# Last window reaches the end of the file, no need for more
+
+	# Sliding windows: Project all variants once, then test every window
+	if( step < subBlockSize ) {
+		if( onlyOnce )	{ sbIdx <- sbIdx[1]; }
+		allResults <- ASKAT.windows(t(dat[,snpIdx]), ctx, subBlockSize, sbIdx, pACC)
+		for( k in seq_along(sbIdx) ) {
+			i <- sbIdx[k]
+			showResults(dat, dataFile, i, min( dim(dat)[1] , i+subBlockSize-1 ), allResults[[k]])
+		}
+		if( onlyOnce )	{ fatalError('Execute onlyOnce is set. Stopping after first iteration.\n'); }
+		return();
+	}
+
+	# Iterate on every sub-block
+	for( i in sbIdx )  {
+		# Create pedigree matrix for ASKAT function
+		maxBlock <- min( dim(dat)[1] , i+subBlockSize-1 );
+		snpsBlock <- i:maxBlock;
+		ped <- cbind( ped12, t(dat[snpsBlock,snpIdx]) );
+
+		if( debug )	{ cat('Iterating on sub-block: ', paste( dat[i,1], ':', dat[i,4], ' - ' , dat[maxBlock,1], ':', dat[maxBlock,4], sep="") , '\n' ); }
+
+		# Call ASKAT
+		results <- ASKAT(ped, ctx, pACC)
+		showResults(dat, dataFile, i, maxBlock, results)
+		
+		if( onlyOnce )	{ 
+			# Excecute only one sub-block? => Stop now
+			fatalError('Execute onlyOnce is set. Stopping after first iteration.\n'); 
+		}
+	}
+}
+
+#-------------------------------------------------------------------------------
+# Worker mode: Report an error processing a data file (see RWorkerPool.java)
+#-------------------------------------------------------------------------------
+askatError <- function(dataFile, msg) {
+	cat("\nASKAT_ERROR:\t", dataFile, "\t", gsub("[\t\n]", " ", msg), "\n", sep="");
+}
+
+#-------------------------------------------------------------------------------
+# Worker mode: Read requests from STDIN, one per line (see RWorkerPool.java)
+#
+# Request format (tab separated):
+#		dataFiles (comma separated)	kinshipFile	subBlockSize	pACC	step
+#
+# The kinship file (i.e. 'fastlmm' object) is only loaded when it changes, 
+# and so is the null model context (see ASKAT.context).
+# After each request, 'ASKAT_DONE' is shown, so the caller knows that all 
+# results are available. Errors are reported for each data file, as
+# 'ASKAT_ERROR:<tab>dataFile<tab>message' lines (other files are still processed).
+#-------------------------------------------------------------------------------
+askatWorker <- function(tfam) {
+	kinshipFileLoaded <- ''
+	con <- file('stdin');
+	open(con);
+
+	while( length(req <- readLines(con, n=1)) > 0 ) {
+		fields <- unlist( strsplit(req, "\t") );
+		dataFiles <- unlist( strsplit(fields[1] , ",") );
+		kinshipFile <- fields[2];
+
+		# Load kinship & FaST-LMM file (only if it changed)
+		kinshipError <- NULL;
+		if( kinshipFile != kinshipFileLoaded ) {
+			kinshipFileLoaded <- '';
+			kinshipError <- tryCatch( {
+					if( debug )	{ cat('Loading kinship & FaST-LMM file: ', kinshipFile , '\n' ); }
+					env <- new.env();
+					load(kinshipFile, envir=env);
+					ctx <- ASKAT.context(env$fastlmm, tfam$phenotype);
+					kinshipFileLoaded <- kinshipFile;
+					NULL;
+				}
+				, error = function(e) { paste('Cannot load kinship file', kinshipFile, ':', conditionMessage(e)); }
+			);
+		}
+
+		for( dataFile in dataFiles ) {
+			if( !is.null(kinshipError) )	{ askatError(dataFile, kinshipError); }
+			else {
+				tryCatch( 
+					askatDataFile(dataFile, tfam, ctx, as.integer(fields[3]), as.double(fields[4]), FALSE, as.integer(fields[5]))
+					, error = function(e) { askatError(dataFile, conditionMessage(e)); }
+				);
+			}
+		}
+
+		cat("\nASKAT_DONE\n");
+		flush(stdout());
+	}
+
+	close(con);
+}
+
 #-------------------------------------------------------------------------------
 # Main program
 #-------------------------------------------------------------------------------
@@ -207,6 +445,15 @@ if( !exists('cmdLineArgs') )    { cmdLineArgs <- commandArgs(trailingOnly = TRUE
 # Stop if there are no command line argument
 if( length(cmdLineArgs) < 1 ) { fatalError('No command line arguments!\n'); }
 
+#---
+# Worker mode: Command line is '-worker tfamFile', requests are read from STDIN
+#---
+if( cmdLineArgs[1] == '-worker' ) {
+	tfam <- read.csv(cmdLineArgs[2], sep="", header=FALSE, col.names=c('familyId','individualId', 'paternalId', 'maternalId', 'sex', 'phenotype') );
+	askatWorker(tfam);
+	quit(save="no");
+}
+
 dataFileStr     <- cmdLineArgs[1];
 tfamFile        <- cmdLineArgs[2];
 kinshipFile     <- cmdLineArgs[3];
@@ -214,12 +461,14 @@ subBlockSize    <- as.integer( cmdLineArgs[4] );
 pACC            <- as.double (cmdLineArgs[5]) #UPD new command line argument for the p-value accuracy
 onlyOnce        <- (cmdLineArgs[6] == 'TRUE') || (cmdLineArgs[6] == 'T')
 debug           <- debug || onlyOnce;		# Set debug mode
+step            <- if( length(cmdLineArgs) >= 7 ) as.integer( cmdLineArgs[7] ) else subBlockSize	# Sliding windows step
 
 cat("ASKAT arguments:\n");
 cat("\tData file/s         : ", dataFileStr , "\n" );
 cat("\tTFAM file           : ", tfamFile , "\n" );
 cat("\tKinship matrix file : ", kinshipFile , "\n" );
 cat("\tSub-block size      : ", subBlockSize , "\n" );
+cat("\tWindow step         : ", step , "\n" );
 cat("\tp-value accuracy    : ", pACC  , "\n" );
 cat("\tTemporal dir        : ", tmpDir , "\n" );
 
@@ -241,62 +490,11 @@ tfam <- read.csv(tfamFile, sep="", header=FALSE, col.names=c('familyId','individ
 
 if( debug )	{ cat('Loading kinship & FaST-LMM file: ', kinshipFile , '\n' ); }
 load(kinshipFile);
-
+ctx <- ASKAT.context(fastlmm, tfam$phenotype);		# Null model context is shared by all sub-blocks
 
 # More than one file (comma separated list of files)
 dataFiles <- unlist( strsplit(dataFileStr , ",") )
 
 for( dataFile in dataFiles ) {
-	cat("Data file : ", dataFile , "\n" );
-
-	# Read data file
-	if( debug )	{ cat('Load data file: ', dataFile, '\n' ); }
-	dat  <- read.csv(dataFile, sep="", header=FALSE );
-
-
-	#---
-	# Iterate for each sub-block
-	#---
-	snpIdx <- 5:dim(dat)[2];							# Columns having SNP data
-	ped12 <- tfam[,c(2,6)]; 							# First two columns of data structure (inividualID and phenotype)
-	sbIdx <- seq( 1, dim(dat)[1] , by = subBlockSize );	# SubBlock indices
-
-	# Iterate on every sub-block
-	for( i in sbIdx )  {
-		# Create pedigree matrix for ASKAT function
-		maxBlock <- min( dim(dat)[1] , i+subBlockSize-1 );
-		snpsBlock <- i:maxBlock;
-		ped <- cbind( ped12, t(dat[snpsBlock,snpIdx]) );
-
-		if( debug )	{ cat('Iterating on sub-block: ', paste( dat[i,1], ':', dat[i,4], ' - ' , dat[maxBlock,1], ':', dat[maxBlock,4], sep="") , '\n' ); }
-
-		# Call ASKAT
-		results <- ASKAT(ped, fastlmm, pACC)
-    
-		if (results$is_converge == 0) {Warning<-"\nWARNING: p-value calculation did not converge for this block, try to set pACC to a different value, default is 1e-9"}
-    else{Warning<-""}
-    
-    # Show results
-		cat("\nASKAT_RESULTS:"
-			, "p-value:" , results$pvalue.ASKAT 
-			, "chr:pos:", paste( dat[i,1], ':', dat[i,4], ' - ' , dat[maxBlock,1], ':', dat[maxBlock,4], sep="")
-			, "Block:", dataFile
-			, "Sub-Block:", paste( i, ' - ', maxBlock, sep="" )
-			, "Id:", paste( dat[i,2], ' - ', dat[maxBlock,2], sep="" )
-			, "Q:", results$Q.ASKAT 
-			, "Polygenic.VC:", results$Polygenic.VC
-			, "Env.VC:", results$Env.VC
-			, "lambda:", results$lambda
-      , "is converge:", results$is_converge
-      , "\n"
-			, sep="\t" 
-			);
-    cat(Warning)
-		
-		if( onlyOnce )	{ 
-			# Excecute only one sub-block? => Stop now
-			fatalError('Execute onlyOnce is set. Stopping after first iteration.\n'); 
-		}
-	}
+	askatDataFile(dataFile, tfam, ctx, subBlockSize, pACC, onlyOnce, step);
 }
-
@@ -55,6 +55,23 @@ createKinship <- function( tfam , tpedFile ) {
 	kinshipMatrix;
 }
 
+#-------------------------------------------------------------------------------
+# Load kinship matrix from a binary file. This matrix is calculated in Java 
+# (see KinshipIbs.java) and it is the same as the one created by 
+# 'createKinship', so GenABEL files are not needed.
+#
+# Format (little endian): 
+#		int32 n, float64[n*n] kinship matrix (column major)
+#-------------------------------------------------------------------------------
+loadKinship <- function(kinshipBinFile) {
+	cat('Loading kinship matrix from file', kinshipBinFile, '\n');
+	con <- file(kinshipBinFile, "rb")
+	n <- readBin(con, "integer", n=1, size=4, endian="little")
+	kinshipMatrix <- matrix( readBin(con, "numeric", n=n*n, size=8, endian="little"), n, n)
+	close(con)
+	kinshipMatrix;
+}
+
 #-------------------------------------------------------------------------------
 # Create 'pheno.txt' file (used by FaST-LMM)
 #-------------------------------------------------------------------------------
@@ -219,6 +236,42 @@ invokeFastlmm <- function(tfam, simFile, phenoFile, tfamFile) {
 	return( list(nullGeneticVar = nullGeneticVar, nullResidualVar = nullResidualVar, S = S, U = U) );
 }
 
+#-------------------------------------------------------------------------------
+# Save null model (FaST-LMM results) in a binary file, so that it can be read 
+# by the Java implementation of ASKAT (see NullModel.java)
+#
+# Format (little endian): 
+#		int32 n, float64 nullGeneticVar, float64 nullResidualVar, 
+#		float64[n] S (eigenvalues), float64[n*n] U (eigenvectors, column major)
+#-------------------------------------------------------------------------------
+saveNullModel <- function(nullModelFile, fastlmm) {
+	cat('Saving null model to file', nullModelFile, '\n');
+	S <- diag(fastlmm$S)
+	con <- file(nullModelFile, "wb")
+	writeBin(as.integer(length(S)), con, size=4, endian="little")
+	writeBin(as.numeric(as.character(c(fastlmm$nullGeneticVar[1], fastlmm$nullResidualVar[1]))), con, size=8, endian="little")
+	writeBin(as.numeric(S), con, size=8, endian="little")
+	writeBin(as.numeric(fastlmm$U), con, size=8, endian="little")
+	close(con)
+}
+
+#-------------------------------------------------------------------------------
+# Load null model from a binary file (see 'saveNullModel'). This is used when 
+# the null model is calculated in Java (see NullModelReml.java) instead of 
+# invoking FaST-LMM
+#-------------------------------------------------------------------------------
+loadNullModel <- function(nullModelFile) {
+	cat('Loading null model from file', nullModelFile, '\n');
+	con <- file(nullModelFile, "rb")
+	p <- readBin(con, "integer", n=1, size=4, endian="little")
+	vc <- readBin(con, "numeric", n=2, size=8, endian="little")
+	S <- readBin(con, "numeric", n=p, size=8, endian="little")
+	U <- readBin(con, "numeric", n=p*p, size=8, endian="little")
+	close(con)
+
+	return( list(nullGeneticVar = vc[1], nullResidualVar = vc[2], S = diag(S), U = matrix(U, p, p, byrow=F)) );
+}
+
 #-------------------------------------------------------------------------------
 # Create a name for a temporal file
 #-------------------------------------------------------------------------------
@@ -254,6 +307,8 @@ kinshipFile		<- cmdLineArgs[5];
 simFile			<- cmdLineArgs[6];
 phenoFile	    <- cmdLineArgs[7];
 path.FastLmm    <- cmdLineArgs[8];
+nullModelFile   <- cmdLineArgs[9];
+kinshipBinFile  <- cmdLineArgs[10];
 
 cat("Kinship arguments:\n");
 cat("\tInput TPED file                 :", tpedFile, "\n");
@@ -264,6 +319,8 @@ cat("\tOutput Kinship matrix file      :", kinshipFile, "\n");
 cat("\tOutput SIM matrix file          :", simFile, "\n");
 cat("\tOutput pheno file               :", phenoFile, "\n");
 cat("\tFast-LMM path                   :", path.FastLmm , "\n" );
+cat("\tOutput null model file          :", nullModelFile , "\n" );
+cat("\tInput kinship binary file       :", kinshipBinFile , "\n" );
 
 #---
 # TMP dir (form tpedFile)
@@ -288,25 +345,39 @@ tfam <- read.csv(tfamFile, sep="", header=FALSE, col.names=c('familyId','individ
 if( file.exists(kinshipFile) ) {
 	cat("Kinship file '", kinshipFile ,"' exists. Loading.\n");
 	load( kinshipFile )
+} else if( !is.na(kinshipBinFile) && (kinshipBinFile != "") ) {
+	kinshipMatrix <- loadKinship( kinshipBinFile );
 } else {
 	kinshipMatrix <- createKinship( tfam, tpedFile );
 }
 
 #---
-# Create SIM file (for FaST-LMM)
+# Null model already calculated? Load it (no need to invoke FaST-LMM)
 #---
-createSim(simFile, tfam, kinshipMatrix );
+if( !is.na(nullModelFile) && file.exists(nullModelFile) ) {
+	fastlmm = loadNullModel(nullModelFile);
+} else {
+	startFastlmm <- proc.time()[['elapsed']];
 
-#---
-# Create pheno.txt file (for FaST-LMM)
-#---
-createPheno(phenoFile, tfam);
+	#---
+	# Create SIM file (for FaST-LMM)
+	#---
+	createSim(simFile, tfam, kinshipMatrix );
 
-#---
-# Invoke FaST-LMM
-#---
+	#---
+	# Create pheno.txt file (for FaST-LMM)
+	#---
+	createPheno(phenoFile, tfam);
 
-fastlmm = invokeFastlmm(tfam, simFile, phenoFile, tfamFile );
+	#---
+	# Invoke FaST-LMM
+	#---
+	fastlmm = invokeFastlmm(tfam, simFile, phenoFile, tfamFile );
+	if( !is.na(nullModelFile) ) saveNullModel(nullModelFile, fastlmm);
+
+	# Report time spent on the null model (ASKAT_METRIC:<tab>stage<tab>seconds)
+	cat("\nASKAT_METRIC:\tfastlmm\t", proc.time()[['elapsed']] - startFastlmm, "\n", sep="");
+}
 
 #---
 # Save kinship as RData file
@@ -0,0 +1,36 @@
+#!/bin/sh
+
+#-------------------------------------------------------------------------------
+#
+# Multi-node mode on a single machine: Run a coordinator and several
+# worker processes sharing a queue directory (useful for testing)
+#
+# Usage:
+#	./scripts/askat_queue_local.sh NUM_WORKERS [ASKAT_OPTIONS] genotype
+#
+# Example:
+#	./scripts/askat_queue_local.sh 4 -v -javaKin -javaAskat -i karim4k.bed karim4k
+#
+# On a cluster, run the coordinator on one node and workers on any nodes
+# sharing the same directory (e.g. NFS scratch volume):
+#	java -jar Askat.jar -coordinator queue_dir [ASKAT_OPTIONS] genotype
+#	java -jar Askat.jar -worker queue_dir [ASKAT_OPTIONS] genotype
+#
+#																Pablo Cingolani
+#-------------------------------------------------------------------------------
+
+NUM_WORKERS=$1
+shift
+QUEUE_DIR=askat_queue.$$
+
+# Coordinator
+java -Xmx4G -jar Askat.jar -coordinator $QUEUE_DIR "$@" 2> $QUEUE_DIR.coordinator.err &
+
+# Workers
+for i in `seq $NUM_WORKERS`
+do
+	java -Xmx4G -jar Askat.jar -worker $QUEUE_DIR "$@" 2> $QUEUE_DIR.worker.$i.err &
+done
+
+wait
+echo "Queue directory: $QUEUE_DIR"
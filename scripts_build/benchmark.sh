@@ -0,0 +1,44 @@
+#!/bin/sh -e
+
+#-------------------------------------------------------------------------------
+#
+# Compile and run JMH benchmarks (sources in 'benchmark' directory)
+#
+# Usage:
+#	./scripts_build/benchmark.sh [JMH_OPTIONS]
+#
+# Examples:
+#	./scripts_build/benchmark.sh TpedEntryBenchmark
+#	./scripts_build/benchmark.sh KinshipBlockBenchmark -p numSamples=1000,10000 -p numVariants=1000
+#	./scripts_build/benchmark.sh -rf json -rff benchmark.json
+#
+# Data sets are created in '$TMPDIR/askat_benchmark' (or '-Daskat.benchmark.dir=DIR'
+# using JMH option '-jvmArgsAppend') and reused. Large data sets (100K samples)
+# take several GB, delete the directory when you are done.
+#
+# Askat must be compiled first (Eclipse: '$HOME/workspace/Askat/bin').
+# JMH jars are taken from the local Maven repository, same as 'build.xml'.
+#
+#																Pablo Cingolani
+#-------------------------------------------------------------------------------
+
+JMH_VERSION=${JMH_VERSION:-1.21}
+M2=$HOME/.m2/repository
+WORKSPACE=$HOME/workspace
+
+JMH_CP=$M2/org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar
+JMH_CP=$JMH_CP:$M2/org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar
+JMH_CP=$JMH_CP:$M2/net/sf/jopt-simple/jopt-simple/4.6/jopt-simple-4.6.jar
+JMH_CP=$JMH_CP:$M2/org/apache/commons/commons-math3/3.2/commons-math3-3.2.jar
+
+CP=$WORKSPACE/Askat/bin:$WORKSPACE/SnpEff/target/classes:$WORKSPACE/SnpSift/target/classes
+CP=$CP:$M2/net/sf/trove4j/trove4j/3.0.2/trove4j-3.0.2.jar
+
+# Compile benchmarks (the annotation processor creates JMH's generated code and benchmark list)
+OUT=$WORKSPACE/Askat/benchmark_bin
+rm -rf $OUT
+mkdir -p $OUT
+javac -cp $CP:$JMH_CP -d $OUT `find $WORKSPACE/Askat/benchmark -name "*.java"`
+
+# Run
+java -cp $OUT:$CP:$JMH_CP org.openjdk.jmh.Main "$@"
@@ -0,0 +1,50 @@
+#!/bin/sh -e
+
+#-------------------------------------------------------------------------------
+#
+# Parity check: Compare Java ports against the reference R implementations
+# on the 'karim4k' data set (see 'scripts_build/parity/parity.r')
+#
+#	- ChiSquareMixture ('davies', 'liu') vs CompQuadForm
+#	- KinshipIbs vs GenABEL 'ibs(weight="freq")'
+#	- '-javaAskat -javaKin' p-values vs askat.r (GenABEL + FaST-LMM)
+#
+# Usage:
+#	./scripts_build/parity.sh [OUT_DIR]
+#
+# Requirements are the same as a normal R run (Rscript, GenABEL,
+# CompQuadForm, FaST-LMM), and Askat.jar must be built first (see make.sh).
+# Exit status is non-zero if any check fails.
+#
+#																Pablo Cingolani
+#-------------------------------------------------------------------------------
+
+ROOT=`cd \`dirname $0\`/.. ; pwd`
+OUT=${1:-$ROOT/parity_out}
+JAR=$ROOT/Askat.jar
+ASKAT_ARGS="-v -noDep -kin all -sb 10 -maxMaf 1.0 -pathR $ROOT/r/"
+
+rm -rf $OUT
+mkdir -p $OUT/r $OUT/java
+
+# Input files
+for d in $OUT/r $OUT/java
+do
+	gunzip -c $ROOT/karim4k/karim4k.tped.gz > $d/karim4k.tped
+	cp $ROOT/karim4k/karim4k.tfam $d/
+done
+
+# Reference: R scripts (GenABEL kinship, FaST-LMM null model, askat.r)
+cd $OUT/r
+java -Xmx4G -jar $JAR $ASKAT_ARGS -out results.tsv.gz karim4k 2> askat.err
+
+# Java: Kinship, null model and ASKAT
+cd $OUT/java
+java -Xmx4G -jar $JAR $ASKAT_ARGS -javaKin -javaAskat -out results.tsv.gz karim4k 2> askat.err
+
+# Compile 'davies' / 'liu' driver
+javac -cp $JAR -d $OUT $ROOT/scripts_build/parity/ChiSquareMixtureParity.java
+
+# Compare
+cd $OUT
+Rscript $ROOT/scripts_build/parity/parity.r $OUT:$JAR $OUT/r $OUT/java
@@ -0,0 +1,46 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import ca.mcgill.mcb.pcingola.askat.ChiSquareMixture;
+
+/**
+ * Parity check (see 'parity.r'): Calculate 'davies' and 'liu' p-values for
+ * the cases in a file, so they can be compared to CompQuadForm's values.
+ *
+ * Input (tab separated, one case per line):
+ * 		q	acc	lim	lambda (comma separated)
+ *
+ * Output (tab separated, one line per case):
+ * 		davies	ifault	liu
+ *
+ * @author pcingola
+ */
+public class ChiSquareMixtureParity {
+
+	public static void main(String[] args) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+		ChiSquareMixture chiSquareMixture = new ChiSquareMixture();
+
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			if (line.isEmpty()) continue;
+			String fields[] = line.split("\t");
+			double q = Double.parseDouble(fields[0]);
+			double acc = Double.parseDouble(fields[1]);
+			int lim = Integer.parseInt(fields[2]);
+			String l[] = fields[3].split(",");
+			double lambda[] = new double[l.length];
+			for (int i = 0; i < l.length; i++)
+				lambda[i] = Double.parseDouble(l[i]);
+
+			chiSquareMixture.setLimit(lim);
+			double davies = chiSquareMixture.davies(q, lambda, lambda.length, acc);
+			int ifault = chiSquareMixture.getIfault();
+			double liu = chiSquareMixture.liu(q, lambda, lambda.length);
+			System.out.println(davies + "\t" + ifault + "\t" + liu);
+		}
+
+		reader.close();
+	}
+
+}
@@ -0,0 +1,141 @@
+#-------------------------------------------------------------------------------
+# Parity check: Compare Java ports against the reference R implementations
+#
+#	1) ChiSquareMixture.java ('davies', 'liu') vs CompQuadForm, including
+#	   cases where 'davies' reports an error (ifault != 0)
+#	2) KinshipIbs.java vs GenABEL's 'ibs(weight="freq")' + 'diagReplace'
+#	3) '-javaAskat -javaKin' p-values vs askat.r (GenABEL + FaST-LMM)
+#
+# Usage (see scripts_build/parity.sh):
+#	Rscript parity.r classPath rRunDir javaRunDir
+#
+# Each run directory must contain 'results.tsv.gz' and the kinship files
+# of a '-kin all' run ('*.kinship.RData' for R, '*.kinship.bin' for Java).
+#
+#															Pablo Cingolani
+#-------------------------------------------------------------------------------
+
+library(CompQuadForm)
+
+# Tolerances
+tol.chisq     <- 1e-9	# 'davies' and 'liu' are direct ports: Only floating point differences
+tol.kinship   <- 1e-6	# IBS kinship: Same formula
+tol.log10pval <- 0.01	# ASKAT p-values (log10): Both null models are ML fits, differences come from the optimizer's convergence
+min.corPval   <- 0.999	# ASKAT p-values (log10): Minimum correlation
+
+failed <- FALSE
+
+#-------------------------------------------------------------------------------
+# Show a check result
+#-------------------------------------------------------------------------------
+check <- function(name, ok, msg) {
+	cat(ifelse(ok, 'OK    ', 'FAILED'), name, ':', msg, '\n');
+	if( !ok )	{ failed <<- TRUE; }
+}
+
+#-------------------------------------------------------------------------------
+# Load kinship matrix from a binary file (same as 'loadKinship' in kinship.r)
+#-------------------------------------------------------------------------------
+loadKinshipBin <- function(kinshipBinFile) {
+	con <- file(kinshipBinFile, "rb")
+	n <- readBin(con, "integer", n=1, size=4, endian="little")
+	k <- matrix( readBin(con, "numeric", n=n*n, size=8, endian="little"), n, n)
+	close(con)
+	k;
+}
+
+#-------------------------------------------------------------------------------
+# Find exactly one file matching 'pattern' in 'dir'
+#-------------------------------------------------------------------------------
+findFile <- function(dir, pattern) {
+	f <- list.files(dir, pattern=pattern, full.names=TRUE);
+	if( length(f) != 1 )	{ stop(paste('Expected one file matching', pattern, 'in', dir, ', found', length(f))); }
+	f;
+}
+
+#---
+# Command line arguments
+#---
+cmdLineArgs <- commandArgs(trailingOnly = TRUE);
+classPath  <- cmdLineArgs[1];
+rRunDir    <- cmdLineArgs[2];
+javaRunDir <- cmdLineArgs[3];
+
+#-------------------------------------------------------------------------------
+# 1) Davies and Liu vs CompQuadForm
+#-------------------------------------------------------------------------------
+cat('\nChi-square mixtures (davies, liu) vs CompQuadForm\n');
+
+lambdaAskat <- 10 * exp(-(0:29) / 3);	# Decreasing eigenvalues, similar to ASKAT's
+cases <- list(
+	list(q=20,    lambda=c(6, 3, 1),          acc=1e-6,  lim=10000)	# Typical
+	, list(q=1,   lambda=c(6, 3, 1),          acc=1e-6,  lim=10000)	# P-value close to 1
+	, list(q=5,   lambda=c(2.5),              acc=1e-6,  lim=10000)	# One eigenvalue (ASKAT uses 'liu')
+	, list(q=3,   lambda=c(2, -1, 0.5),       acc=1e-6,  lim=10000)	# Negative eigenvalues
+	, list(q=150, lambda=lambdaAskat,         acc=1e-9,  lim=10000)	# Small p-value, ASKAT's default accuracy
+	, list(q=400, lambda=lambdaAskat,         acc=1e-9,  lim=10000)	# Very small p-value
+	, list(q=150, lambda=lambdaAskat,         acc=1e-9,  lim=50)	# Integration terms limit: ifault 1
+	, list(q=150, lambda=lambdaAskat,         acc=1e-9,  lim=5)		# Counter limit: ifault 4
+	, list(q=150, lambda=lambdaAskat,         acc=1e-30, lim=10000)	# Accuracy not achievable: ifault 1 or 2
+	, list(q=1e-3, lambda=c(1e-8, 1e-9),      acc=1e-6,  lim=10000)	# Tiny eigenvalues
+);
+
+# Reference values (CompQuadForm)
+ref <- t( sapply(cases, function(cc) {
+	d <- davies(cc$q, cc$lambda, lim=cc$lim, acc=cc$acc);
+	c(d$Qq, d$ifault, liu(cc$q, cc$lambda));
+}) );
+
+# Java values
+casesFile <- tempfile();
+writeLines( sapply(cases, function(cc) { paste(format(cc$q, digits=17), cc$acc, cc$lim, paste(format(cc$lambda, digits=17), collapse=','), sep='\t') }), casesFile);
+javaOut <- system2('java', c('-cp', classPath, 'ChiSquareMixtureParity', casesFile), stdout=TRUE);
+java <- t( sapply( strsplit(javaOut, '\t'), as.numeric) );
+
+for( i in seq_along(cases) ) {
+	name <- paste('case', i, ', ifault', ref[i,2]);
+	check(paste('davies', name), (java[i,2] == ref[i,2]) && (abs(java[i,1] - ref[i,1]) <= tol.chisq), paste('R:', ref[i,1], 'Java:', java[i,1], 'ifault R:', ref[i,2], 'Java:', java[i,2]));
+	check(paste('liu   ', name), abs(java[i,3] - ref[i,3]) <= tol.chisq, paste('R:', ref[i,3], 'Java:', java[i,3]));
+}
+cat('ifault codes covered:', paste(sort(unique(ref[,2])), collapse=', '), '\n');
+
+#-------------------------------------------------------------------------------
+# 2) Java IBS kinship vs GenABEL
+#-------------------------------------------------------------------------------
+cat('\nKinship (IBS) vs GenABEL\n');
+
+env <- new.env();
+load( findFile(rRunDir, '\\.kinship\\.RData$'), envir=env );
+kr <- env$kinshipMatrix;
+kj <- loadKinshipBin( findFile(javaRunDir, '\\.kinship\\.bin$') );
+
+# Compare upper triangle and diagonal (GenABEL keeps the number of variants in the lower triangle)
+sel <- upper.tri(kr, diag=TRUE);
+kdiff <- max( abs(kr[sel] - kj[sel]) );
+check('kinship', all(dim(kr) == dim(kj)) && (kdiff <= tol.kinship), paste('Samples:', nrow(kj), 'Max difference:', kdiff));
+
+#-------------------------------------------------------------------------------
+# 3) ASKAT p-values: '-javaAskat -javaKin' vs askat.r
+#-------------------------------------------------------------------------------
+cat('\nASKAT p-values vs askat.r\n');
+
+readResults <- function(dir) { read.delim( gzfile( file.path(dir, 'results.tsv.gz') ), stringsAsFactors=FALSE ); }
+resR <- readResults(rRunDir);
+resJ <- readResults(javaRunDir);
+key <- c('chrStart', 'posStart', 'chrEnd', 'posEnd', 'subBlockStart', 'subBlockEnd');
+res <- merge(resR, resJ, by=key, suffixes=c('.r', '.java'));
+
+lpR <- log10(pmax(res$pValue.r, 1e-300));
+lpJ <- log10(pmax(res$pValue.java, 1e-300));
+pdiff <- max(abs(lpR - lpJ));
+pcor <- cor(lpR, lpJ);
+check('sub-blocks', (nrow(res) == nrow(resR)) && (nrow(res) == nrow(resJ)), paste('R:', nrow(resR), 'Java:', nrow(resJ), 'Matched:', nrow(res)));
+check('p-values (max log10 difference)', pdiff <= tol.log10pval, pdiff);
+check('p-values (log10 correlation)', pcor >= min.corPval, pcor);
+cat('Variance components (R / Java): polygenic', res$polygenicVc.r[1], '/', res$polygenicVc.java[1], ', environmental', res$envVc.r[1], '/', res$envVc.java[1], '\n');
+
+#---
+# Summary
+#---
+cat('\n', ifelse(failed, 'PARITY CHECK FAILED', 'PARITY CHECK OK'), '\n');
+quit(save="no", status=ifelse(failed, 1, 0));
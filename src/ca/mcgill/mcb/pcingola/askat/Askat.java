@@ -5,15 +5,17 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import ca.mcgill.mcb.pcingola.Pcingola;
 import ca.mcgill.mcb.pcingola.fileIterator.BedFileIterator;
-import ca.mcgill.mcb.pcingola.fileIterator.LineFileIterator;
 import ca.mcgill.mcb.pcingola.fileIterator.VcfFileIterator;
 import ca.mcgill.mcb.pcingola.interval.Genome;
 import ca.mcgill.mcb.pcingola.interval.SeqChange;
@@ -22,8 +24,6 @@ import ca.mcgill.mcb.pcingola.snpEffect.commandLine.CommandLine;
 import ca.mcgill.mcb.pcingola.stats.CountByType;
 import ca.mcgill.mcb.pcingola.util.Gpr;
 import ca.mcgill.mcb.pcingola.util.Timer;
-import ca.mcgill.mcb.pcingola.vcf.VcfEntry;
-import ca.mcgill.mcb.pcingola.vcf.VcfGenotype;
 
 
 
@@ -91,12 +91,30 @@ public class Askat implements CommandLine {
 	// Askat results identifiers (askat.r)
 	public static final String ASKAT_RESULTS = "ASKAT_RESULTS:";
 	public static final String ASKAT_WARNING = "WARNING:";
+	public static final String ASKAT_METRIC = "ASKAT_METRIC:"; // Timings reported by R scripts: 'ASKAT_METRIC:<tab>stage<tab>seconds'
 
 	protected int numWorkers = Gpr.NUM_CORES; // Max number of threads (if multi-threaded version is available)
 	boolean debug = false; // Debug mode
 	protected boolean verbose = false; // Be verbose
 	protected boolean dependencyCheck = true; // Perform a dependency check
 	boolean onlySnp = false; // Only use SNPs in VCF files
+	boolean javaAskat = false; // Run ASKAT test in Java (instead of invoking R scripts)
+	boolean javaKinship = false; // Calculate kinship matrix and null model in Java (instead of using GenABEL and FaST-LMM)
+	boolean reml = false; // Java null model: Maximize restricted log-likelihood (REML) instead of log-likelihood (ML, same as FaST-LMM)
+	boolean rWorkers = false; // Use a pool of long lived R processes (instead of one R process per job)
+	boolean streamVcf = false; // Stream VCF file into the analysis (instead of converting it to a TPED file first)
+	boolean saveTped = false; // Save TPED file when streaming a VCF file
+	boolean resume = false; // Resume an interrupted run (skip work already done, see Journal)
+	VcfTpedStream vcfStream;
+	BlockPipeline blockPipeline;
+	WorkQueueCoordinator coordinator; // Multi-node runs: Blocks are added to a work queue instead of the pipeline (null if not used)
+	KinshipCache kinshipCache;
+	ResultSink resultSink;
+	Journal journal;
+	Metrics metrics; // Per-stage timings, counters and worker utilisation
+	KinshipLoco kinshipLoco; // Leave one chromosome out kinship (only for KinshipMethod.CHROMOSOME_AVG)
+	LinkedHashMap<String, String> locoBlocks; // Block file => Chromosome (only for KinshipMethod.CHROMOSOME_AVG)
+	RWorkerPool rWorkerPool;
 	protected String[] args;
 	protected String genotypeName = "";
 	protected String tpedFile;
@@ -104,15 +122,31 @@ public class Askat implements CommandLine {
 	protected String rPath = "./r/"; // Path to ASKAT R scripts. Note: It must end with '/'
 	protected String binPath = "./"; // Path to binary programs. Note: It must end with '/'
 	protected String bedFile = null; // BED file with intervals 
+	protected String resultsFile = null; // Results file (default: 'genotypeName.results.tsv.gz')
+	protected String phenotypesFile = null; // Multi-phenotype mode: Phenotype matrix file (null if not used, phenotype is taken from TFAM file)
+	protected Phenotypes phenotypes; // Multi-phenotype mode: Phenotype matrix (null if not used)
+	protected int topK = 10; // Number of top results (minimum p-values) to report
+	protected String metricsFile = null; // Save metrics to this file (Prometheus text format, or JSON if it ends with '.json'). Null if not used
+	protected int metricsInterval = 60; // Save metrics every 'metricsInterval' seconds
+	protected String kinshipCacheDir = null; // Kinship cache directory (null if not used)
+	protected long kinshipCacheSize = 10 * 1024; // Kinship cache size limit (in MB)
 	protected int blockSize = VERY_LARGE_BLOCK_SIZE; // Block size: Number of SNPs used to calculate the kinship matrix (default: large number)
 	protected int subBlockSize = 20; // Sub-block: Number of SNPs used in each call to ASKAT
+	protected int windowStep = 0; // Sliding windows: Start a window (of 'subBlockSize' SNPs) every 'windowStep' SNPs. Zero means 'subBlockSize' (non-overlapping sub-blocks)
 	protected int minVariants = 3; // Don't use less than this number of variants
+	protected int blocksInFlight = 2; // Maximum number of blocks processed at the same time (kinship of next block is calculated while running ASKAT on current block)
 	protected UseMissing useMissing = UseMissing.DO_NOT_USE; // Do not use genotypes having missing values
 	protected Genome genome;
 	protected HashMap<String, String> pathToBin;
 	protected KinshipMethod kinshipMethod = KinshipMethod.CHROMOSOME;
 	protected double maxMaf = 1.0; // Maximum 'MAF' allowed for the analysis (filter out other SNPs).
 	protected double pACC = 1e-9; // accuracy parameter for the r-method 'davies' computing p-value
+	protected int permutations = 0; // Empirical p-values: Maximum number of resamples per sub-block (zero means 'not used')
+	protected int permutationsMinExceed = AskatPermutation.DEFAULT_MIN_EXCEED; // Empirical p-values: Stop resampling after this number of exceedances
+	protected long seed = AskatPermutation.DEFAULT_SEED; // Empirical p-values: Random seed
+	protected String coordinatorDir = null; // Multi-node runs: Add blocks to a work queue in this directory, instead of processing them (null if not used)
+	protected String workerDir = null; // Multi-node runs: Process jobs from a work queue in this directory (null if not used)
+	protected int heartbeat = 10; // Multi-node runs: Workers send a heartbeat every 'heartbeat' seconds
 	protected List<SeqChange> intervals;
 
 	public static void main(String[] args) {
@@ -124,6 +158,7 @@ public class Askat implements CommandLine {
 	public Askat(String[] args) {
 		genome = new Genome();
 		pathToBin = new HashMap<String, String>();
+		metrics = new Metrics();
 		this.args = args;
 	}
 
@@ -148,9 +183,9 @@ public class Askat implements CommandLine {
 		String optsRscript[] = { CMD_RSCRIPT, "-e", "q()" };
 		checkProgramPath(optsRscript, "You can install it from this link: http://www.r-project.org/.\nIf already installed, you can set the PATH to the program using '-pathBin' command line option.");
 
-		// Check fastLmm (this one doesn't work on OSX)
+		// Check fastLmm (this one doesn't work on OSX). Not needed if the null model is calculated in Java
 		String optsFastlmmc[] = { CMD_FASTLMM };
-		checkProgramPath(optsFastlmmc, "You can install it from this link: http://fastlmm.codeplex.com/  or from here  http://research.microsoft.com/en-us/um/redmond/projects/MSCompBio/Fastlmm/ .\nIf already installed, you can set the PATH to the program using '-pathBin' command line option.");
+		if (!javaKinship) checkProgramPath(optsFastlmmc, "You can install it from this link: http://fastlmm.codeplex.com/  or from here  http://research.microsoft.com/en-us/um/redmond/projects/MSCompBio/Fastlmm/ .\nIf already installed, you can set the PATH to the program using '-pathBin' command line option.");
 
 		// Are all R libraries installed?
 		for (String rlib : DEPENDECY_RLIBS)
@@ -167,6 +202,39 @@ public class Askat implements CommandLine {
 		if (verbose && dependencyCheck) Timer.showStdErr("All dependencies found.\n");
 	}
 
+	/**
+	 * Check that TPED file is sorted by position (each chromosome in one contiguous
+	 * group of lines). Fail before running anything, instead of when an unsorted
+	 * entry is found in the middle of the analysis.
+	 */
+	void checkSorted() {
+		if (verbose) Timer.showStdErr("Checking that TPED file '" + tpedFile + "' is sorted");
+		HashSet<String> chrsDone = new HashSet<String>();
+		String chrPrev = null;
+		int posPrev = 0;
+
+		TpedScanner tped = new TpedScanner(tpedFile);
+		while (tped.next()) {
+			String chr = tped.getChromosomeName();
+			int pos = tped.getPosition();
+
+			String error = null;
+			if (!chr.equals(chrPrev)) {
+				if (!chrsDone.add(chr)) error = "Chromosome '" + chr + "' found again (line " + tped.getLineNum() + ")";
+				chrPrev = chr;
+			} else if (pos < posPrev) error = "Position " + chr + ":" + pos + " found after " + chr + ":" + posPrev + " (line " + tped.getLineNum() + ")";
+			posPrev = pos;
+
+			if (error != null) {
+				tped.close();
+				fatalError("TPED file '" + tpedFile + "' is not sorted: " + error //
+						+ "\n\tUsing intervals ('-i') requires a TPED file sorted by chromosome and position, e.g.:" //
+						+ "\n\t\tsort -k1,1 -k4,4n " + tpedFile + " > sorted.tped");
+			}
+		}
+		tped.close();
+	}
+
 	/**
 	 * Check if input files exists (TPED or TFAM input files)
 	 */
@@ -174,8 +242,14 @@ public class Askat implements CommandLine {
 		if (!Gpr.canRead(tpedFile)) {
 			// No TPED file? Try to create one from a VCF file
 			String vcfFile = genotypeName + ".vcf";
-			if (Gpr.canRead(vcfFile)) vcf2Tped(vcfFile, tpedFile);
-			else fatalError("Cannot read file '" + tpedFile + "'");
+			if (!Gpr.canRead(vcfFile)) fatalError("Cannot read file '" + tpedFile + "'");
+			else if (streamVcf) {
+				// Stream VCF entries directly into the analysis. 
+				// Note: Samples in TFAM and VCF are consolidated when the stream starts
+				if (!Gpr.canRead(tfamFile)) fatalError("Cannot read file '" + tfamFile + "'");
+				vcfStream = new VcfTpedStream(this, vcfFile, saveTped ? tpedFile : null);
+				return;
+			} else vcf2Tped(vcfFile, tpedFile);
 		}
 
 		if (!Gpr.canRead(tfamFile)) fatalError("Cannot read file '" + tfamFile + "'");
@@ -187,6 +261,9 @@ public class Askat implements CommandLine {
 		int tpedNumSamples = (Gpr.countColumns(tpedFile) - 4) / 2;
 		if (tfamNumSamples != tpedNumSamples) fatalError("Number of samples in TPED and TFAM files do not match:\n\t" + tfamNumSamples + "\tsamples in " + tfamFile + "\n\t" + tpedNumSamples + "\tsamples in " + tpedFile + "\n\tNote: TFAM samples are counted as number of lines. TPED samples are counted as (number_of_columns - 4)/2");
 
+		// Intervals: Entries are grouped using a sweep line (see IntervalGrouper), so TPED must be sorted
+		if (intervals != null) checkSorted();
+
   }
 
 
@@ -264,22 +341,22 @@ public class Askat implements CommandLine {
 	CountByType countByChr() {
 		if (verbose) Timer.showStdErr("Analyzing TPED file");
 
-		LineFileIterator lfi = new LineFileIterator(tpedFile);
+		TpedScanner tped = new TpedScanner(tpedFile);
 		CountByType countByChr = new CountByType();
 		int posPrev = -1;
 		String chrPrev = "";
-		for (String line : lfi) {
-			String fields[] = line.split("\\s", 4);
-			String chr = fields[0];
-			int pos = Gpr.parseIntSafe(fields[3]);
+		while (tped.next()) {
+			String chr = tped.getChromosomeName();
+			int pos = tped.getPosition();
 			countByChr.inc(chr);
 
 			// Is the file sorted?
-			if (chr.equals(chrPrev) && (pos < posPrev)) fatalError("TPED file out of order.\n\t" + line);
+			if (chr.equals(chrPrev) && (pos < posPrev)) fatalError("TPED file out of order.\n\t" + tped.getLine());
 
 			chrPrev = chr;
 			posPrev = pos;
 		}
+		tped.close();
 
 		if (verbose) Timer.showStdErr("Done:\n" + countByChr);
 		return countByChr;
@@ -327,6 +404,64 @@ public class Askat implements CommandLine {
 		return genome;
 	}
 
+	/**
+	 * Kinship cache (null if not used)
+	 */
+	public synchronized KinshipCache getKinshipCache() {
+		if ((kinshipCache == null) && (kinshipCacheDir != null)) kinshipCache = new KinshipCache(this, kinshipCacheDir, kinshipCacheSize * 1024 * 1024);
+		return kinshipCache;
+	}
+
+	/**
+	 * All results are added here
+	 */
+	public ResultSink getResultSink() {
+		return resultSink;
+	}
+
+	/**
+	 * Journal of finished work (used to resume interrupted runs)
+	 */
+	public Journal getJournal() {
+		return journal;
+	}
+
+	public int getHeartbeat() {
+		return heartbeat;
+	}
+
+	public List<SeqChange> getIntervals() {
+		return intervals;
+	}
+
+	public Phenotypes getPhenotypes() {
+		return phenotypes;
+	}
+
+	public String getPhenotypesFile() {
+		return phenotypesFile;
+	}
+
+	public int getPermutations() {
+		return permutations;
+	}
+
+	public int getPermutationsMinExceed() {
+		return permutationsMinExceed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public double getMaxMaf() {
+		return maxMaf;
+	}
+
 	public int getMinVariants() {
 		return minVariants;
 	}
@@ -339,6 +474,14 @@ public class Askat implements CommandLine {
 		return pathToBin.get(cmd);
 	}
 
+	/**
+	 * Pool of R workers (created on first use)
+	 */
+	public synchronized RWorkerPool getrWorkerPool() {
+		if (rWorkerPool == null) rWorkerPool = new RWorkerPool(this);
+		return rWorkerPool;
+	}
+
 	public String getrPath() {
 		return rPath;
 	}
@@ -347,10 +490,41 @@ public class Askat implements CommandLine {
 		return subBlockSize;
 	}
 
+	/**
+	 * Sliding windows step (same as sub-block size if windows do not overlap)
+	 */
+	public int getWindowStep() {
+		return windowStep > 0 ? windowStep : subBlockSize;
+	}
+
 	public String getTfamFile() {
 		return tfamFile;
 	}
 
+	public UseMissing getUseMissing() {
+		return useMissing;
+	}
+
+	public boolean isJavaAskat() {
+		return javaAskat;
+	}
+
+	public boolean isJavaKinship() {
+		return javaKinship;
+	}
+
+	public boolean isOnlySnp() {
+		return onlySnp;
+	}
+
+	public boolean isReml() {
+		return reml;
+	}
+
+	public boolean isrWorkers() {
+		return rWorkers;
+	}
+
 	public boolean isDebug() {
 		return debug;
 	}
@@ -436,6 +610,27 @@ public class Askat implements CommandLine {
 						subBlockSize = Gpr.parseIntSafe(args[++i]);
 						if (subBlockSize <= 0) usage("Sub-Block size must be a positive number.");
 					} else usage("Missing sub-block size.");
+				} else if (args[i].equalsIgnoreCase("-cache")) {
+					if ((i + 1) < args.length) kinshipCacheDir = args[++i];
+					else usage("Missing kinship cache directory.");
+				} else if (args[i].equalsIgnoreCase("-coordinator")) {
+					if ((i + 1) < args.length) coordinatorDir = args[++i];
+					else usage("Missing queue directory.");
+				} else if (args[i].equalsIgnoreCase("-cacheSize")) {
+					if ((i + 1) < args.length) {
+						kinshipCacheSize = Gpr.parseLongSafe(args[++i]);
+						if (kinshipCacheSize <= 0) usage("Kinship cache size must be a positive number.");
+					} else usage("Missing kinship cache size.");
+				} else if (args[i].equalsIgnoreCase("-heartbeat")) {
+					if ((i + 1) < args.length) {
+						heartbeat = Gpr.parseIntSafe(args[++i]);
+						if (heartbeat <= 0) usage("Heartbeat interval must be a positive number.");
+					} else usage("Missing heartbeat interval.");
+				} else if (args[i].equalsIgnoreCase("-inFlight")) {
+					if ((i + 1) < args.length) {
+						blocksInFlight = Gpr.parseIntSafe(args[++i]);
+						if (blocksInFlight <= 0) usage("Number of blocks in flight must be a positive number.");
+					} else usage("Missing number of blocks in flight.");
 				} else if (args[i].equals("-maxMaf")) {
 					if ((i + 1) < args.length) {
 						maxMaf = Gpr.parseDoubleSafe(args[++i]);
@@ -453,6 +648,57 @@ public class Askat implements CommandLine {
 						else if (kinStr.equals("avg")) kinshipMethod = KinshipMethod.CHROMOSOME_AVG;
 						else if (kinStr.equals("block")) kinshipMethod = KinshipMethod.BLOCK;
 					} else usage("Missing kinship type.");
+				} else if (args[i].equalsIgnoreCase("-javaAskat")) {
+					javaAskat = true;
+				} else if (args[i].equalsIgnoreCase("-javaKin")) {
+					javaKinship = true;
+				} else if (args[i].equalsIgnoreCase("-reml")) {
+					reml = true;
+				} else if (args[i].equalsIgnoreCase("-rWorkers")) {
+					rWorkers = true;
+				} else if (args[i].equalsIgnoreCase("-out")) {
+					if ((i + 1) < args.length) resultsFile = args[++i];
+					else usage("Missing results file.");
+				} else if (args[i].equalsIgnoreCase("-top")) {
+					if ((i + 1) < args.length) {
+						topK = Gpr.parseIntSafe(args[++i]);
+						if (topK < 0) usage("Number of top results must be a non-negative number.");
+					} else usage("Missing number of top results.");
+				} else if (args[i].equalsIgnoreCase("-metrics")) {
+					if ((i + 1) < args.length) metricsFile = args[++i];
+					else usage("Missing metrics file.");
+				} else if (args[i].equalsIgnoreCase("-metricsInterval")) {
+					if ((i + 1) < args.length) {
+						metricsInterval = Gpr.parseIntSafe(args[++i]);
+						if (metricsInterval <= 0) usage("Metrics interval must be a positive number.");
+					} else usage("Missing metrics interval.");
+				} else if (args[i].equalsIgnoreCase("-perm")) {
+					if ((i + 1) < args.length) {
+						permutations = Gpr.parseIntSafe(args[++i]);
+						if (permutations <= 0) usage("Number of permutations must be a positive number.");
+					} else usage("Missing number of permutations.");
+				} else if (args[i].equalsIgnoreCase("-permStop")) {
+					if ((i + 1) < args.length) {
+						permutationsMinExceed = Gpr.parseIntSafe(args[++i]);
+						if (permutationsMinExceed <= 0) usage("Number of exceedances must be a positive number.");
+					} else usage("Missing number of exceedances.");
+				} else if (args[i].equalsIgnoreCase("-pheno")) {
+					if ((i + 1) < args.length) phenotypesFile = args[++i];
+					else usage("Missing phenotypes file.");
+				} else if (args[i].equalsIgnoreCase("-resume")) {
+					resume = true;
+				} else if (args[i].equalsIgnoreCase("-step")) {
+					if ((i + 1) < args.length) {
+						windowStep = Gpr.parseIntSafe(args[++i]);
+						if (windowStep <= 0) usage("Window step must be a positive number.");
+					} else usage("Missing window step.");
+				} else if (args[i].equalsIgnoreCase("-seed")) {
+					if ((i + 1) < args.length) seed = Gpr.parseLongSafe(args[++i]);
+					else usage("Missing random seed.");
+				} else if (args[i].equalsIgnoreCase("-stream")) {
+					streamVcf = true;
+				} else if (args[i].equalsIgnoreCase("-saveTped")) {
+					saveTped = true;
 				} else if (args[i].equalsIgnoreCase("-onlySnp")) {
 					onlySnp = true;
 				} else if (args[i].equalsIgnoreCase("-pACC")) { // UPD: add p-value accuracy option to improve with R-function "davies" numerical precision
@@ -460,6 +706,9 @@ public class Askat implements CommandLine {
 						pACC = Gpr.parseDoubleSafe(args[++i]);
 						if (pACC <= 0) usage("Accuracy must be a positive number.");
 					} else usage("Missing accuracy value.");
+				} else if (args[i].equalsIgnoreCase("-worker")) {
+					if ((i + 1) < args.length) workerDir = args[++i];
+					else usage("Missing queue directory.");
 				} else usage("Unknow option '" + args[i] + "'");
 			} else if (genotypeName.isEmpty()) genotypeName = args[i];
 			else usage("Unknow parameter '" + args[i] + "'");
@@ -468,6 +717,70 @@ public class Askat implements CommandLine {
 		// Sanity checks
 		if (genotypeName.isEmpty()) usage("Missing genotypeName parameter");
 		if ((blockSize < subBlockSize) || (blockSize % subBlockSize != 0)) usage("Block size (" + blockSize + ") must be a multiple of sub-block size (" + subBlockSize + ")");
+		if (windowStep > subBlockSize) usage("Window step (" + windowStep + ") must not be larger than sub-block size (" + subBlockSize + ")");
+		if (kinshipMethod == KinshipMethod.CHROMOSOME_AVG) javaKinship = true; // Leave one chromosome out kinship is only calculated in Java
+		if (phenotypesFile != null) javaKinship = javaAskat = true; // Multi-phenotype mode shares the eigen-decomposition between phenotypes, this is only done in Java
+		if (permutations > 0) javaAskat = true; // Empirical p-values reuse projected genotypes, this is only done in Java
+		if ((coordinatorDir != null) && (workerDir != null)) usage("Options '-coordinator' and '-worker' are mutually exclusive");
+		if (((coordinatorDir != null) || (workerDir != null)) && (kinshipMethod == KinshipMethod.CHROMOSOME_AVG)) usage("Multi-node runs ('-coordinator' / '-worker') cannot use 'leave one chromosome out' kinship ('-kin avg')");
+	}
+
+	/**
+	 * Journal fingerprint: Hash of input files and all parameters that change
+	 * how the input is split into batches (i.e. journal keys) or the results
+	 */
+	String journalFingerprint() {
+		try {
+			if (verbose) Timer.showStdErr("Calculating journal fingerprint");
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+			// Parameters
+			String params = "version:" + VERSION_SHORT //
+					+ "\tsb:" + subBlockSize //
+					+ "\tstep:" + getWindowStep() //
+					+ "\tblockSize:" + blockSize //
+					+ "\tp:" + numWorkers //
+					+ "\tmaxMaf:" + maxMaf //
+					+ "\tminVar:" + minVariants //
+					+ "\tuseMissing:" + useMissing //
+					+ "\tkin:" + kinshipMethod //
+					+ "\tjavaKinship:" + javaKinship //
+					+ "\tjavaAskat:" + javaAskat //
+					+ "\treml:" + reml //
+					+ "\trWorkers:" + rWorkers //
+					+ "\tonlySnp:" + onlySnp //
+					+ "\tperm:" + permutations + "," + permutationsMinExceed + "," + seed //
+					+ "\tpACC:" + pACC //
+					+ "\tintervals:" + (bedFile != null) //
+					+ "\n";
+			md.update(params.getBytes());
+
+			// Input files
+			KinshipCache.update(md, tfamFile);
+			KinshipCache.update(md, vcfStream != null ? genotypeName + ".vcf" : tpedFile);
+			if (bedFile != null) KinshipCache.update(md, bedFile);
+			if (phenotypesFile != null) KinshipCache.update(md, phenotypesFile);
+
+			// Convert to hex
+			StringBuilder fingerprint = new StringBuilder();
+			for (byte b : md.digest())
+				fingerprint.append(String.format("%02x", b & 0xff));
+			return fingerprint.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException("Error calculating journal fingerprint", e);
+		}
+	}
+
+	/**
+	 * Multi-phenotype mode: Load phenotypes (check that all samples have all phenotypes)
+	 */
+	void loadPhenotypes() {
+		if (phenotypesFile == null) return;
+		phenotypes = new Phenotypes(phenotypesFile);
+		phenotypes.get(new Tfam(tfamFile));
+		if (verbose) Timer.showStdErr("Multi-phenotype mode: " + phenotypes.size() + " phenotypes loaded from file '" + phenotypesFile + "': " + phenotypes.getNames());
 	}
 
 	@Override
@@ -494,9 +807,38 @@ public class Askat implements CommandLine {
 		// Check dependencies
 		checkDependencies();
 
+		// Multi-node runs: Only process jobs from the queue (the coordinator creates blocks and merges results)
+		if (workerDir != null) {
+			runWorker();
+			return true;
+		}
+
 		// Create TPED file if it doesn't exist
 		checkOrCreateInputFile();
 
+		// Multi-phenotype mode: Load phenotypes
+		loadPhenotypes();
+
+		// Results
+		if (resultsFile == null) resultsFile = genotypeName + ".results.tsv.gz";
+		resultSink = new ResultSink(resultsFile, topK);
+		resultSink.setVerbose(verbose);
+		resultSink.setMetrics(metrics);
+
+		// Save metrics periodically
+		if (metricsFile != null) {
+			if (verbose) Timer.showStdErr("Saving metrics to file '" + metricsFile + "' every " + metricsInterval + " seconds");
+			metrics.start(metricsFile, metricsInterval);
+		}
+
+		// Journal: Resume from previous run or start a new one
+		journal = new Journal(genotypeName + ".journal");
+		journal.setVerbose(verbose);
+		journal.setFingerprint(journalFingerprint());
+		if (resume) journal.resume(resultSink);
+		else journal.open();
+		resultSink.setJournal(journal);
+
 		// Run algorithm 
 		switch (kinshipMethod) {
 
@@ -515,9 +857,47 @@ public class Askat implements CommandLine {
 
 		}
 
+		// Finish R workers
+		if (rWorkerPool != null) rWorkerPool.close();
+
+		// Save results
+		resultSink.close();
+
+		// Finished: Journal is no longer needed
+		journal.close();
+		if (!debug) journal.delete();
+
+		// Final metrics
+		metrics.close();
+		if (verbose || (metricsFile != null)) Timer.showStdErr(metrics.summary());
+
 		return true;
 	}
 
+	/**
+	 * Multi-node runs: Process jobs from a work queue, until the coordinator finishes
+	 */
+	void runWorker() {
+		WorkQueueWorker worker = new WorkQueueWorker(this, workerDir);
+
+		// Workers on the same directory must not overwrite each other's metrics
+		if (metricsFile != null) {
+			String ext = metricsFile.endsWith(".json") ? ".json" : "";
+			metricsFile = metricsFile.substring(0, metricsFile.length() - ext.length()) + "." + WorkQueueWorker.workerName() + ext;
+			if (verbose) Timer.showStdErr("Saving metrics to file '" + metricsFile + "' every " + metricsInterval + " seconds");
+			metrics.start(metricsFile, metricsInterval);
+		}
+
+		// Input files are available once the coordinator creates the queue
+		worker.waitQueue();
+		loadPhenotypes();
+		worker.run();
+
+		if (rWorkerPool != null) rWorkerPool.close();
+		metrics.close();
+		if (verbose || (metricsFile != null)) Timer.showStdErr(metrics.summary());
+	}
+
 	/**
 	 * Split main file into blocks and Run algorithm on each block
 	 */
@@ -526,24 +906,32 @@ public class Askat implements CommandLine {
 		int countBlock = 0, pos = 0;
 		String blockFileName = null;
 		String chr = "", chrPrev = null, chrBlock = null;
-		BufferedWriter blockFile = null;
+		TpedWriter blockFile = null;
 
 		if (verbose) Timer.showStdErr("Creating blocks & Running algorithm on each block.");
 
+		if (coordinatorDir != null) coordinator = new WorkQueueCoordinator(this, coordinatorDir);
+		else blockPipeline = new BlockPipeline(this, blocksInFlight);
 		try {
 			boolean forceLastBlockRun = false;
 
 			// Iterate over input file
-			LineFileIterator lfi = new LineFileIterator(tpedFile);
-			for (String line : lfi) {
-				// Parse
-				TpedEntry tpedEntry = new TpedEntry(genome, line);
-				double maf = tpedEntry.maf();
+			TpedScanner tped = (vcfStream != null ? new TpedScanner(vcfStream) : new TpedScanner(tpedFile));
+			TpedEntry locoEntry = null; // Reused for every line (only for KinshipMethod.CHROMOSOME_AVG)
+			Metrics.Stage scanStage = metrics.stage("tped_scan"), mafStage = metrics.stage("maf_filter"), writeStage = metrics.stage("block_write");
+			long start = System.nanoTime();
+			while (tped.next()) {
+				scanStage.time(start);
+
+				// Parsed in place: Lines are not converted to Strings
+				start = System.nanoTime();
+				double maf = tped.maf();
+				mafStage.time(start);
 
 				// MAF within limits?
 				if (maf <= maxMaf) {
-					chr = tpedEntry.getChromosomeName();
-					pos = tpedEntry.getStart();
+					chr = tped.getChromosomeName();
+					pos = tped.getPosition();
 
 					// Change of chromosome? 
 					if ((blockFile == null) // Need to open file?
@@ -552,15 +940,17 @@ public class Askat implements CommandLine {
 					) {
 						// Close file
 						if (blockFile != null) {
+							start = System.nanoTime();
 							blockFile.close();
+							writeStage.time(start);
 							if (verbose) Timer.showStdErr("Finished block file " + blockFileName + "'. Number of entries: " + countBlock);
 
 							// Run commands
-							runByBlock(blockFileName);
+							runByBlock(blockFileName, kinshipMethod != KinshipMethod.ALL ? chrBlock : null);
 						}
 
 						// Open a new file
-						blockFileName = genotypeName + "." + "block." + chr + "_" + pos + ".tped";
+						blockFileName = genotypeName + "." + (locoBlocks != null ? "loco." : "block.") + chr + "_" + pos + ".tped";
 						if (verbose) Timer.showStdErr("Creating block '" + blockFileName + "'");
 
 						// If the file already exists, we can skip file creating process.
@@ -571,53 +961,108 @@ public class Askat implements CommandLine {
 							break;
 
 						}
-						blockFile = new BufferedWriter(new FileWriter(new File(blockFileName)));
+						blockFile = new TpedWriter(blockFileName);
 
 						// Prepare for next iteration
 						chrBlock = null;
 						countBlock = 0;
 						chrPrev = chr;
+						if (locoBlocks != null) locoBlocks.put(blockFileName, chr);
 					}
 
 					if (chrBlock == null) chrBlock = chr;
 
-					blockFile.write(line + "\n");
+					start = System.nanoTime();
+					tped.write(blockFile); // Copy line's bytes
+					writeStage.time(start);
+
+					// Accumulate kinship for all chromosomes
+					if (locoBlocks != null) {
+						if (kinshipLoco == null) {
+							kinshipLoco = new KinshipLoco(tped.getNumSamples(), numWorkers, genotypeName + ".");
+							kinshipLoco.setVerbose(verbose);
+						}
+						if (locoEntry == null) locoEntry = new TpedEntry(genome);
+						kinshipLoco.add(locoEntry.set(tped));
+					}
 					countBlock++;
 					remaining++;
 				} else filtered++; // Filter out this line (not a rare variant)
+
+				start = System.nanoTime();
 			}
+			tped.close();
+			metrics.count("variants_passed", remaining);
+			metrics.count("variants_filtered", filtered);
 
 			// Last block (close file and run algorithm)
 			if (forceLastBlockRun || ((blockFile != null) && (countBlock > 0))) {
-				if (blockFile != null) blockFile.close();
-				runByBlock(blockFileName); // Run commands
+				if (blockFile != null) {
+					start = System.nanoTime();
+					blockFile.close();
+					writeStage.time(start);
+				}
+				runByBlock(blockFileName, kinshipMethod != KinshipMethod.ALL ? chrBlock : null); // Run commands
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 
+		// Wait for all blocks to finish
+		if (coordinator != null) coordinator.run();
+		else blockPipeline.run();
+
 		if (verbose) Timer.showStdErr("Done. Filtered out (MAF) : " + filtered + " lines. Remaining: " + remaining + " lines.");
 	}
 
 	/**
-	 * Run all commands for this block / sub-block combination
-	 * @param blockFile
-	 * @param subBlockFiles
+	 * Run algorithm on a block
+	 * @param chr : Block's chromosome (null if the block can have several chromosomes)
 	 */
-	void runByBlock(String blockFile) {
+	void runByBlock(String blockFile, String chr) {
+		// Leave one chromosome out kinship? Blocks can only run after all chromosomes are read (see runChrAvg)
+		if (locoBlocks != null) return;
+
+		// Multi-node runs: Add block to the work queue
+		if (coordinator != null) {
+			if (verbose) Timer.showStdErr("Adding block to work queue: " + blockFile);
+			metrics.count("blocks");
+			coordinator.add(blockFile, chr);
+			return;
+		}
+
 		if (verbose) Timer.showStdErr("Running block: " + blockFile);
 
 		KinshipBlock block = new KinshipBlock(this, blockFile);
 		if (intervals != null) block.setIntervals(intervals);
-		block.kinship();
-		block.askat();
+		metrics.count("blocks");
+		blockPipeline.add(block); // Kinship, then ASKAT (overlapped with other blocks)
 	}
 
 	/**
-	 * Run algorithm performing average kinship by chromosome
+	 * Run algorithm using 'leave one chromosome out' kinship: Each chromosome is 
+	 * tested using a kinship matrix calculated from all other chromosomes
 	 */
 	void runChrAvg() {
-		throw new RuntimeException("Unimplemented algorithm for kinship method " + kinshipMethod);
+		// Create one block per chromosome and accumulate kinship (one pass over all variants)
+		locoBlocks = new LinkedHashMap<String, String>();
+		runByBlock();
+		if (kinshipLoco == null) return; // No variants
+		kinshipLoco.finish();
+
+		// Run blocks
+		blockPipeline = new BlockPipeline(this, blocksInFlight);
+		for (String blockFile : locoBlocks.keySet()) {
+			if (verbose) Timer.showStdErr("Running block: " + blockFile);
+			KinshipBlock block = new KinshipBlock(this, blockFile);
+			if (intervals != null) block.setIntervals(intervals);
+			block.setKinshipLoco(kinshipLoco, locoBlocks.get(blockFile));
+			metrics.count("blocks");
+			blockPipeline.add(block);
+		}
+		blockPipeline.run();
+
+		kinshipLoco.delete();
 	}
 
 	/**
@@ -645,6 +1090,10 @@ public class Askat implements CommandLine {
 		this.debug = debug;
 	}
 
+	public void setResultSink(ResultSink resultSink) {
+		this.resultSink = resultSink;
+	}
+
 	public void setTfamFile(String tfamFile) {
 		this.tfamFile = tfamFile;
 	}
@@ -661,25 +1110,6 @@ public class Askat implements CommandLine {
 		this.verbose = verbose;
 	}
 
-	/**
-	 * Return REF anf ALT values as if they were a SNP
-	 * 
-	 * Important: If the variant is NOT a SNP, we create a 'fake' snp ( A -> T ).
-	 * 			  This is done in order to be able to MAP InDels into PED files and keep compatibility with downstream programs (GenAble).
-	 * 			  Yes, it's an awful hack. YOu've been warned!
-	 */
-	String snpGenotype(VcfEntry ve, VcfGenotype gen, int genoNum) {
-		if (ve.isSnp()) {
-			if (genoNum < 0) return ve.getRef(); // Reference
-			return gen.getGenotype(genoNum);
-		}
-
-		// Create fake SNP "A -> T" and map InDel values to it
-		if (genoNum < 0) return "A"; // Reference
-		if (gen.getGenotype(genoNum).equals(ve.getRef())) return "A"; // ALT[genoNum] == REF 
-		return "T"; // ALT[genoNum] != REF
-	}
-
 	@Override
 	public void usage(String message) {
 		if (message != null) System.err.println("Error: " + message + "\n");
@@ -688,22 +1118,44 @@ public class Askat implements CommandLine {
 		System.err.println("Usage: java -jar " + this.getClass().getSimpleName() + ".jar [options] genotype");
 		System.err.println("Options:");
 		System.err.println("\t-b <num>       : Number of SNPs used for calculating the kinship matrix. Default: " + blockSize);
+		System.err.println("\t-cache <dir>   : Kinship cache directory, shared between runs. Default: none");
+		System.err.println("\t-cacheSize <MB>: Kinship cache size limit (least recently used entries are deleted). Default: " + kinshipCacheSize);
+		System.err.println("\t-coordinator <dir>: Multi-node runs: Create blocks and add them as jobs to a work queue in 'dir' (shared filesystem), then merge results from workers. Default: none");
 		System.err.println("\t-d             : Debug mode (implies verbose)");
 		System.err.println("\t-d1            : Debug mode. Perform only one sub-block calculation and stop");
-		System.err.println("\t-i <bed>       : BED file containing intervals to group SNPs. Default: none");
+		System.err.println("\t-heartbeat <secs>: Multi-node runs: Workers send a heartbeat every 'secs' seconds, jobs are re-queued after " + WorkQueueCoordinator.HEARTBEAT_TIMEOUT_FACTOR + " missing heartbeats (at least " + WorkQueueCoordinator.MIN_HEARTBEAT_TIMEOUT + " seconds). Default: " + heartbeat);
+		System.err.println("\t-i <bed>       : BED file containing intervals to group SNPs. The TPED file must be sorted by chromosome and position (checked before starting). Default: none");
+		System.err.println("\t-inFlight <num>: Maximum number of blocks processed at the same time (kinship of next block is calculated while running ASKAT). Default: " + blocksInFlight);
 		System.err.println("\t-maxMaf        : Maximum MAF (minor allelel frequency). Default: " + maxMaf);
+		System.err.println("\t-metrics <file>: Save per-stage timings, counters and worker utilisation to a file, periodically (Prometheus text format, JSON if file ends with '.json'). Default: none");
+		System.err.println("\t-metricsInterval <secs>: Save metrics every 'secs' seconds. Default: " + metricsInterval);
 		System.err.println("\t-minVar num    : Minimum number of variants per group when using '-i' option. Default: " + minVariants);
 		System.err.println("\t-noDep         : Do not perform dependency check.");
 		System.err.println("\t-h             : Show this help and exit.");
-		System.err.println("\t-kin <type>    : Kinship estimation type. Options {chr, avg, all, block}. Default: " + kinshipMethod);
+		System.err.println("\t-javaAskat     : Calculate ASKAT test in Java (instead of R). Default: " + javaAskat);
+		System.err.println("\t-javaKin       : Calculate kinship matrix and null model in Java (instead of GenABEL and FaST-LMM). Default: " + javaKinship);
+		System.err.println("\t-kin <type>    : Kinship estimation type. Options {chr, avg, all, block}. Note: 'avg' uses 'leave one chromosome out' kinship matrices. Default: " + kinshipMethod);
 		System.err.println("\t-onlySnp       : Use only SNPs when converting VCF to TPED. Default: " + onlySnp);
+		System.err.println("\t-out <file>    : Results file, sorted by position (compressed TSV). Default: 'genotype.results.tsv.gz'");
 		System.err.println("\t-pathBin <dir> : Path to binary programs (e.g. FastLmm). Default: '" + binPath + "'.");
 		System.err.println("\t-pathR <dir>   : Path to R scripts (ASKAT scripts). Default '" + rPath + "'.");
+		System.err.println("\t-perm <num>    : Empirical p-values: Resample null phenotypes (permuted residuals of the null model) up to 'num' times per sub-block. Implies '-javaAskat'. Default: none");
+		System.err.println("\t-permStop <num>: Empirical p-values: Stop resampling a sub-block after 'num' resamples have a statistic at least as large as the observed one. Default: " + permutationsMinExceed);
+		System.err.println("\t-pheno <file>  : Multi-phenotype mode: Test all phenotypes in 'file' (PLINK format: FID, IID, phenotypes), instead of TFAM's phenotype. Implies '-javaKin -javaAskat'. Default: none");
+		System.err.println("\t-reml          : Fit the null model using REML instead of ML (FaST-LMM's default). Only used with '-javaKin'. Default: " + reml);
+		System.err.println("\t-resume        : Resume an interrupted run, skipping batches already finished (see 'genotype.journal'). Input files and parameters must be the same as in the interrupted run. Default: " + resume);
+		System.err.println("\t-rWorkers      : Run ASKAT R script using a pool of long lived R processes (number of processes set by '-p'). Default: " + rWorkers);
+		System.err.println("\t-saveTped      : When streaming a VCF file ('-stream'), also save the TPED file. Default: " + saveTped);
 		System.err.println("\t-sb <num>      : Number of SNPs used for calculating the ASKAT algorithm. Default: " + subBlockSize);
+		System.err.println("\t-step <num>    : Sliding windows: Test overlapping windows of '-sb' SNPs, starting every 'num' SNPs. Default: same as '-sb' (non-overlapping)");
+		System.err.println("\t-seed <num>    : Random seed for resampling ('-perm'). Default: " + seed);
+		System.err.println("\t-stream        : Stream VCF file into the analysis, without creating a TPED file first. Default: " + streamVcf);
+		System.err.println("\t-top <num>     : Show this number of top results (minimum p-values) when finished (verbose mode). Default: " + topK);
 		System.err.println("\t-useMissing    : Use entries with missing genotypes (otherwise they are filtered out). ");
 		System.err.println("\t-useMissingRef : Use entries with missing genotypes marking them as 'reference' instead of 'missing'. ");
 		System.err.println("\t-pACC <double> : Accuracy parameter for the p-value computation, default is 1e-9.");
 		System.err.println("\t-v             : Be verbose.");
+		System.err.println("\t-worker <dir>  : Multi-node runs: Process jobs from the work queue in 'dir', until the coordinator finishes. Use the same options and directory as the coordinator. Default: none");
 		System.exit(-1);
 	}
 
@@ -720,143 +1172,56 @@ public class Askat implements CommandLine {
 	public void vcf2Tped(String vcfFile, String tpedFile) {
 		if (verbose) Timer.showStdErr("Converting file '" + vcfFile + "' to TPED format: '" + tpedFile + "'");
 
-		int countVcf = 1, countTped = 0;
-		int skipMissing = 0, skipNotSnp = 0, skipNonBiAllelic = 0;
-		boolean useSample[] = null; // Which samples should be used
+		Vcf2TpedParallel vcf2Tped = new Vcf2TpedParallel(this, vcfFile); // Convert using 'numWorkers' threads
 		try {
-			// Open files
-			VcfFileIterator vcf = new VcfFileIterator(vcfFile);
 			BufferedWriter tped = new BufferedWriter(new FileWriter(tpedFile));
 
-			// Convert VCF to TPED
-			boolean isHeader = true;
-			for (VcfEntry ve : vcf) {
-				// Process header information
-				if (isHeader) {
-					useSample = vcfAndTfamSamples(vcf); // Consolidate TFAM and VCF samples
-					isHeader = false;
-				}
-
-				// Warning: More than one ALT is not currently supported
-				// Warning: Only SNPs are supported
-				try {
-					if (ve.getAlts().length != 1) { // No bi-allelic? => We skip it
-						skipNonBiAllelic++;
-						if (debug) System.err.println("Skipping line " + vcf.getLineNum() + ": Not bi-allelic");
-					} else if (onlySnp && !ve.isSnp()) { // Not a SNP? skip it if 'onlySnp' is true
-						skipNotSnp++;
-						if (debug) System.err.println("Skipping line " + vcf.getLineNum() + ": Not a SNP");
-					} else {
-						boolean missingValues = false; // Any missing values in this line?
-
-						// Prepare TPED line
-						StringBuilder tpedLine = new StringBuilder();
-
-						int pos = ve.getStart() + 1;
-						String chr = ve.getChromosomeName();
-						String id = "id_" + vcf.getLineNum(); // Create a unique ID
-						if ((id == null) || id.isEmpty()) id = chr + ":" + pos;
-
-						tpedLine.append(chr + " "); // Chromosome
-						tpedLine.append(id + " "); // Identifier
-						tpedLine.append("0 "); // Genetic distance in Moragans
-						tpedLine.append(pos + " "); // Base pair position
-
-						// Add all genotypes
-						int i = 0;
-						for (VcfGenotype gen : ve) {
-							// Should we use this sample?
-							if (useSample[i++]) {
-								if (gen.getGenotypeCode() < 0) { // Missing genotype?
-									missingValues = true;
-									if (useMissing == UseMissing.REFERENCE) {
-										String ref = snpGenotype(ve, gen, -1);
-										tpedLine.append(ref + " " + ref + " "); // Mark both of them as reference
-									} else tpedLine.append("0 0 "); // Mark both as missing
-								} else {
-									String gen0 = snpGenotype(ve, gen, 0);
-									String gen1 = snpGenotype(ve, gen, 1);
-									if (gen.getGenotype().length == 2) tpedLine.append(gen0 + " " + gen1 + " ");
-									else {
-										if (useMissing == UseMissing.REFERENCE) {
-											String ref = ve.getRef();
-											tpedLine.append(ref + " " + ref + " "); // Mark both of them as reference
-										} else tpedLine.append("0 0 "); // Mark both as missing
-									}
-								}
-							}
-						}
-
-						// Remove last space
-						int lastChar = tpedLine.length() - 1;
-						if (tpedLine.charAt(lastChar) == ' ') tpedLine.deleteCharAt(lastChar);
-
-						tpedLine.append('\n');
-
-						// Write to TPED file
-						if ((useMissing != UseMissing.DO_NOT_USE) || !missingValues) {
-							tped.write(tpedLine.toString());
-							countTped++;
-						} else {
-							// Skipped because of misisng values?
-							skipMissing++;
-							if (debug) System.err.println("Skipping line " + vcf.getLineNum() + ": Missing values");
-						}
-					}
-
-					countVcf++;
-					if (verbose && (countVcf % 1000 == 0)) Timer.showStdErr("\tVCF to TPED:\tLine " + countVcf + "\t" + ve.getChromosomeName() + ":" + (ve.getStart() + 1));
-				} catch (Exception e) {
-					Gpr.debug("Exception processing VCF entry : " + ve);
-					e.printStackTrace();
-				}
-
-			}
+			// Convert VCF to TPED (lines are returned in the same order as the VCF file)
+			for (List<String> tpedLines = vcf2Tped.next(); tpedLines != null; tpedLines = vcf2Tped.next())
+				for (String tpedLine : tpedLines)
+					tped.write(tpedLine + "\n"); // Write to TPED file
 
 			// Close
 			tped.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			vcf2Tped.close();
 		}
 
 		// Show some info
-		if (verbose) Timer.showStdErr("Done: " + countVcf + " VCF entries converted to " + countTped + " TPED entries.\nSkipped entries:\n\tNon Biallelic: " + skipNonBiAllelic + "\n\tNon SNPs: " + skipNotSnp + "\n\tMissing genotypes: " + skipMissing);
+		if (verbose) Timer.showStdErr("Done: " + vcf2Tped.getVcf2Tped());
 	}
 
 	/**
 	 * Consolidate VCF and TFAM samples
 	 * @param vcf
+	 * @return Indexes of VCF samples to use (samples also in TFAM file, in VCF order)
 	 */
-	boolean[] vcfAndTfamSamples(VcfFileIterator vcf) {
+	int[] vcfAndTfamSamples(VcfFileIterator vcf) {
 		// Open TFAM file
 		Tfam tfam = new Tfam(tfamFile);
+		SampleIndex samplesTfam = tfam.getSampleIndex();
 
 		// Get VCF samples
-		List<String> sampleNamesVcf = vcf.getSampleNames();
+		SampleIndex samplesVcf = new SampleIndex(vcf.getSampleNames());
 
 		// Sanity check
-		if (sampleNamesVcf.size() != tfam.size()) System.err.println("WARNING: Number of samples in TFAM file and VCF file do not match\n\tSamples in VCF file: " + sampleNamesVcf.size() + "\n\tSamples in TFAM file: " + tfam.size());
-
-		// Create a 'common' list of samples
-		HashSet<String> stfam = new HashSet<String>();
-		stfam.addAll(tfam.getSampleNames());
+		if (samplesVcf.size() != tfam.size()) System.err.println("WARNING: Number of samples in TFAM file and VCF file do not match\n\tSamples in VCF file: " + samplesVcf.size() + "\n\tSamples in TFAM file: " + tfam.size());
 
-		// Create a boolean array
-		boolean use[] = new boolean[sampleNamesVcf.size()];
-		int i = 0;
-		for (String sampleNameVcf : vcf.getSampleNames())
-			use[i++] = stfam.contains(sampleNameVcf);
+		// VCF samples also in TFAM file (in VCF order)
+		int idxVcf[] = samplesVcf.intersect(samplesTfam);
 
 		// Now we have to create a new TFAM file containing ONLY the samples in both VCF and TFAM files 
 		// Note: The new file is sorted in the same order as the VCF.
-		Tfam newTfam = new Tfam();
-		for (String sampleNameVcf : vcf.getSampleNames()) {
-			TfamEntry te = tfam.find(sampleNameVcf);
-			if (te != null) newTfam.add(te);
-		}
+		int idxTfam[] = new int[idxVcf.length];
+		for (int i = 0; i < idxVcf.length; i++)
+			idxTfam[i] = samplesTfam.indexOf(samplesVcf.getId(idxVcf[i]));
 
 		// TFAM Files differ? Save new file
-		if (!tfam.toString().equals(newTfam.toString())) {
+		if (!SampleIndex.isIdentity(idxTfam, tfam.size())) {
+			Tfam newTfam = tfam.select(idxTfam);
+
 			// Sanity check
 			if (verbose) Timer.showStdErr("New TFAM file has " + newTfam.size() + " entries.");
 			if (newTfam.size() <= 0) throw new RuntimeException("New TFAM file has no entries!");
@@ -871,7 +1236,7 @@ public class Askat implements CommandLine {
 			newTfam.save(tfamFile);
 		}
 
-		return use;
+		return idxVcf;
 	}
 
 	//UPD: Override for consistency between old and new version of CommandLine class
@@ -0,0 +1,154 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary 'batch' file writer: Genotypes used by ASKAT (read by 'askat.r', see 'readAskatBin')
+ *
+ * Genotypes are coded as number of non-major alleles (0, 1, 2), same as
+ * TpedEntry.dosage(), and packed 4 per byte (2 bits each, lower bits first).
+ *
+ * File format (little endian):
+ * 		char[4]			magic : "ASKB"
+ * 		int32			version
+ * 		int32			n : Number of samples
+ * 		byte[m][(n+3)/4]	Genotypes, one row per variant
+ * 		string[m]		Chromosome names (zero terminated)
+ * 		string[m]		Variant IDs (zero terminated)
+ * 		string[m]		Genetic distance (zero terminated, as in the TPED file)
+ * 		int32[m]		Positions
+ * 		int32			m : Number of variants
+ *
+ * Variant information and count are at the end of the file, so we can write it
+ * without keeping genotypes in memory.
+ *
+ * @author pcingola
+ */
+public class AskatBatchFile {
+
+	public static final byte MAGIC[] = { 'A', 'S', 'K', 'B' };
+	public static final int VERSION = 1;
+
+	String fileName;
+	int numSamples;
+	int bytesPerVariant;
+	List<String> chrs, ids, geneticDistances;
+	List<Integer> positions;
+	FileChannel channel;
+	FileOutputStream fos;
+	ByteBuffer buffer;
+
+	/**
+	 * Pack genotypes: 4 per byte, 2 bits each (lower bits first)
+	 */
+	public static byte[] pack(byte dosage[]) {
+		return pack(dosage, null);
+	}
+
+	/**
+	 * Pack genotypes, reusing 'packed' if it has the right size
+	 */
+	public static byte[] pack(byte dosage[], byte packed[]) {
+		int len = (dosage.length + 3) / 4;
+		if ((packed == null) || (packed.length != len)) packed = new byte[len];
+		else Arrays.fill(packed, (byte) 0);
+
+		for (int i = 0; i < dosage.length; i++)
+			packed[i / 4] |= dosage[i] << (2 * (i % 4));
+		return packed;
+	}
+
+	/**
+	 * Create a batch file for writing
+	 */
+	public AskatBatchFile(String fileName, int numSamples) {
+		this.fileName = fileName;
+		chrs = new ArrayList<String>();
+		ids = new ArrayList<String>();
+		geneticDistances = new ArrayList<String>();
+		positions = new ArrayList<Integer>();
+		this.numSamples = numSamples;
+		bytesPerVariant = (numSamples + 3) / 4;
+
+		try {
+			fos = new FileOutputStream(new File(fileName));
+			channel = fos.getChannel();
+			buffer = LittleEndian.bufferWrite();
+			buffer.put(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(numSamples);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing batch file '" + fileName + "'", e);
+		}
+	}
+
+	/**
+	 * Add a variant (write genotypes to file)
+	 */
+	public void add(TpedEntry tpedEntry) {
+		if (tpedEntry.getNumSamples() != numSamples) throw new RuntimeException("Number of samples in TPED entry (" + tpedEntry.getNumSamples() + ") does not match number of samples in batch file (" + numSamples + ")");
+
+		try {
+			LittleEndian.put(channel, buffer, tpedEntry.packed());
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing batch file '" + fileName + "'", e);
+		}
+
+		chrs.add(tpedEntry.getChromosomeName());
+		ids.add(tpedEntry.getId());
+		geneticDistances.add(tpedEntry.getGeneticDistance());
+		positions.add(tpedEntry.getStart());
+	}
+
+	/**
+	 * Finish writing: Write variant information and close file
+	 */
+	public void close() {
+		try {
+			putStrings(chrs);
+			putStrings(ids);
+			putStrings(geneticDistances);
+			for (int pos : positions)
+				LittleEndian.flush(channel, buffer, 4).putInt(pos);
+			LittleEndian.flush(channel, buffer, 4).putInt(size());
+			LittleEndian.flush(channel, buffer);
+			fos.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing batch file '" + fileName + "'", e);
+		} finally {
+			channel = null;
+			fos = null;
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Write zero terminated strings
+	 */
+	void putStrings(List<String> strings) throws IOException {
+		for (String str : strings) {
+			for (int i = 0; i < str.length(); i++)
+				LittleEndian.flush(channel, buffer, 1).put((byte) str.charAt(i));
+			LittleEndian.flush(channel, buffer, 1).put((byte) 0);
+		}
+	}
+
+	public int size() {
+		return positions.size();
+	}
+
+}
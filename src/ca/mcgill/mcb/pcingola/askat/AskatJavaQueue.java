@@ -0,0 +1,313 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * A queue of ASKAT sub-block tests executed in-process (no R scripts involved).
+ * This is the Java counterpart of the OsCmdQueue created in 'KinshipBlock.createQueue'
+ *
+ * Results are shown on STDOUT using the same format as 'askat.r'
+ *
+ * Sliding windows: When the window step is smaller than the sub-block size,
+ * overlapping windows of 'subBlockSize' variants are tested every 'step'
+ * variants. Entries are buffered and each task tests WINDOWS_PER_TASK
+ * consecutive windows, projecting every variant only once (see
+ * 'AskatStatistic.Projection'). Windows do not cross block (batch) boundaries.
+ *
+ * Multi-phenotype mode: Each sub-block (or window) is tested for all
+ * phenotypes, genotypes are rotated only once (see 'AskatMultiStatistic').
+ *
+ * @author pcingola
+ */
+public class AskatJavaQueue {
+
+	public static final String POOL_ASKAT_JAVA = "askat_java"; // Metrics: Pool name (also used to name threads)
+	public static final int MAX_PENDING_PER_WORKER = 4; // Limit the number of sub-blocks waiting (memory usage)
+	public static final int WINDOWS_PER_TASK = 16; // Sliding windows: Number of windows tested in each task
+
+	Askat askat;
+	Metrics metrics;
+	AskatMultiStatistic askatStatistic; // One statistic per phenotype (a single one, unless in multi-phenotype mode)
+	ExecutorService executor;
+	Semaphore pending;
+	volatile Throwable error; // First error found while running a sub-block
+	boolean onlyOnce, done;
+	int count, countSkipped;
+	int subBlockSize, windowStep;
+	String windowBlock; // Sliding windows: Current block
+	int windowFirst; // Sliding windows: Index of the first buffered entry within the block (one-based)
+	List<TpedEntry> windowEntries; // Sliding windows: Buffered entries
+	boolean windowTask; // Sliding windows: At least one task was created for the current block
+
+	/**
+	 * @param nullModelPhenoFile : Variance components for each phenotype (only used in multi-phenotype mode)
+	 */
+	public AskatJavaQueue(Askat askat, String nullModelFile, String nullModelPhenoFile, boolean onlyOnce) {
+		this.askat = askat;
+		this.onlyOnce = onlyOnce;
+		subBlockSize = askat.getSubBlockSize();
+		windowStep = askat.getWindowStep();
+		windowEntries = new ArrayList<TpedEntry>();
+
+		if (askat.isVerbose()) Timer.showStdErr("Loading null model from file '" + nullModelFile + "'");
+		Tfam tfam = new Tfam(askat.getTfamFile());
+		NullModel nullModel = new NullModel(nullModelFile);
+		Phenotypes phenotypes = askat.getPhenotypes();
+		if (phenotypes == null) askatStatistic = new AskatMultiStatistic(new AskatStatistic(nullModel, tfam.getPhenotypes(), askat.getpACC()));
+		else {
+			// Multi-phenotype mode: All null models share the same eigen-decomposition
+			List<NullModel> nullModels = nullModel.loadVarianceComponents(nullModelPhenoFile, phenotypes.getNames());
+			double values[][] = phenotypes.get(tfam);
+			AskatStatistic statistics[] = new AskatStatistic[values.length];
+			for (int i = 0; i < values.length; i++)
+				statistics[i] = new AskatStatistic(nullModels.get(i), values[i], askat.getpACC());
+			askatStatistic = new AskatMultiStatistic(phenotypes.getNames().toArray(new String[0]), statistics);
+		}
+
+		// Empirical p-values
+		if (askat.getPermutations() > 0) {
+			if (askat.isVerbose()) Timer.showStdErr("Empirical p-values: Up to " + askat.getPermutations() + " resamples per sub-block, stop after " + askat.getPermutationsMinExceed() + " exceedances");
+			askatStatistic.setPermutation(askat.getPermutations(), askat.getPermutationsMinExceed(), askat.getSeed());
+		}
+
+		// Threads are named, so utilisation can be reported for each one (see Metrics)
+		int numWorkers = askat.getNumWorkers();
+		executor = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+
+			int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				return new Thread(r, POOL_ASKAT_JAVA + "_" + (++count));
+			}
+		});
+		pending = new Semaphore(MAX_PENDING_PER_WORKER * numWorkers);
+		metrics = askat.getMetrics();
+		metrics.pool(POOL_ASKAT_JAVA, numWorkers);
+	}
+
+	/**
+	 * Add entries to the queue. Entries are split into sub-blocks
+	 * @param block : Block (or batch) name
+	 * @param firstIndex : Index of the first entry within the block (one-based)
+	 * @param entries
+	 */
+	public synchronized void add(String block, int firstIndex, List<TpedEntry> entries) {
+		if (isWindows()) {
+			addWindows(block, firstIndex, entries);
+			return;
+		}
+
+		for (int i = 0; (i < entries.size()) && !done; i += subBlockSize) {
+			int max = Math.min(entries.size(), i + subBlockSize);
+			add(block, firstIndex + i, firstIndex + max - 1, new ArrayList<TpedEntry>(entries.subList(i, max)));
+			done = onlyOnce; // Only one sub-block?
+		}
+	}
+
+	/**
+	 * Add one sub-block
+	 * @param subBlock : Entries in this sub-block
+	 */
+	void add(final String block, final int subBlockStart, final int subBlockEnd, final List<TpedEntry> subBlock) {
+		if (error != null) throw new RuntimeException("Error calculating ASKAT", error);
+
+		// Already done in a previous run? (see Journal)
+		final String journalKey = journalKey(block, subBlockStart);
+		final Journal journal = askat.getJournal();
+		if ((journal != null) && journal.isDone(journalKey)) {
+			countSkipped++;
+			return;
+		}
+
+		pending.acquireUninterruptibly();
+		final long queued = System.nanoTime();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				metrics.time("queue_wait", queued);
+				try {
+					List<AskatResult> results = askatStatistic.test(subBlock);
+					for (AskatResult result : results) {
+						result.block = block;
+						result.subBlockStart = subBlockStart;
+						result.subBlockEnd = subBlockEnd;
+						show(result, journalKey);
+					}
+					if (journal != null) journal.done(journalKey);
+				} catch (Throwable t) {
+					if (error == null) error = t;
+				} finally {
+					finished(start);
+					pending.release();
+				}
+			}
+		});
+
+		count++;
+	}
+
+	/**
+	 * Sliding windows: Buffer entries and create a task every WINDOWS_PER_TASK windows
+	 */
+	void addWindows(String block, int firstIndex, List<TpedEntry> entries) {
+		if (!block.equals(windowBlock)) {
+			flushWindows();
+			windowBlock = block;
+			windowFirst = firstIndex;
+			windowTask = false;
+		}
+		windowEntries.addAll(entries);
+
+		int taskSize = subBlockSize + (WINDOWS_PER_TASK - 1) * windowStep; // Number of entries needed for a task
+		int consumed = WINDOWS_PER_TASK * windowStep; // Entries no longer needed after the task (next window starts here)
+		while ((windowEntries.size() >= taskSize) && !done) {
+			addWindows(windowBlock, windowFirst, new ArrayList<TpedEntry>(windowEntries.subList(0, taskSize)), WINDOWS_PER_TASK);
+			windowEntries = new ArrayList<TpedEntry>(windowEntries.subList(consumed, windowEntries.size()));
+			windowFirst += consumed;
+			windowTask = true;
+		}
+	}
+
+	/**
+	 * Sliding windows: Create a task testing 'numWindows' windows
+	 * @param firstIndex : Index of the first entry within the block (one-based)
+	 */
+	void addWindows(final String block, final int firstIndex, final List<TpedEntry> entries, int numWindows) {
+		if (error != null) throw new RuntimeException("Error calculating ASKAT", error);
+		if (onlyOnce) numWindows = 1;
+		done = onlyOnce;
+
+		// Windows already done in a previous run? (see Journal)
+		final Journal journal = askat.getJournal();
+		final boolean windowDone[] = new boolean[numWindows];
+		int countDone = 0;
+		for (int w = 0; w < numWindows; w++) {
+			windowDone[w] = (journal != null) && journal.isDone(journalKey(block, firstIndex + w * windowStep));
+			if (windowDone[w]) countDone++;
+		}
+		countSkipped += countDone;
+		count += numWindows - countDone;
+		if (countDone == numWindows) return;
+
+		pending.acquireUninterruptibly();
+		final long queued = System.nanoTime();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				long taskStart = System.nanoTime();
+				metrics.time("queue_wait", queued);
+				try {
+					AskatStatistic.Projection projections[] = askatStatistic.projections(AskatStatistic.dosage(entries));
+
+					for (int w = 0; w < windowDone.length; w++) {
+						if (windowDone[w]) continue;
+						int start = w * windowStep;
+						int end = Math.min(entries.size(), start + subBlockSize) - 1;
+						String journalKey = journalKey(block, firstIndex + start);
+						for (AskatResult result : askatStatistic.test(projections, entries, start, end)) {
+							result.block = block;
+							result.subBlockStart = firstIndex + start;
+							result.subBlockEnd = firstIndex + end;
+							show(result, journalKey);
+						}
+						if (journal != null) journal.done(journalKey);
+					}
+				} catch (Throwable t) {
+					if (error == null) error = t;
+				} finally {
+					finished(taskStart);
+					pending.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Metrics: A task started at 'start' (see System.nanoTime()) has finished
+	 */
+	void finished(long start) {
+		long elapsed = System.nanoTime() - start;
+		metrics.stage(POOL_ASKAT_JAVA).add(elapsed);
+		metrics.busy(POOL_ASKAT_JAVA, Thread.currentThread().getName(), elapsed);
+	}
+
+	/**
+	 * Sliding windows: Create a task for all buffered entries (end of block)
+	 */
+	void flushWindows() {
+		int size = windowEntries.size();
+
+		// The previous task's last window already reached the end of the block? Nothing left to test (same as askat.r's 'sbIdx')
+		boolean covered = windowTask && (size <= subBlockSize - windowStep);
+
+		if ((size > 0) && !done && !covered) {
+			// Windows start every 'windowStep' entries, the last one reaches the end of the block
+			int numWindows = 1;
+			if (size > subBlockSize) numWindows += (size - subBlockSize + windowStep - 1) / windowStep;
+			addWindows(windowBlock, windowFirst, windowEntries, numWindows);
+		}
+
+		windowBlock = null;
+		windowEntries = new ArrayList<TpedEntry>();
+	}
+
+	/**
+	 * Are we testing overlapping (sliding) windows?
+	 */
+	boolean isWindows() {
+		return windowStep < subBlockSize;
+	}
+
+	/**
+	 * Key used to journal a sub-block
+	 */
+	String journalKey(String block, int subBlockStart) {
+		return block + ":" + subBlockStart;
+	}
+
+	/**
+	 * Run queue: Wait for all sub-blocks to finish
+	 */
+	public void run() {
+		synchronized (this) {
+			flushWindows();
+		}
+		executor.shutdown();
+
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (error != null) throw new RuntimeException("Error calculating ASKAT", error);
+		if (askat.isVerbose()) Timer.showStdErr("Finished " + count + " sub-blocks." + (countSkipped > 0 ? " Skipped " + countSkipped + " sub-blocks (already done)." : ""));
+	}
+
+	/**
+	 * Show results (STDOUT)
+	 */
+	void show(AskatResult result, String journalKey) {
+		synchronized (System.out) {
+			System.out.println(result);
+			if (!result.converge) System.out.println(AskatResult.WARNING_NOT_CONVERGED);
+		}
+		askat.getResultSink().add(result, journalKey);
+	}
+
+	public int size() {
+		return count;
+	}
+}
@@ -0,0 +1,107 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ASKAT test for several phenotypes sharing the same kinship matrix.
+ *
+ * Each phenotype has its own null model (variance components), but all
+ * of them use the same eigen-decomposition of the kinship matrix. So each
+ * sub-block is rotated only once (K.sqrt U, the expensive part), and then
+ * scaled and scored for every phenotype (see AskatStatistic).
+ *
+ * A single phenotype is also supported: In that case results have no
+ * phenotype name, so the output is the same as AskatStatistic's.
+ *
+ * @author pcingola
+ */
+public class AskatMultiStatistic {
+
+	String names[]; // Phenotype names (null if there is only one phenotype)
+	AskatStatistic statistics[]; // One statistic per phenotype
+
+	/**
+	 * Single phenotype
+	 */
+	public AskatMultiStatistic(AskatStatistic statistic) {
+		statistics = new AskatStatistic[] { statistic };
+	}
+
+	/**
+	 * Several phenotypes
+	 * @param names : Phenotype names
+	 * @param statistics : One statistic per phenotype. All null models must share the same eigenvectors
+	 */
+	public AskatMultiStatistic(String names[], AskatStatistic statistics[]) {
+		if (names.length != statistics.length) throw new RuntimeException("Number of phenotype names (" + names.length + ") does not match number of statistics (" + statistics.length + ")");
+		for (AskatStatistic statistic : statistics)
+			if (statistic.getNullModel().getU() != statistics[0].getNullModel().getU()) throw new RuntimeException("All phenotypes must share the same eigen-decomposition");
+
+		this.names = names;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Projections for all phenotypes. Genotypes are rotated only once
+	 */
+	public AskatStatistic.Projection[] projections(byte dosage[][]) {
+		AskatStatistic.Projection projections[] = new AskatStatistic.Projection[statistics.length];
+		if (statistics.length == 1) {
+			projections[0] = statistics[0].new Projection(dosage);
+			return projections;
+		}
+
+		double g[][] = statistics[0].rotate(dosage);
+		for (int i = 0; i < statistics.length; i++)
+			projections[i] = statistics[i].new Projection(g);
+		return projections;
+	}
+
+	/**
+	 * Also calculate empirical p-values for all phenotypes (see AskatPermutation)
+	 */
+	public void setPermutation(int maxPermutations, int minExceed, long seed) {
+		for (AskatStatistic statistic : statistics)
+			statistic.setPermutation(maxPermutations, minExceed, seed);
+	}
+
+	public int size() {
+		return statistics.length;
+	}
+
+	/**
+	 * Perform ASKAT test on a sub-block of TPED entries, for all phenotypes
+	 */
+	public List<AskatResult> test(List<TpedEntry> entries) {
+		if (entries.isEmpty()) throw new RuntimeException("Empty sub-block!");
+		return test(projections(AskatStatistic.dosage(entries)), entries, 0, entries.size() - 1);
+	}
+
+	/**
+	 * Perform ASKAT test on a window of projected variants, for all phenotypes
+	 * @param projections : One projection per phenotype (see 'projections()')
+	 * @param start : First variant (zero-based)
+	 * @param end : Last variant (zero-based, inclusive)
+	 */
+	List<AskatResult> test(AskatStatistic.Projection projections[], int start, int end) {
+		List<AskatResult> results = new ArrayList<AskatResult>(statistics.length);
+		for (int i = 0; i < statistics.length; i++) {
+			AskatResult result = statistics[i].test(projections[i], start, end);
+			if (names != null) result.phenotype = names[i];
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Perform ASKAT test on a window of projected TPED entries, for all phenotypes
+	 */
+	public List<AskatResult> test(AskatStatistic.Projection projections[], List<TpedEntry> entries, int start, int end) {
+		List<AskatResult> results = test(projections, start, end);
+		for (AskatResult result : results)
+			AskatStatistic.setVariants(result, entries, start, end);
+		return results;
+	}
+
+}
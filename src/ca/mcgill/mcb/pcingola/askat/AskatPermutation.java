@@ -0,0 +1,161 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Empirical p-values for ASKAT's Q statistic, by resampling null phenotypes.
+ *
+ * Null phenotypes are consistent with the fitted mixed model: In the
+ * eigenbasis of U (scaled by D.0^(-1/2)) the phenotype residuals
+ *
+ * 		R = P.0.tilde Y.tilde
+ *
+ * are (approximately) independent with equal variance under the null
+ * hypothesis, so they are permuted and projected back using P.0.tilde.
+ * Since a resample R* is orthogonal to X.tilde, its statistic is just
+ *
+ * 		Q* = |H R*|^2 / (2 s2)					(H = K.sqrt U D.0^(-1/2), see AskatStatistic)
+ *
+ * so resamples reuse the projected genotypes 'H' of the sub-block
+ * (nothing is rotated again). Each variant's scores 'H R*' are cached in
+ * the projection, so overlapping windows share them too.
+ *
+ * Resamples are created in chunks of CHUNK_SIZE. Chunk 'c' only depends on
+ * 'seed' and 'c', so all sub-blocks are tested against the same null
+ * phenotypes (as if the phenotype file was permuted once) and results are
+ * reproducible regardless of the number of threads.
+ *
+ * Adaptive stopping (Besag & Clifford, 1991): Resampling stops as soon
+ * as 'minExceed' resamples have Q* >= Q (the interval is clearly not
+ * significant) and the p-value is 'minExceed / numResamples'. Otherwise
+ * it goes on up to 'maxPermutations' and the p-value is '(k + 1) / (B + 1)'.
+ *
+ * @author pcingola
+ */
+public class AskatPermutation {
+
+	public static final int CHUNK_SIZE = 100; // Number of resamples created (and checked for stopping) at once
+	public static final int DEFAULT_MIN_EXCEED = 10;
+	public static final long DEFAULT_SEED = 20140101;
+
+	AskatStatistic statistic;
+	int maxPermutations; // Maximum number of resamples
+	int minExceed; // Stop after this number of resamples with Q* >= Q
+	long seed;
+	double residual[]; // R = P.0.tilde Y.tilde
+
+	public AskatPermutation(AskatStatistic statistic, int maxPermutations, int minExceed, long seed) {
+		if (maxPermutations <= 0) throw new RuntimeException("Number of permutations must be a positive number");
+		if (minExceed <= 0) throw new RuntimeException("Minimum number of exceedances must be a positive number");
+
+		this.statistic = statistic;
+		this.maxPermutations = maxPermutations;
+		this.minExceed = minExceed;
+		this.seed = seed;
+
+		// Residuals: R = Y.tilde - Z X.tilde (X.tilde^T Y.tilde)
+		int n = statistic.n;
+		residual = new double[n];
+		for (int k = 0; k < n; k++)
+			residual[k] = statistic.yTilde[k] - statistic.z * statistic.xTilde[k] * statistic.xTildeYTilde;
+	}
+
+	/**
+	 * Number of chunks needed for 'maxPermutations' resamples
+	 */
+	int numChunks() {
+		return (maxPermutations + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	/**
+	 * Create the resamples in one chunk: Permuted residuals, projected by P.0.tilde
+	 * @return An array 'r[b][k]' (resample 'b', component 'k')
+	 */
+	double[][] resamples(int chunk) {
+		int n = residual.length;
+		int size = Math.min(CHUNK_SIZE, maxPermutations - chunk * CHUNK_SIZE);
+		double xTilde[] = statistic.xTilde;
+		double z = statistic.z;
+
+		Random random = new Random(seed + chunk);
+		double r[][] = new double[size][];
+		for (int b = 0; b < size; b++) {
+			// Permute residuals (Fisher-Yates shuffle)
+			double rb[] = residual.clone();
+			for (int k = n - 1; k > 0; k--) {
+				int l = random.nextInt(k + 1);
+				double tmp = rb[k];
+				rb[k] = rb[l];
+				rb[l] = tmp;
+			}
+
+			// Project: P.0.tilde R* = R* - Z X.tilde (X.tilde^T R*)
+			double zxr = z * statistic.dot(xTilde, rb);
+			for (int k = 0; k < n; k++)
+				rb[k] -= zxr * xTilde[k];
+			r[b] = rb;
+		}
+		return r;
+	}
+
+	/**
+	 * Scores 'H R*' for all variants in a projection and all resamples in a chunk.
+	 * They are calculated once and cached in the projection
+	 * @return An array 's[j][b]' (variant 'j', resample 'b')
+	 */
+	double[][] scores(AskatStatistic.Projection projection, int chunk) {
+		if (projection.permutationScores == null) projection.permutationScores = new ArrayList<double[][]>();
+		ArrayList<double[][]> cache = projection.permutationScores;
+		while (cache.size() <= chunk)
+			cache.add(null);
+
+		double s[][] = cache.get(chunk);
+		if (s != null) return s;
+
+		double r[][] = resamples(chunk);
+		double h[][] = projection.h;
+		s = new double[h.length][r.length];
+		for (int j = 0; j < h.length; j++)
+			for (int b = 0; b < r.length; b++)
+				s[j][b] = statistic.dot(h[j], r[b]);
+
+		cache.set(chunk, s);
+		return s;
+	}
+
+	/**
+	 * Calculate an empirical p-value for a window of projected variants
+	 * and add it to the result (the statistic 'result.q' must already be set)
+	 * @param start : First variant (zero-based)
+	 * @param end : Last variant (zero-based, inclusive)
+	 */
+	public void test(AskatResult result, AskatStatistic.Projection projection, int start, int end) {
+		double q2s2 = result.q * 2.0 * statistic.nullModel.getNullResidualVar(); // Compare |H R*|^2 to |H R|^2
+		int count = 0, exceed = 0;
+		int numChunks = numChunks();
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			double s[][] = scores(projection, chunk);
+			int size = s[start].length;
+
+			for (int b = 0; b < size; b++) {
+				double qb = 0;
+				for (int j = start; j <= end; j++)
+					qb += s[j][b] * s[j][b];
+				if (qb >= q2s2) exceed++;
+			}
+			count += size;
+
+			// Adaptive stopping: Clearly not significant
+			if (exceed >= minExceed) {
+				result.pValuePerm = ((double) exceed) / count;
+				result.numPermutations = count;
+				return;
+			}
+		}
+
+		result.pValuePerm = (exceed + 1.0) / (count + 1.0);
+		result.numPermutations = count;
+	}
+
+}
@@ -0,0 +1,297 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+
+/**
+ * Result from an ASKAT test on one sub-block
+ *
+ * Note: The 'toString()' method creates the same 'ASKAT_RESULTS:' line
+ * as 'askat.r', so downstream scripts can parse either one. Lines can be
+ * parsed back into records (see 'parse()').
+ *
+ * @author pcingola
+ */
+public class AskatResult {
+
+	public static final String WARNING_NOT_CONVERGED = Askat.ASKAT_WARNING + " p-value calculation did not converge for this block, try to set pACC to a different value, default is 1e-9";
+	public static final String TSV_HEADER = "chrStart\tposStart\tchrEnd\tposEnd\tidStart\tidEnd\tblock\tsubBlockStart\tsubBlockEnd\tpValue\tQ\tpolygenicVc\tenvVc\tconverge\tlambda";
+	public static final String TSV_HEADER_PHENOTYPE = TSV_HEADER + "\tphenotype"; // Multi-phenotype mode: Results have an additional column
+	public static final String TSV_HEADER_PERMUTATION = TSV_HEADER_PHENOTYPE + "\tpValuePerm\tpermutations"; // Empirical p-values: Additional columns (phenotype is empty if not used)
+
+	/**
+	 * Compare by position (chromosome, start, end), then block and sub-block
+	 */
+	public static final Comparator<AskatResult> POSITION_COMPARATOR = new Comparator<AskatResult>() {
+
+		@Override
+		public int compare(AskatResult r1, AskatResult r2) {
+			int cmp = compareChr(r1.chrStart, r2.chrStart);
+			if (cmp != 0) return cmp;
+			if (r1.posStart != r2.posStart) return r1.posStart < r2.posStart ? -1 : 1;
+			cmp = compareChr(r1.chrEnd, r2.chrEnd);
+			if (cmp != 0) return cmp;
+			if (r1.posEnd != r2.posEnd) return r1.posEnd < r2.posEnd ? -1 : 1;
+			cmp = r1.block.compareTo(r2.block);
+			if (cmp != 0) return cmp;
+			if (r1.subBlockStart != r2.subBlockStart) return r1.subBlockStart - r2.subBlockStart;
+			if ((r1.phenotype == null) || (r2.phenotype == null)) return (r1.phenotype == null ? 0 : 1) - (r2.phenotype == null ? 0 : 1);
+			return r1.phenotype.compareTo(r2.phenotype);
+		}
+	};
+
+	/**
+	 * Compare by p-value (NaN is larger than any p-value)
+	 */
+	public static final Comparator<AskatResult> PVALUE_COMPARATOR = new Comparator<AskatResult>() {
+
+		@Override
+		public int compare(AskatResult r1, AskatResult r2) {
+			return Double.compare(r1.pValue, r2.pValue);
+		}
+	};
+
+	// All members are public, this is just a 'record'
+	public String block; // Block (or batch) name
+	public String phenotype; // Phenotype name (only in multi-phenotype mode, null otherwise)
+	public int subBlockStart, subBlockEnd; // Sub-block indexes (one-based, inclusive)
+	public String chrStart, chrEnd, idStart, idEnd;
+	public int posStart, posEnd; // Positions (one-based, as in TPED files)
+	public double pValue = Double.NaN;
+	public double pValueLiu = Double.NaN; // Liu's approximation
+	public double pValuePerm = Double.NaN; // Empirical p-value (see AskatPermutation)
+	public int numPermutations; // Number of resamples used for 'pValuePerm' (zero if not calculated)
+	public double q, polygenicVc, envVc;
+	public double lambda[];
+	public boolean converge;
+	public int ifault; // Davies' method error code (see ChiSquareMixture)
+	public double integrationError; // Davies' method integration error
+
+	/**
+	 * Compare chromosome names: Numbers are sorted numerically (with or without 'chr' prefix) and before other names
+	 */
+	public static int compareChr(String chr1, String chr2) {
+		String c1 = chr1.toLowerCase().startsWith("chr") ? chr1.substring(3) : chr1;
+		String c2 = chr2.toLowerCase().startsWith("chr") ? chr2.substring(3) : chr2;
+		int n1 = Gpr.parseIntSafe(c1), n2 = Gpr.parseIntSafe(c2);
+		if ((n1 > 0) && (n2 > 0) && (n1 != n2)) return n1 < n2 ? -1 : 1;
+		if ((n1 > 0) != (n2 > 0)) return n1 > 0 ? -1 : 1;
+		return c1.compareTo(c2);
+	}
+
+	/**
+	 * Format a number the same way R's 'cat' does (7 significant digits)
+	 */
+	public static String num(double d) {
+		if (Double.isNaN(d)) return "NA";
+		if (Double.isInfinite(d)) return d > 0 ? "Inf" : "-Inf";
+		if (d == 0) return "0";
+
+		String str = String.format(Locale.US, "%.7g", d);
+
+		// Remove trailing zeros from mantissa
+		int exp = str.indexOf('e');
+		String mantissa = exp >= 0 ? str.substring(0, exp) : str;
+		String exponent = exp >= 0 ? str.substring(exp) : "";
+		if (mantissa.indexOf('.') >= 0) {
+			int end = mantissa.length();
+			while (mantissa.charAt(end - 1) == '0')
+				end--;
+			if (mantissa.charAt(end - 1) == '.') end--;
+			mantissa = mantissa.substring(0, end);
+		}
+
+		return mantissa + exponent;
+	}
+
+	/**
+	 * Parse a number formatted by 'num()' (or R's 'cat')
+	 */
+	public static double parseNum(String str) {
+		str = str.trim();
+		if (str.equals("NA") || str.equals("NaN") || str.isEmpty()) return Double.NaN;
+		if (str.equals("Inf")) return Double.POSITIVE_INFINITY;
+		if (str.equals("-Inf")) return Double.NEGATIVE_INFINITY;
+		return Double.parseDouble(str);
+	}
+
+	/**
+	 * Parse an 'ASKAT_RESULTS:' line (either from 'askat.r' or from 'toString()')
+	 * @return A result or null if the line is not a result line
+	 */
+	public static AskatResult parse(String line) {
+		line = line.trim();
+		if (!line.startsWith(Askat.ASKAT_RESULTS)) return null;
+
+		AskatResult result = new AskatResult();
+		String fields[] = line.split("\t");
+		List<Double> lambda = null;
+		for (int i = 1; i < fields.length; i++) {
+			String label = fields[i];
+			String value = (i + 1 < fields.length ? fields[i + 1].trim() : "");
+
+			if (label.equals("p-value:")) {
+				result.pValue = parseNum(value);
+				i++;
+			} else if (label.equals("p-value.perm:")) {
+				result.pValuePerm = parseNum(value);
+				i++;
+			} else if (label.equals("permutations:")) {
+				result.numPermutations = Gpr.parseIntSafe(value);
+				i++;
+			} else if (label.equals("chr:pos:")) {
+				String startEnd[] = value.split(" - ");
+				result.chrStart = chr(startEnd[0]);
+				result.posStart = pos(startEnd[0]);
+				result.chrEnd = chr(startEnd[startEnd.length - 1]);
+				result.posEnd = pos(startEnd[startEnd.length - 1]);
+				i++;
+			} else if (label.equals("Block:")) {
+				result.block = value;
+				i++;
+			} else if (label.equals("Phenotype:")) {
+				result.phenotype = value;
+				i++;
+			} else if (label.equals("Sub-Block:")) {
+				String startEnd[] = value.split(" - ");
+				result.subBlockStart = Gpr.parseIntSafe(startEnd[0].trim());
+				result.subBlockEnd = Gpr.parseIntSafe(startEnd[startEnd.length - 1].trim());
+				i++;
+			} else if (label.equals("Id:")) {
+				String startEnd[] = value.split(" - ");
+				result.idStart = startEnd[0].trim();
+				result.idEnd = startEnd[startEnd.length - 1].trim();
+				i++;
+			} else if (label.equals("Q:")) {
+				result.q = parseNum(value);
+				i++;
+			} else if (label.equals("Polygenic.VC:")) {
+				result.polygenicVc = parseNum(value);
+				i++;
+			} else if (label.equals("Env.VC:")) {
+				result.envVc = parseNum(value);
+				i++;
+			} else if (label.equals("lambda:")) {
+				lambda = new ArrayList<Double>(); // Values follow, until the next label
+			} else if (label.equals("is converge:")) {
+				result.converge = (parseNum(value) != 0);
+				i++;
+			} else if ((lambda != null) && (result.lambda == null) && !label.trim().isEmpty()) {
+				lambda.add(parseNum(label));
+				continue;
+			}
+
+			// Any label finishes the list of 'lambda' values
+			if ((lambda != null) && (result.lambda == null) && !label.equals("lambda:")) result.lambda = toArray(lambda);
+		}
+		if ((lambda != null) && (result.lambda == null)) result.lambda = toArray(lambda);
+
+		return result;
+	}
+
+	/**
+	 * Parse a line created by 'toTsv()'
+	 */
+	public static AskatResult parseTsv(String line) {
+		String fields[] = line.split("\t", -1);
+		AskatResult result = new AskatResult();
+		result.chrStart = fields[0];
+		result.posStart = Gpr.parseIntSafe(fields[1]);
+		result.chrEnd = fields[2];
+		result.posEnd = Gpr.parseIntSafe(fields[3]);
+		result.idStart = fields[4];
+		result.idEnd = fields[5];
+		result.block = fields[6];
+		result.subBlockStart = Gpr.parseIntSafe(fields[7]);
+		result.subBlockEnd = Gpr.parseIntSafe(fields[8]);
+		result.pValue = parseNum(fields[9]);
+		result.q = parseNum(fields[10]);
+		result.polygenicVc = parseNum(fields[11]);
+		result.envVc = parseNum(fields[12]);
+		result.converge = fields[13].equals("1");
+		if (!fields[14].isEmpty()) {
+			String lambdas[] = fields[14].split(",");
+			result.lambda = new double[lambdas.length];
+			for (int i = 0; i < lambdas.length; i++)
+				result.lambda[i] = parseNum(lambdas[i]);
+		}
+		if ((fields.length > 15) && !fields[15].isEmpty()) result.phenotype = fields[15];
+		if (fields.length > 17) {
+			result.pValuePerm = parseNum(fields[16]);
+			result.numPermutations = Gpr.parseIntSafe(fields[17]);
+		}
+		return result;
+	}
+
+	/**
+	 * Chromosome from a 'chr:pos' string
+	 */
+	static String chr(String chrPos) {
+		chrPos = chrPos.trim();
+		int idx = chrPos.lastIndexOf(':');
+		return idx >= 0 ? chrPos.substring(0, idx) : chrPos;
+	}
+
+	/**
+	 * Position from a 'chr:pos' string
+	 */
+	static int pos(String chrPos) {
+		chrPos = chrPos.trim();
+		int idx = chrPos.lastIndexOf(':');
+		return Gpr.parseIntSafe(chrPos.substring(idx + 1));
+	}
+
+	static double[] toArray(List<Double> list) {
+		double array[] = new double[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(Askat.ASKAT_RESULTS);
+		sb.append("\tp-value:\t" + num(pValue));
+		if (numPermutations > 0) sb.append("\tp-value.perm:\t" + num(pValuePerm) + "\tpermutations:\t" + numPermutations);
+		sb.append("\tchr:pos:\t" + chrStart + ":" + posStart + " - " + chrEnd + ":" + posEnd);
+		sb.append("\tBlock:\t" + block);
+		if (phenotype != null) sb.append("\tPhenotype:\t" + phenotype);
+		sb.append("\tSub-Block:\t" + subBlockStart + " - " + subBlockEnd);
+		sb.append("\tId:\t" + idStart + " - " + idEnd);
+		sb.append("\tQ:\t" + num(q));
+		sb.append("\tPolygenic.VC:\t" + num(polygenicVc));
+		sb.append("\tEnv.VC:\t" + num(envVc));
+		sb.append("\tlambda:");
+		if (lambda != null) {
+			for (double l : lambda)
+				sb.append("\t" + num(l));
+		}
+		sb.append("\tis converge:\t" + (converge ? 1 : 0) + "\t");
+		return sb.toString();
+	}
+
+	/**
+	 * One line in a TSV file (see TSV_HEADER)
+	 */
+	public String toTsv() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(chrStart + "\t" + posStart + "\t" + chrEnd + "\t" + posEnd);
+		sb.append("\t" + idStart + "\t" + idEnd);
+		sb.append("\t" + block + "\t" + subBlockStart + "\t" + subBlockEnd);
+		sb.append("\t" + num(pValue) + "\t" + num(q) + "\t" + num(polygenicVc) + "\t" + num(envVc));
+		sb.append("\t" + (converge ? 1 : 0) + "\t");
+		if (lambda != null) {
+			for (int i = 0; i < lambda.length; i++)
+				sb.append((i > 0 ? "," : "") + num(lambda[i]));
+		}
+		if (numPermutations > 0) sb.append("\t" + (phenotype != null ? phenotype : "") + "\t" + num(pValuePerm) + "\t" + numPermutations);
+		else if (phenotype != null) sb.append("\t" + phenotype);
+		return sb.toString();
+	}
+
+}
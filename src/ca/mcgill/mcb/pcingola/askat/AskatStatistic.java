@@ -0,0 +1,347 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ASKAT score test statistic. This is a Java implementation of the
+ * 'ASKAT()' function in 'askat.r'
+ *
+ * Notation follows 'askat.r':
+ * 		D.0 = Gamma * S + I						(diagonal, stored as a vector)
+ * 		X.tilde = D.0^(-1/2) U^T 1
+ * 		Y.tilde = D.0^(-1/2) U^T Y
+ * 		Z = 1 / (X.tilde^T X.tilde)
+ * 		P.0.tilde = I - Z X.tilde X.tilde^T
+ * 		RM = K.sqrt U D.0^(-1/2) P.0.tilde		(where K.sqrt = diag(w) X^T)
+ * 		W = RM RM^T
+ * 		Q = |RM Y.tilde|^2 / (2 s2)
+ *
+ * Since P.0.tilde is a projection, W = H H^T - Z (H X.tilde)(H X.tilde)^T
+ * with H = K.sqrt U D.0^(-1/2), so we never create n x n matrices.
+ *
+ * The projection H = K.sqrt U D.0^(-1/2) depends on the phenotype only
+ * through D.0 (variance components), so the rotated genotypes 'K.sqrt U'
+ * (see 'rotate()') can be shared by several phenotypes using the same
+ * eigen-decomposition (see AskatMultiStatistic). Y.tilde and Q also depend
+ * on the phenotype, they are calculated for each one.
+ *
+ * @author pcingola
+ */
+public class AskatStatistic {
+
+	public static final double BETA_B = 25; // Weights are 'dbeta(maf, 1, 25)'
+
+	NullModel nullModel;
+	double pAcc; // Accuracy for p-value calculation (Davies' method)
+	int n; // Number of samples
+	double invSqrtD0[]; // Diagonal of 'inv.sqrt.D.0'
+	double xTilde[], yTilde[];
+	double z; // Z = 1 / (X.tilde^T X.tilde)
+	double xTildeYTilde; // X.tilde^T Y.tilde
+	ThreadLocal<ChiSquareMixture> chiSquareMixture; // P-value calculation (one instance per thread, they are reused)
+	AskatPermutation permutation; // Empirical p-values (null if not used)
+
+	/**
+	 * Beta density with parameters 'a=1' and 'b=25', i.e. R's 'dbeta(x, 1, 25)'
+	 */
+	public static double weight(double maf) {
+		if ((maf < 0) || (maf > 1)) return 0;
+		return BETA_B * Math.pow(1.0 - maf, BETA_B - 1);
+	}
+
+	public AskatStatistic(NullModel nullModel, double phenotype[], double pAcc) {
+		this.nullModel = nullModel;
+		this.pAcc = pAcc;
+		n = nullModel.size();
+		if (phenotype.length != n) throw new RuntimeException("Number of phenotypes (" + phenotype.length + ") does not match number of samples in null model (" + n + ")");
+		init(phenotype);
+
+		chiSquareMixture = new ThreadLocal<ChiSquareMixture>() {
+			@Override
+			protected ChiSquareMixture initialValue() {
+				return new ChiSquareMixture();
+			}
+		};
+	}
+
+	public NullModel getNullModel() {
+		return nullModel;
+	}
+
+	public AskatPermutation getPermutation() {
+		return permutation;
+	}
+
+	/**
+	 * Pre-calculate all values that only depend on the null model and the phenotype
+	 */
+	void init(double phenotype[]) {
+		double s[] = nullModel.getS();
+		double u[][] = nullModel.getU();
+		double gamma = nullModel.getNullGeneticVar() / nullModel.getNullResidualVar();
+
+		// U^T 1 and U^T Y
+		double ut1[] = new double[n];
+		double uty[] = new double[n];
+		for (int i = 0; i < n; i++) {
+			double ui[] = u[i];
+			double yi = phenotype[i];
+			for (int k = 0; k < n; k++) {
+				ut1[k] += ui[k];
+				uty[k] += ui[k] * yi;
+			}
+		}
+
+		invSqrtD0 = new double[n];
+		xTilde = new double[n];
+		yTilde = new double[n];
+		double xtx = 0;
+		xTildeYTilde = 0;
+		for (int k = 0; k < n; k++) {
+			invSqrtD0[k] = 1.0 / Math.sqrt(gamma * s[k] + 1.0);
+			xTilde[k] = invSqrtD0[k] * ut1[k];
+			yTilde[k] = invSqrtD0[k] * uty[k];
+			xtx += xTilde[k] * xTilde[k];
+			xTildeYTilde += xTilde[k] * yTilde[k];
+		}
+		z = 1.0 / xtx;
+	}
+
+	/**
+	 * Eigenvalues of 'W/2' (only non-negative ones), same as 'Get_Lambda' in 'askat.r'
+	 */
+	double[] lambda(double w[][]) {
+		int p = w.length;
+		double wHalf[][] = new double[p][p];
+		for (int a = 0; a < p; a++)
+			for (int b = 0; b < p; b++)
+				wHalf[a][b] = w[a][b] / 2.0;
+
+		double eigen[] = new SymmetricEigen(wHalf).getEigenvalues();
+
+		int count = 0;
+		for (double e : eigen)
+			if (e >= 0) count++;
+		if (count == 0) throw new RuntimeException("No Eigenvalue is bigger than 0!!");
+
+		double lambda[] = new double[count];
+		for (int i = 0, j = 0; i < eigen.length; i++)
+			if (eigen[i] >= 0) lambda[j++] = eigen[i];
+		return lambda;
+	}
+
+	/**
+	 * Also calculate empirical p-values, using up to 'maxPermutations' resamples (see AskatPermutation)
+	 */
+	public void setPermutation(int maxPermutations, int minExceed, long seed) {
+		permutation = new AskatPermutation(this, maxPermutations, minExceed, seed);
+	}
+
+	/**
+	 * Perform ASKAT test on a sub-block of TPED entries
+	 * @param entries
+	 * @return
+	 */
+	public AskatResult test(List<TpedEntry> entries) {
+		int p = entries.size();
+		if (p <= 0) throw new RuntimeException("Empty sub-block!");
+
+		return test(new Projection(dosage(entries)), entries, 0, p - 1);
+	}
+
+	/**
+	 * Perform ASKAT test on a window of projected TPED entries
+	 * @param projection : Projection of all 'entries'
+	 * @param start : First entry in the window (zero-based)
+	 * @param end : Last entry in the window (zero-based, inclusive)
+	 */
+	public AskatResult test(Projection projection, List<TpedEntry> entries, int start, int end) {
+		AskatResult result = test(projection, start, end);
+		setVariants(result, entries, start, end);
+		return result;
+	}
+
+	/**
+	 * Per variant projections: Row 'j' of H = K.sqrt U D.0^(-1/2), and the
+	 * scalars (H X.tilde)_j and (H Y.tilde)_j
+	 *
+	 * These only depend on the variant (not on the other variants in the
+	 * sub-block), so overlapping windows can share them (see 'test(Projection, start, end)')
+	 */
+	public class Projection {
+		double h[][];
+		double hx[], hy[];
+		ArrayList<double[][]> permutationScores; // Scores for each chunk of resamples, created on demand (see AskatPermutation)
+
+		/**
+		 * @param dosage : Genotypes (number of non-major alleles), one array per variant
+		 */
+		public Projection(byte dosage[][]) {
+			init(rotate(dosage), false);
+		}
+
+		/**
+		 * @param g : Rotated genotypes (see 'rotate()'). They are not modified, so they can be shared by other projections
+		 */
+		public Projection(double g[][]) {
+			init(g, true);
+		}
+
+		void init(double g[][], boolean copy) {
+			int p = g.length;
+			h = new double[p][];
+			hx = new double[p];
+			hy = new double[p];
+			for (int j = 0; j < p; j++) {
+				h[j] = scale(copy ? g[j].clone() : g[j]);
+				hx[j] = dot(h[j], xTilde);
+				hy[j] = dot(h[j], yTilde);
+			}
+		}
+
+		public int size() {
+			return h.length;
+		}
+	}
+
+	/**
+	 * Genotypes for a list of TPED entries
+	 */
+	static byte[][] dosage(List<TpedEntry> entries) {
+		byte dosage[][] = new byte[entries.size()][];
+		for (int j = 0; j < dosage.length; j++)
+			dosage[j] = entries.get(j).dosage();
+		return dosage;
+	}
+
+	/**
+	 * Project one variant: Row of H = K.sqrt U D.0^(-1/2)
+	 */
+	double[] projection(byte x[]) {
+		return scale(rotate(x));
+	}
+
+	/**
+	 * Rotate one variant: Row of K.sqrt U (it does not depend on the phenotype)
+	 * Note: Genotypes are mostly zero (rare variants), so we only add rows of U for non-zero entries
+	 */
+	double[] rotate(byte x[]) {
+		if (x.length != n) throw new RuntimeException("Number of samples in TPED entry (" + x.length + ") does not match number of samples in null model (" + n + ")");
+		double u[][] = nullModel.getU();
+
+		int sum = 0;
+		for (int i = 0; i < n; i++)
+			sum += x[i];
+		double w = weight(sum / (2.0 * n));
+
+		double g[] = new double[n];
+		for (int i = 0; i < n; i++) {
+			if (x[i] == 0) continue;
+			double wx = w * x[i];
+			double ui[] = u[i];
+			for (int k = 0; k < n; k++)
+				g[k] += wx * ui[k];
+		}
+		return g;
+	}
+
+	/**
+	 * Rotate a sub-block of variants (see 'rotate(byte[])')
+	 */
+	public double[][] rotate(byte dosage[][]) {
+		double g[][] = new double[dosage.length][];
+		for (int j = 0; j < dosage.length; j++)
+			g[j] = rotate(dosage[j]);
+		return g;
+	}
+
+	/**
+	 * Scale a rotated variant by D.0^(-1/2), in place
+	 */
+	double[] scale(double g[]) {
+		for (int k = 0; k < n; k++)
+			g[k] *= invSqrtD0[k];
+		return g;
+	}
+
+	/**
+	 * Set variant information (positions and IDs) from TPED entries
+	 */
+	static void setVariants(AskatResult result, List<TpedEntry> entries, int start, int end) {
+		TpedEntry first = entries.get(start);
+		TpedEntry last = entries.get(end);
+		result.chrStart = first.getChromosomeName();
+		result.posStart = first.getStart();
+		result.idStart = first.getId();
+		result.chrEnd = last.getChromosomeName();
+		result.posEnd = last.getStart();
+		result.idEnd = last.getId();
+	}
+
+	/**
+	 * Perform ASKAT test on a sub-block of genotypes
+	 * @param dosage : Genotypes (number of non-major alleles), one array per variant
+	 * @return Result (without variant information)
+	 */
+	public AskatResult test(byte dosage[][]) {
+		if (dosage.length <= 0) throw new RuntimeException("Empty sub-block!");
+		Projection projection = new Projection(dosage);
+		return test(projection, 0, projection.size() - 1);
+	}
+
+	/**
+	 * Perform ASKAT test on a window of projected variants
+	 * @param start : First variant (zero-based)
+	 * @param end : Last variant (zero-based, inclusive)
+	 * @return Result (without variant information)
+	 */
+	public AskatResult test(Projection projection, int start, int end) {
+		int p = end - start + 1;
+		if (p <= 0) throw new RuntimeException("Empty sub-block!");
+		double h[][] = projection.h;
+		double hx[] = projection.hx;
+		double hy[] = projection.hy;
+
+		// W = RM RM^T = H H^T - Z (H X.tilde) (H X.tilde)^T
+		double w[][] = new double[p][p];
+		for (int a = 0; a < p; a++)
+			for (int b = 0; b <= a; b++)
+				w[a][b] = w[b][a] = dot(h[start + a], h[start + b]) - z * hx[start + a] * hx[start + b];
+
+		// Q = |RM Y.tilde|^2 / (2 s2), where RM Y.tilde = H Y.tilde - Z (H X.tilde) (X.tilde^T Y.tilde)
+		double q = 0;
+		for (int j = start; j <= end; j++) {
+			double rmy = hy[j] - z * hx[j] * xTildeYTilde;
+			q += rmy * rmy;
+		}
+		q /= 2.0 * nullModel.getNullResidualVar();
+
+		// Create result
+		AskatResult result = new AskatResult();
+		result.q = q;
+		result.polygenicVc = nullModel.getNullGeneticVar();
+		result.envVc = nullModel.getNullResidualVar();
+		result.lambda = lambda(w);
+
+		// P-value
+		ChiSquareMixture csm = chiSquareMixture.get();
+		result.pValue = csm.pValue(q, result.lambda, result.lambda.length, pAcc);
+		result.pValueLiu = csm.getpValueLiu();
+		result.converge = csm.isConverged();
+		result.ifault = csm.getIfault();
+		result.integrationError = csm.getIntegrationError();
+
+		// Empirical p-value
+		if (permutation != null) permutation.test(result, projection, start, end);
+		return result;
+	}
+
+	double dot(double a[], double b[]) {
+		double sum = 0;
+		for (int i = 0; i < a.length; i++)
+			sum += a[i] * b[i];
+		return sum;
+	}
+
+}
@@ -0,0 +1,102 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Group batch files (one per interval) into jobs, taking into account the
+ * cost of each file. Intervals can have very different sizes (from a few
+ * variants to thousands), so a fixed number of files per job creates
+ * unbalanced jobs and one straggler at the end of every block.
+ *
+ * Cost of a batch file is estimated as:
+ *
+ * 		cost = numVariants + COST_SUB_BLOCK * numSubBlocks
+ *
+ * Files are sorted by cost (largest first) and grouped using 'guided
+ * self-scheduling': each job takes a fraction of the remaining cost
+ * (1 / (jobsPerWorker * numWorkers)). So the first jobs are large (often
+ * a single large interval) and jobs get smaller towards the end. Jobs are
+ * queued in this order, so idle workers keep taking small jobs until
+ * the queue is empty, and the tail is short.
+ *
+ * @author pcingola
+ */
+public class BatchScheduler {
+
+	public static final int COST_SUB_BLOCK = 10; // Overhead of each sub-block (in 'number of variants' units)
+	public static final int MIN_JOB_FRACTION = 4; // Smallest job is 1 / MIN_JOB_FRACTION of the initial job size
+
+	int numWorkers, subBlockSize, jobsPerWorker;
+
+	public BatchScheduler(int numWorkers, int subBlockSize, int jobsPerWorker) {
+		this.numWorkers = Math.max(1, numWorkers);
+		this.subBlockSize = subBlockSize;
+		this.jobsPerWorker = Math.max(1, jobsPerWorker);
+	}
+
+	/**
+	 * Estimated cost of a batch file
+	 */
+	public long cost(int numVariants) {
+		int numSubBlocks = (numVariants + subBlockSize - 1) / subBlockSize;
+		return numVariants + ((long) COST_SUB_BLOCK) * numSubBlocks;
+	}
+
+	/**
+	 * Group batch files into jobs (comma separated lists of files), largest jobs first
+	 * @param batchFiles : Batch files
+	 * @param batchVariants : Number of variants in each batch file (files not found are assumed to have 'subBlockSize' variants)
+	 */
+	public List<String> jobs(List<String> batchFiles, Map<String, Integer> batchVariants) {
+		// Sort files by cost (largest first)
+		final Map<String, Long> costs = new HashMap<String, Long>();
+		long remaining = 0;
+		for (String batchFile : batchFiles) {
+			Integer numVariants = batchVariants.get(batchFile);
+			long cost = cost(numVariants != null ? numVariants : subBlockSize);
+			costs.put(batchFile, cost);
+			remaining += cost;
+		}
+
+		List<String> sorted = new ArrayList<String>(batchFiles);
+		Collections.sort(sorted, new Comparator<String>() {
+
+			@Override
+			public int compare(String f1, String f2) {
+				int cmp = costs.get(f2).compareTo(costs.get(f1));
+				if (cmp != 0) return cmp;
+				return f1.compareTo(f2);
+			}
+		});
+
+		// Create jobs: Each one takes a fraction of the remaining cost
+		int chunks = jobsPerWorker * numWorkers;
+		long minJobCost = Math.max(1, remaining / (MIN_JOB_FRACTION * chunks));
+		List<String> jobs = new ArrayList<String>();
+		StringBuilder job = new StringBuilder();
+		long jobCost = 0, targetCost = 0;
+		for (String batchFile : sorted) {
+			if (job.length() == 0) targetCost = Math.max(minJobCost, remaining / chunks);
+
+			long cost = costs.get(batchFile);
+			job.append((job.length() > 0 ? "," : "") + batchFile);
+			jobCost += cost;
+			remaining -= cost;
+
+			if (jobCost >= targetCost) {
+				jobs.add(job.toString());
+				job = new StringBuilder();
+				jobCost = 0;
+			}
+		}
+		if (job.length() > 0) jobs.add(job.toString());
+
+		return jobs;
+	}
+
+}
@@ -0,0 +1,127 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Process blocks in a pipeline: The kinship matrix for the next block is
+ * calculated while ASKAT is running on the current block.
+ * 
+ * Kinship and ASKAT each run on a single thread, so blocks are processed
+ * in the same order they are added. The number of blocks in flight (being 
+ * calculated or waiting) is limited, so memory used by kinship matrices 
+ * stays bounded. A limit of one block means no overlap at all.
+ * 
+ * @author pcingola
+ */
+public class BlockPipeline {
+
+	Askat askat;
+	int maxBlocks;
+	Semaphore inFlight; // Blocks being processed
+	ExecutorService kinshipExecutor, askatExecutor;
+	List<Future<Object>> running;
+
+	public BlockPipeline(Askat askat, int maxBlocks) {
+		this.askat = askat;
+		this.maxBlocks = maxBlocks;
+		inFlight = new Semaphore(maxBlocks);
+		kinshipExecutor = Executors.newSingleThreadExecutor();
+		askatExecutor = Executors.newSingleThreadExecutor();
+		running = new ArrayList<Future<Object>>();
+	}
+
+	/**
+	 * Add a block to the pipeline
+	 * Note: Blocks if there are already 'maxBlocks' blocks in flight
+	 */
+	public void add(final KinshipBlock block) {
+		long start = System.nanoTime();
+		try {
+			inFlight.acquire();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		askat.getMetrics().time("pipeline_wait", start); // Time blocked because too many blocks are in flight
+
+		// Calculate kinship
+		final Future<Object> kinship;
+		try {
+			kinship = kinshipExecutor.submit(new Callable<Object>() {
+
+				@Override
+				public Object call() throws Exception {
+					block.kinship();
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+
+		// Run ASKAT once the kinship is ready
+		running.add(askatExecutor.submit(new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				try {
+					try {
+						kinship.get();
+					} catch (ExecutionException e) {
+						throw new RuntimeException("Error calculating kinship matrix for block '" + block.blockName + "'", e.getCause());
+					}
+					block.askat();
+				} finally {
+					inFlight.release();
+				}
+				return null;
+			}
+		}));
+
+		check();
+	}
+
+	/**
+	 * Fail early if a block has finished with an error
+	 */
+	void check() {
+		for (Future<Object> f : running)
+			if (f.isDone()) get(f);
+	}
+
+	void get(Future<Object> f) {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			kinshipExecutor.shutdownNow();
+			askatExecutor.shutdownNow();
+			throw new RuntimeException("Error processing block", e.getCause());
+		}
+	}
+
+	/**
+	 * Wait for all blocks to finish
+	 */
+	public void run() {
+		try {
+			for (Future<Object> f : running)
+				get(f);
+		} finally {
+			kinshipExecutor.shutdown();
+			askatExecutor.shutdown();
+		}
+		if (askat.isVerbose()) Timer.showStdErr("Finished " + running.size() + " blocks.");
+	}
+
+}
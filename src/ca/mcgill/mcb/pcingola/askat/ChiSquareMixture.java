@@ -0,0 +1,606 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+/**
+ * P-values for a mixture (linear combination) of central chi-square
+ * random variables, with one degree of freedom each.
+ *
+ * This is a Java implementation of 'davies' and 'liu' functions in
+ * R's CompQuadForm package (Davies' algorithm AS 155 and Liu et al. 2009
+ * moment matching), plus the logic used in 'Get_PValue.Modif' (askat.r).
+ *
+ * An instance is NOT thread safe, but it can be reused: no memory is
+ * allocated after the first invocation (unless a larger number of
+ * eigenvalues is used). Results are available as fields / getters after
+ * invoking 'pValue()'
+ *
+ * @author pcingola
+ */
+public class ChiSquareMixture {
+
+	/**
+	 * Thrown when the maximum number of integration terms is exceeded (pre-allocated, no stack trace)
+	 */
+	static class LimitExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	// Davies 'ifault' codes
+	public static final int IFAULT_OK = 0;
+	public static final int IFAULT_ACCURACY = 1; // Required accuracy NOT achieved
+	public static final int IFAULT_ROUND_OFF = 2; // Round-off error possibly significant
+	public static final int IFAULT_INVALID_PARAMETERS = 3; // Invalid parameters
+	public static final int IFAULT_INTEGRATION_PARAMETERS = 4; // Unable to locate integration parameters
+
+	public static final int DEFAULT_LIMIT = 10000; // Maximum number of integration terms (same default as CompQuadForm)
+	public static final double LOG28 = 0.0866; // log(2.0) / 8.0
+	static final double DIVIS[] = { 2.0, 1.4, 1.2, 1.1 };
+	static final int RATS[] = { 1, 2, 4, 8 };
+	static final double LANCZOS[] = { 0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313, -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7 };
+	static final LimitExceededException LIMIT_EXCEEDED = new LimitExceededException();
+
+	int limit = DEFAULT_LIMIT;
+
+	// Results
+	double pValue, pValueDavies, pValueLiu;
+	int ifault;
+	boolean converged;
+	double trace[] = new double[7]; // Same as CompQuadForm's 'trace'
+
+	// Davies' algorithm state
+	double lb[]; // Eigenvalues
+	int th[]; // Order of eigenvalues (absolute value)
+	int r; // Number of eigenvalues
+	double sigsq, lmax, lmin, mean, c, intl, ersm;
+	int count, lim;
+	boolean ndtsrt, fail;
+	double errbdCx; // Cutoff point calculated in 'errbd'
+	double ctffUpn; // Updated 'upn' calculated in 'ctff'
+
+	static double exp1(double x) {
+		return x < -50.0 ? 0.0 : Math.exp(x);
+	}
+
+	/**
+	 * Logarithm of the gamma function (Lanczos approximation)
+	 */
+	static double lgamma(double x) {
+		if (x < 0.5) return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - lgamma(1.0 - x);
+
+		x -= 1.0;
+		double a = LANCZOS[0];
+		double t = x + 7.5;
+		for (int i = 1; i < LANCZOS.length; i++)
+			a += LANCZOS[i] / (x + i);
+
+		return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(a);
+	}
+
+	/**
+	 * if (first) log(1 + x) ; else  log(1 + x) - x
+	 */
+	static double log1(double x, boolean first) {
+		if (Math.abs(x) > 0.1) return (first ? Math.log(1.0 + x) : (Math.log(1.0 + x) - x));
+
+		double y = x / (2.0 + x);
+		double term = 2.0 * y * y * y;
+		double k = 3.0;
+		double s = (first ? 2.0 : -x) * y;
+		y = y * y;
+		for (double s1 = s + term / k; s1 != s; s1 = s + term / k) {
+			k = k + 2.0;
+			term = term * y;
+			s = s1;
+		}
+		return s;
+	}
+
+	/**
+	 * Upper tail of a (possibly non-central) chi-square distribution
+	 * Same as R's 'pchisq(x, df, ncp, lower.tail=FALSE)'
+	 */
+	public static double pchisqUpper(double x, double df, double ncp) {
+		if (x <= 0) return 1.0;
+		if (ncp <= 0) return upperGamma(df / 2.0, x / 2.0);
+
+		// Poisson mixture of central chi-squares
+		double lambda = ncp / 2.0;
+		double sum = 0, weightSum = 0;
+		for (int j = 0; j < 100000; j++) {
+			double w = Math.exp(-lambda + j * Math.log(lambda) - lgamma(j + 1.0));
+			sum += w * upperGamma(df / 2.0 + j, x / 2.0);
+			weightSum += w;
+			if ((j > lambda) && (1.0 - weightSum < 1e-15)) break;
+		}
+		return Math.min(1.0, sum);
+	}
+
+	/**
+	 * Regularized upper incomplete gamma function Q(a, x)
+	 */
+	static double upperGamma(double a, double x) {
+		if (x <= 0) return 1.0;
+		double logPre = -x + a * Math.log(x) - lgamma(a);
+
+		if (x < a + 1.0) {
+			// Series for P(a, x)
+			double ap = a, del = 1.0 / a, sum = del;
+			for (int n = 0; n < 10000; n++) {
+				ap += 1.0;
+				del *= x / ap;
+				sum += del;
+				if (Math.abs(del) < Math.abs(sum) * 1e-16) break;
+			}
+			return Math.max(0.0, 1.0 - sum * Math.exp(logPre));
+		}
+
+		// Continued fraction for Q(a, x) (modified Lentz's method)
+		double tiny = 1e-300;
+		double b = x + 1.0 - a, cf = 1.0 / tiny, d = 1.0 / b, h = d;
+		for (int i = 1; i < 10000; i++) {
+			double an = -i * (i - a);
+			b += 2.0;
+			d = an * d + b;
+			if (Math.abs(d) < tiny) d = tiny;
+			cf = b + an / cf;
+			if (Math.abs(cf) < tiny) cf = tiny;
+			d = 1.0 / d;
+			double del = d * cf;
+			h *= del;
+			if (Math.abs(del - 1.0) < 1e-16) break;
+		}
+		return Math.exp(logPre) * h;
+	}
+
+	/**
+	 * Coefficient of tausq in error when convergence factor of
+	 * exp1(-0.5*tausq*u^2) is used when df is evaluated at x
+	 */
+	double cfe(double x) {
+		counter();
+		if (ndtsrt) order();
+		double axl = Math.abs(x);
+		double sxl = (x > 0.0) ? 1.0 : -1.0;
+		double sum1 = 0.0;
+		for (int j = r - 1; j >= 0; j--) {
+			int t = th[j];
+			if (lb[t] * sxl > 0.0) {
+				double lj = Math.abs(lb[t]);
+				double axl1 = axl - lj; // Note: One degree of freedom, no non-centrality
+				double axl2 = lj / LOG28;
+				if (axl1 > axl2) axl = axl1;
+				else {
+					if (axl > axl2) axl = axl2;
+					sum1 = (axl - axl1) / lj + j; // Add degrees of freedom of remaining terms
+					break;
+				}
+			}
+		}
+
+		if (sum1 > 100.0) {
+			fail = true;
+			return 1.0;
+		}
+		return Math.pow(2.0, (sum1 / 4.0)) / (Math.PI * axl * axl);
+	}
+
+	void counter() {
+		count = count + 1;
+		if (count > lim) throw LIMIT_EXCEEDED;
+	}
+
+	/**
+	 * Find ctff so that p(qf > ctff) < accx  if (upn > 0), p(qf < ctff) < accx otherwise
+	 * Note: The updated value of 'upn' is stored in 'ctffUpn'
+	 */
+	double ctff(double accx, double upn) {
+		double u2 = upn, u1 = 0.0, c1 = mean, c2;
+		double rb = 2.0 * ((u2 > 0.0) ? lmax : lmin);
+		while (true) {
+			double err = errbd(u2 / (1.0 + u2 * rb));
+			c2 = errbdCx;
+			if (err <= accx) break;
+			u1 = u2;
+			c1 = c2;
+			u2 = 2.0 * u2;
+		}
+
+		for (double u = (c1 - mean) / (c2 - mean); u < 0.9; u = (c1 - mean) / (c2 - mean)) {
+			u = (u1 + u2) / 2.0;
+			if (errbd(u / (1.0 + u * rb)) > accx) {
+				u1 = u;
+				c1 = errbdCx;
+			} else {
+				u2 = u;
+				c2 = errbdCx;
+			}
+		}
+
+		ctffUpn = u2;
+		return c2;
+	}
+
+	/**
+	 * P-value using Davies' algorithm: P[Q > q]
+	 * Same as 'davies(q, lambda, acc=acc)$Qq' in CompQuadForm
+	 *
+	 * @param q
+	 * @param lambda : Eigenvalues (only the first 'nLambda' are used)
+	 * @param nLambda
+	 * @param acc : Maximum error
+	 * @return P-value (also stored in 'pValueDavies'). Check 'ifault' for errors
+	 */
+	public double davies(double q, double lambda[], int nLambda, double acc) {
+		double qfval = -1.0;
+		init(lambda, nLambda);
+		c = q;
+
+		try {
+			qfval = qfc(acc);
+		} catch (LimitExceededException e) {
+			ifault = IFAULT_INTEGRATION_PARAMETERS;
+		}
+
+		trace[6] = count;
+		pValueDavies = 1.0 - qfval;
+		return pValueDavies;
+	}
+
+	/**
+	 * Bound on tail probability using mgf, cutoff point returned in 'errbdCx'
+	 */
+	double errbd(double u) {
+		counter();
+		double xconst = u * sigsq;
+		double sum1 = u * xconst;
+		u = 2.0 * u;
+		for (int j = r - 1; j >= 0; j--) {
+			double lj = lb[j];
+			double x = u * lj;
+			double y = 1.0 - x;
+			xconst = xconst + lj / y;
+			sum1 = sum1 + (x * x / y + log1(-x, false));
+		}
+		errbdCx = xconst;
+		return exp1(-0.5 * sum1);
+	}
+
+	/**
+	 * Find u such that truncation(u) < accx and truncation(u / 1.2) > accx
+	 */
+	double findu(double ut, double accx) {
+		double u = ut / 4.0;
+		if (truncation(u, 0.0) > accx) {
+			for (u = ut; truncation(u, 0.0) > accx; u = ut)
+				ut = ut * 4.0;
+		} else {
+			ut = u;
+			for (u = u / 4.0; truncation(u, 0.0) <= accx; u = u / 4.0)
+				ut = u;
+		}
+
+		for (int i = 0; i < 4; i++) {
+			u = ut / DIVIS[i];
+			if (truncation(u, 0.0) <= accx) ut = u;
+		}
+		return ut;
+	}
+
+	public int getIfault() {
+		return ifault;
+	}
+
+	/**
+	 * Number of integration terms used by Davies' method
+	 */
+	public int getIntegrationTerms() {
+		return (int) trace[1];
+	}
+
+	/**
+	 * Integration error ('absolute sum', trace[0] in CompQuadForm)
+	 */
+	public double getIntegrationError() {
+		return trace[0];
+	}
+
+	public double getpValue() {
+		return pValue;
+	}
+
+	public double getpValueDavies() {
+		return pValueDavies;
+	}
+
+	public double getpValueLiu() {
+		return pValueLiu;
+	}
+
+	public double[] getTrace() {
+		return trace;
+	}
+
+	void init(double lambda[], int nLambda) {
+		r = nLambda;
+		lb = lambda;
+		if ((th == null) || (th.length < r)) th = new int[r];
+
+		for (int j = 0; j < trace.length; j++)
+			trace[j] = 0.0;
+		ifault = IFAULT_OK;
+		count = 0;
+		lim = limit;
+		intl = ersm = 0.0;
+		ndtsrt = true;
+		fail = false;
+	}
+
+	/**
+	 * Carry out integration with nterm terms, at stepsize interv.
+	 * If (!mainx) multiply integrand by 1.0-exp(-0.5*tausq*u^2)
+	 */
+	void integrate(int nterm, double interv, double tausq, boolean mainx) {
+		double inpi = interv / Math.PI;
+		for (int k = nterm; k >= 0; k--) {
+			double u = (k + 0.5) * interv;
+			double sum1 = -2.0 * u * c;
+			double sum2 = Math.abs(sum1);
+			double sum3 = -0.5 * sigsq * u * u;
+			for (int j = r - 1; j >= 0; j--) {
+				double x = 2.0 * lb[j] * u;
+				double y = x * x;
+				sum3 = sum3 - 0.25 * log1(y, true);
+				double z = Math.atan(x);
+				sum1 = sum1 + z;
+				sum2 = sum2 + Math.abs(z);
+			}
+			double x = inpi * exp1(sum3) / u;
+			if (!mainx) x = x * (1.0 - exp1(-0.5 * tausq * u * u));
+			sum1 = Math.sin(0.5 * sum1) * x;
+			sum2 = 0.5 * sum2 * x;
+			intl = intl + sum1;
+			ersm = ersm + sum2;
+		}
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * P-value using Liu's moment matching approximation: P[Q > q]
+	 * Same as 'liu(q, lambda)' in CompQuadForm
+	 */
+	public double liu(double q, double lambda[], int nLambda) {
+		double c1 = 0, c2 = 0, c3 = 0, c4 = 0;
+		for (int i = 0; i < nLambda; i++) {
+			double l = lambda[i];
+			double l2 = l * l;
+			c1 += l;
+			c2 += l2;
+			c3 += l2 * l;
+			c4 += l2 * l2;
+		}
+
+		double s1 = c3 / Math.pow(c2, 1.5);
+		double s2 = c4 / (c2 * c2);
+		double muQ = c1;
+		double sigmaQ = Math.sqrt(2.0 * c2);
+		double tstar = (q - muQ) / sigmaQ;
+
+		double a, delta, l;
+		if (s1 * s1 > s2) {
+			a = 1.0 / (s1 - Math.sqrt(s1 * s1 - s2));
+			delta = s1 * a * a * a - a * a;
+			l = a * a - 2.0 * delta;
+		} else {
+			a = 1.0 / s1;
+			delta = 0.0;
+			l = c2 * c2 * c2 / (c3 * c3);
+		}
+
+		double muX = l + delta;
+		double sigmaX = Math.sqrt(2.0) * a;
+		pValueLiu = pchisqUpper(tstar * sigmaX + muX, l, delta);
+		return pValueLiu;
+	}
+
+	/**
+	 * Find order of absolute values of lb
+	 */
+	void order() {
+		for (int j = 0; j < r; j++) {
+			double lj = Math.abs(lb[j]);
+			int k;
+			for (k = j - 1; k >= 0; k--) {
+				if (lj > Math.abs(lb[th[k]])) th[k + 1] = th[k];
+				else break;
+			}
+			th[k + 1] = j;
+		}
+		ndtsrt = false;
+	}
+
+	/**
+	 * P-value for ASKAT's statistic, same logic as 'Get_PValue.Modif' in askat.r:
+	 * Davies' method, Liu's approximation when there is only one eigenvalue.
+	 *
+	 * @param q : Statistic
+	 * @param lambda : Eigenvalues (only the first 'nLambda' are used)
+	 * @param acc : Accuracy
+	 * @return P-value. Convergence status is available in 'converged'
+	 */
+	public double pValue(double q, double lambda[], int nLambda, double acc) {
+		davies(q, lambda, nLambda, acc);
+		liu(q, lambda, nLambda);
+
+		pValue = pValueDavies;
+		converged = true;
+		if (nLambda == 1) pValue = pValueLiu;
+		else if (ifault != IFAULT_OK) converged = false;
+
+		if ((pValue > 1) || (pValue < 0)) converged = false;
+		return pValue;
+	}
+
+	/**
+	 * Distribution function of a linear combination of central chi-squared
+	 * random variables (one degree of freedom each), evaluated at 'c'.
+	 *
+	 * Port of 'qfc' (Davies 1980), without non-centrality parameters and sigma=0
+	 *
+	 * @return P[Q < c], or -1 on error (see 'ifault')
+	 */
+	double qfc(double acc) {
+		double acc1 = acc;
+		double xlim = lim;
+
+		// Find mean, sd, max and min of lb, check that parameter values are valid
+		sigsq = 0.0;
+		double sd = sigsq;
+		lmax = lmin = mean = 0.0;
+		for (int j = 0; j < r; j++) {
+			double lj = lb[j];
+			sd = sd + lj * lj * 2;
+			mean = mean + lj;
+			if (lmax < lj) lmax = lj;
+			else if (lmin > lj) lmin = lj;
+		}
+
+		if (sd == 0.0) return (c > 0.0) ? 1.0 : 0.0;
+		if ((lmin == 0.0) && (lmax == 0.0)) {
+			ifault = IFAULT_INVALID_PARAMETERS;
+			return -1.0;
+		}
+		sd = Math.sqrt(sd);
+		double almx = (lmax < -lmin) ? -lmin : lmax;
+
+		// Starting values for findu, ctff
+		double utx = 16.0 / sd;
+		double up = 4.5 / sd;
+		double un = -up;
+
+		// Truncation point with no convergence factor
+		utx = findu(utx, 0.5 * acc1);
+
+		// Does convergence factor help
+		if ((c != 0.0) && (almx > 0.07 * sd)) {
+			double tausq = 0.25 * acc1 / cfe(c);
+			if (fail) fail = false;
+			else if (truncation(utx, tausq) < 0.2 * acc1) {
+				sigsq = sigsq + tausq;
+				utx = findu(utx, 0.25 * acc1);
+				trace[5] = Math.sqrt(tausq);
+			}
+		}
+		trace[4] = utx;
+		acc1 = 0.5 * acc1;
+
+		double intv, xnt;
+		while (true) {
+			// Find RANGE of distribution, quit if outside this
+			double d1 = ctff(acc1, up) - c;
+			up = ctffUpn;
+			if (d1 < 0.0) return 1.0;
+
+			double d2 = c - ctff(acc1, un);
+			un = ctffUpn;
+			if (d2 < 0.0) return 0.0;
+
+			// Find integration interval
+			intv = 2.0 * Math.PI / ((d1 > d2) ? d1 : d2);
+
+			// Calculate number of terms required for main and auxillary integrations
+			xnt = utx / intv;
+			double xntm = 3.0 / Math.sqrt(acc1);
+			if (xnt <= xntm * 1.5) break;
+
+			// Parameters for auxillary integration
+			if (xntm > xlim) {
+				ifault = IFAULT_ACCURACY;
+				return -1.0;
+			}
+			int ntm = (int) Math.floor(xntm + 0.5);
+			double intv1 = utx / ntm;
+			double x = 2.0 * Math.PI / intv1;
+			if (x <= Math.abs(c)) break;
+
+			// Calculate convergence factor
+			double tausq = 0.33 * acc1 / (1.1 * (cfe(c - x) + cfe(c + x)));
+			if (fail) break;
+			acc1 = 0.67 * acc1;
+
+			// Auxillary integration
+			integrate(ntm, intv1, tausq, false);
+			xlim = xlim - xntm;
+			sigsq = sigsq + tausq;
+			trace[2] = trace[2] + 1;
+			trace[1] = trace[1] + ntm + 1;
+
+			// Find truncation point with new convergence factor
+			utx = findu(utx, 0.25 * acc1);
+			acc1 = 0.75 * acc1;
+		}
+
+		// Main integration
+		trace[3] = intv;
+		if (xnt > xlim) {
+			ifault = IFAULT_ACCURACY;
+			return -1.0;
+		}
+		int nt = (int) Math.floor(xnt + 0.5);
+		integrate(nt, intv, 0.0, true);
+		trace[2] = trace[2] + 1;
+		trace[1] = trace[1] + nt + 1;
+		double qfval = 0.5 - intl;
+		trace[0] = ersm;
+
+		// Test whether round-off error could be significant (allow for radix 8 or 16 machines)
+		up = ersm;
+		double x = up + acc / 10.0;
+		for (int j = 0; j < 4; j++)
+			if (RATS[j] * x == RATS[j] * up) ifault = IFAULT_ROUND_OFF;
+
+		return qfval;
+	}
+
+	public void setLimit(int limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Bound integration error due to truncation at u
+	 */
+	double truncation(double u, double tausq) {
+		counter();
+		double sum1 = 0.0, prod2 = 0.0, prod3 = 0.0;
+		int s = 0;
+		double sum2 = (sigsq + tausq) * u * u;
+		double prod1 = 2.0 * sum2;
+		u = 2.0 * u;
+		for (int j = 0; j < r; j++) {
+			double lj = lb[j];
+			double x = (u * lj) * (u * lj);
+			if (x > 1.0) {
+				prod2 = prod2 + Math.log(x);
+				prod3 = prod3 + log1(x, true);
+				s = s + 1;
+			} else prod1 = prod1 + log1(x, true);
+		}
+		sum1 = 0.5 * sum1;
+		prod2 = prod1 + prod2;
+		prod3 = prod1 + prod3;
+		double x = exp1(-sum1 - 0.25 * prod2) / Math.PI;
+		double y = exp1(-sum1 - 0.25 * prod3) / Math.PI;
+		double err1 = (s == 0) ? 1.0 : x * 2.0 / s;
+		double err2 = (prod3 > 1.0) ? 2.5 * y : 1.0;
+		if (err2 < err1) err1 = err2;
+		x = 0.5 * sum2;
+		err2 = (x <= y) ? 1.0 : y / x;
+		return (err1 < err2) ? err1 : err2;
+	}
+}
@@ -0,0 +1,138 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import ca.mcgill.mcb.pcingola.interval.Marker;
+
+/**
+ * Group TPED entries by interval using a sweep line.
+ *
+ * Entries must be sorted by position (within each chromosome). Intervals
+ * wait in a heap ordered by start position, and they become 'active' when
+ * the sweep line reaches their start. Active intervals are kept in a heap
+ * ordered by end position: once an entry is past an interval's end, the
+ * interval is finished and 'group()' is invoked.
+ *
+ * Entries hitting an interval are copied once and shared by all intervals
+ * containing them, so grouping is O(entries + intervals + hits), plus heap
+ * operations. Entries not hitting any interval are not copied, so the
+ * caller can reuse the same TpedEntry for every line.
+ *
+ * @author pcingola
+ */
+public abstract class IntervalGrouper {
+
+	/**
+	 * An active interval and the entries it contains
+	 */
+	class Group {
+		Marker interval;
+		List<TpedEntry> entries;
+
+		Group(Marker interval) {
+			this.interval = interval;
+			entries = new ArrayList<TpedEntry>();
+		}
+	}
+
+	public static final Comparator<Marker> START_COMPARATOR = new Comparator<Marker>() {
+
+		@Override
+		public int compare(Marker m1, Marker m2) {
+			if (m1.getStart() != m2.getStart()) return m1.getStart() < m2.getStart() ? -1 : 1;
+			if (m1.getEnd() != m2.getEnd()) return m1.getEnd() < m2.getEnd() ? -1 : 1;
+			return 0;
+		}
+	};
+
+	public static final Comparator<Group> END_COMPARATOR = new Comparator<Group>() {
+
+		@Override
+		public int compare(Group g1, Group g2) {
+			if (g1.interval.getEnd() != g2.interval.getEnd()) return g1.interval.getEnd() < g2.interval.getEnd() ? -1 : 1;
+			return START_COMPARATOR.compare(g1.interval, g2.interval);
+		}
+	};
+
+	HashMap<String, List<Marker>> intervalsByChr; // Intervals not yet used, by chromosome
+	HashSet<String> chrsDone; // Chromosomes already processed
+	String chr; // Current chromosome
+	int pos; // Current position
+	PriorityQueue<Marker> pending; // Intervals in this chromosome, not yet reached (ordered by start)
+	PriorityQueue<Group> active; // Intervals containing the current position (ordered by end)
+
+	public IntervalGrouper(List<? extends Marker> intervals) {
+		intervalsByChr = new HashMap<String, List<Marker>>();
+		for (Marker m : intervals) {
+			List<Marker> list = intervalsByChr.get(m.getChromosomeName());
+			if (list == null) {
+				list = new ArrayList<Marker>();
+				intervalsByChr.put(m.getChromosomeName(), list);
+			}
+			list.add(m);
+		}
+
+		chrsDone = new HashSet<String>();
+		pending = new PriorityQueue<Marker>(11, START_COMPARATOR);
+		active = new PriorityQueue<Group>(11, END_COMPARATOR);
+	}
+
+	/**
+	 * Add an entry to all intervals containing it
+	 * @return true if any interval contains the entry
+	 */
+	public boolean add(TpedEntry tpedEntry) {
+		// New chromosome?
+		String chrEntry = tpedEntry.getChromosomeName();
+		if (!chrEntry.equals(chr)) {
+			finish();
+			if (!chrsDone.add(chrEntry)) throw new RuntimeException("TPED file is not sorted: Chromosome '" + chrEntry + "' found again. Intervals ('-i') require entries sorted by chromosome and position");
+			chr = chrEntry;
+			List<Marker> list = intervalsByChr.remove(chr);
+			if (list != null) pending.addAll(list);
+		} else if (tpedEntry.getStart() < pos) throw new RuntimeException("TPED file is not sorted: Position " + chr + ":" + (tpedEntry.getStart() + 1) + " found after " + chr + ":" + (pos + 1) + ". Intervals ('-i') require entries sorted by chromosome and position");
+		pos = tpedEntry.getStart();
+
+		// Intervals ending before this entry are finished
+		while (!active.isEmpty() && (active.peek().interval.getEnd() < tpedEntry.getStart()))
+			finish(active.poll());
+
+		// Intervals starting before (or at) this entry become active
+		while (!pending.isEmpty() && (pending.peek().getStart() <= tpedEntry.getEnd())) {
+			Marker m = pending.poll();
+			if (m.getEnd() >= tpedEntry.getStart()) active.add(new Group(m)); // Intervals without entries are skipped
+		}
+
+		// All active intervals contain this entry
+		if (active.isEmpty()) return false;
+		TpedEntry entry = tpedEntry.copy(); // Entries are kept, so we need a copy (the caller may reuse 'tpedEntry')
+		for (Group g : active)
+			g.entries.add(entry);
+		return true;
+	}
+
+	/**
+	 * Finish all intervals in current chromosome
+	 */
+	public void finish() {
+		while (!active.isEmpty())
+			finish(active.poll());
+		pending.clear();
+		chr = null;
+	}
+
+	void finish(Group g) {
+		group(g.interval, g.entries);
+	}
+
+	/**
+	 * An interval is finished: These are all the entries it contains (sorted by position)
+	 */
+	protected abstract void group(Marker interval, List<TpedEntry> entries);
+
+}
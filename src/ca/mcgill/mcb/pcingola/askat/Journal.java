@@ -0,0 +1,220 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * An append-only journal of finished work, used to resume interrupted runs.
+ *
+ * Work is identified by a key (e.g. a batch file name). Results are kept in
+ * memory until the key is 'done', then the key's results and its 'done'
+ * record are appended together and synced to disk once (one sync per key,
+ * not per result).
+ *
+ * Journal format (tab separated, one record per line):
+ * 		H	fingerprint (first line)
+ * 		R	key	result (see AskatResult.toTsv())
+ * 		D	key
+ *
+ * When resuming, results are only used if their key is 'done' (results from
+ * unfinished work are discarded, since that work is executed again).
+ *
+ * Keys depend on how the input is split into batches (e.g. batch numbers),
+ * which changes with the input files and parameters. The fingerprint is a hash
+ * of both (see Askat.journalFingerprint()), a journal is not resumed if its
+ * fingerprint does not match the current run's.
+ *
+ * @author pcingola
+ */
+public class Journal {
+
+	public static final String HEADER = "H";
+	public static final String RESULT = "R";
+	public static final String DONE = "D";
+
+	String fileName;
+	String fingerprint = ""; // Hash of input files and parameters
+	boolean verbose;
+	FileOutputStream out;
+	HashSet<String> done;
+	HashMap<String, StringBuilder> pending; // Result records for work not yet done
+
+	public Journal(String fileName) {
+		this.fileName = fileName;
+		done = new HashSet<String>();
+		pending = new HashMap<String, StringBuilder>();
+	}
+
+	/**
+	 * Append records (one or more lines, not synced)
+	 */
+	void append(String records) {
+		try {
+			out.write(records.getBytes());
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing journal file '" + fileName + "'", e);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			if (out != null) out.close();
+			out = null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Delete journal file
+	 */
+	public synchronized void delete() {
+		close();
+		new File(fileName).delete();
+	}
+
+	/**
+	 * Mark work as done
+	 */
+	public void done(String key) {
+		FileOutputStream o;
+		synchronized (this) {
+			StringBuilder records = pending.remove(key);
+			if (!done.add(key)) return;
+
+			if (records == null) records = new StringBuilder();
+			records.append(DONE + "\t" + key + "\n");
+			append(records.toString());
+			o = out;
+		}
+
+		// Sync outside the lock, so other threads can keep adding records
+		try {
+			o.getFD().sync();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing journal file '" + fileName + "'", e);
+		}
+	}
+
+	/**
+	 * Has this work been done?
+	 */
+	public synchronized boolean isDone(String key) {
+		return done.contains(key);
+	}
+
+	/**
+	 * Start a new journal (any existing journal is discarded)
+	 */
+	public synchronized void open() {
+		try {
+			out = new FileOutputStream(fileName);
+			append(HEADER + "\t" + fingerprint + "\n");
+		} catch (IOException e) {
+			throw new RuntimeException("Error creating journal file '" + fileName + "'", e);
+		}
+	}
+
+	/**
+	 * Resume from an existing journal: Results from finished work are added to 'resultSink'.
+	 * The journal is rewritten without records from unfinished work.
+	 */
+	public synchronized void resume(ResultSink resultSink) {
+		if (!new File(fileName).exists()) {
+			if (verbose) Timer.showStdErr("Journal file '" + fileName + "' not found, nothing to resume");
+			open();
+			return;
+		}
+
+		// Read journal
+		HashMap<String, List<String>> results = new HashMap<String, List<String>>();
+		String header = null;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(fileName));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String fields[] = line.split("\t", 3);
+				if (header == null) {
+					// First line must be the header
+					header = (fields[0].equals(HEADER) && (fields.length == 2) ? fields[1] : "");
+					if (!header.equals(fingerprint)) {
+						reader.close();
+						throw new RuntimeException("Journal file '" + fileName + "' was created using different input files or parameters, cannot resume.\n\tRun again using the same input files and parameters, or delete the journal file (or run without '-resume') to start from scratch.");
+					}
+				} else if (fields[0].equals(DONE) && (fields.length == 2)) done.add(fields[1]);
+				else if (fields[0].equals(RESULT) && (fields.length == 3)) {
+					List<String> list = results.get(fields[1]);
+					if (list == null) {
+						list = new ArrayList<String>();
+						results.put(fields[1], list);
+					}
+					list.add(fields[2]);
+				} // Other lines are ignored (e.g. last line was not completely written)
+			}
+			reader.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading journal file '" + fileName + "'", e);
+		}
+
+		// Rewrite journal: Only finished work (write to a temporary file and rename)
+		String tmpFile = fileName + ".tmp";
+		int count = 0;
+		try {
+			out = new FileOutputStream(tmpFile);
+			append(HEADER + "\t" + fingerprint + "\n");
+			for (String key : done) {
+				List<String> list = results.get(key);
+				if (list != null) {
+					for (String tsv : list) {
+						append(RESULT + "\t" + key + "\t" + tsv + "\n");
+						resultSink.add(AskatResult.parseTsv(tsv));
+						count++;
+					}
+				}
+				append(DONE + "\t" + key + "\n");
+			}
+			out.getFD().sync();
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing journal file '" + tmpFile + "'", e);
+		}
+		if (!new File(tmpFile).renameTo(new File(fileName))) throw new RuntimeException("Cannot rename journal file '" + tmpFile + "' to '" + fileName + "'");
+
+		try {
+			out = new FileOutputStream(fileName, true);
+		} catch (IOException e) {
+			throw new RuntimeException("Error opening journal file '" + fileName + "'", e);
+		}
+
+		if (verbose) Timer.showStdErr("Resuming from journal '" + fileName + "': " + done.size() + " finished jobs, " + count + " results");
+	}
+
+	/**
+	 * Add a result (written when the key is done)
+	 */
+	public synchronized void result(String key, AskatResult result) {
+		StringBuilder records = pending.get(key);
+		if (records == null) {
+			records = new StringBuilder();
+			pending.put(key, records);
+		}
+		records.append(RESULT + "\t" + key + "\t" + result.toTsv() + "\n");
+	}
+
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+}
@@ -1,19 +1,13 @@
 package ca.mcgill.mcb.pcingola.askat;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 
-import ca.mcgill.mcb.pcingola.collections.MultivalueHashMap;
-import ca.mcgill.mcb.pcingola.fileIterator.LineFileIterator;
 import ca.mcgill.mcb.pcingola.interval.Marker;
-import ca.mcgill.mcb.pcingola.interval.Markers;
 import ca.mcgill.mcb.pcingola.interval.SeqChange;
-import ca.mcgill.mcb.pcingola.interval.tree.IntervalForest;
 import ca.mcgill.mcb.pcingola.osCmd.LineFilter;
 import ca.mcgill.mcb.pcingola.osCmd.OsCmdQueue;
 import ca.mcgill.mcb.pcingola.osCmd.OsCmdRunner;
@@ -30,21 +24,33 @@ public class KinshipBlock {
 	public static boolean debug = false; // Debug mode
 	public static boolean debugOnlyOnce = false; // Debug mode, just do one iteration
 
-	String blockFile, blockName, genabelGenFile, genabelPhenFile, kinshipFile, simFile, phenoFile;
+	// Kinship and null model files (these files are kept in the kinship cache)
+	public static final String EXT_KINSHIP = ".kinship.RData";
+	public static final String EXT_KINSHIP_BIN = ".kinship.bin";
+	public static final String EXT_NULL_MODEL = ".nullModel.bin";
+	public static final String EXT_NULL_MODEL_PHENO = ".nullModel.pheno.txt"; // Multi-phenotype mode: Variance components for each phenotype
+	public static final String CACHED_FILES[] = { EXT_KINSHIP, EXT_KINSHIP_BIN, EXT_NULL_MODEL, EXT_NULL_MODEL_PHENO };
+
+	public static final String POOL_R_SCRIPT = "r_script"; // Metrics: Pool of R script commands
+	public static final int CMD_JOBS_PER_WORKER = 2; // Interval mode: Scheduling granularity for R scripts (each R process has a startup cost, so jobs are larger than for R workers)
+
+	String blockFile, blockName, scratchName, genabelGenFile, genabelPhenFile, kinshipFile, kinshipBinFile, simFile, phenoFile, nullModelFile, nullModelPhenoFile;
 	HashSet<String> toDelete;
 	List<SeqChange> intervals;
 	Askat askat;
+	AskatJavaQueue javaQueue; // Run ASKAT in-process (instead of invoking R scripts)
+	KinshipLoco kinshipLoco; // Leave one chromosome out kinship (null if not used)
+	String chr; // Chromosome (only used for 'leave one chromosome out' kinship)
+	HashMap<String, Integer> batchVariants; // Number of variants in each batch file (only for intervals)
 
 	public KinshipBlock(Askat askat, String blockFile) {
 		this.askat = askat;
 		this.blockFile = blockFile;
 		blockName = Gpr.removeExt(blockFile);
-		genabelGenFile = blockName + ".genabel.gen";
-		genabelPhenFile = blockName + ".genabel.phen";
-		kinshipFile = blockName + ".kinship.RData";
-		simFile = blockName + ".sim";
-		phenoFile = blockName + ".pheno.txt";
+		scratchName = blockName;
+		fileNames(scratchName, blockName);
 		toDelete = new HashSet<String>();
+		batchVariants = new HashMap<String, Integer>();
 	}
 
 	/**
@@ -53,14 +59,28 @@ public class KinshipBlock {
 	public void askat() {
 		if (askat.isVerbose()) Timer.showStdErr("Starting block: " + blockName);
 
-		// Split workload into batches
-		List<String> batchFiles = batchFiles();
+		if (askat.isJavaAskat()) {
+			// Batches are tested in-process as they are created
+			javaQueue = new AskatJavaQueue(askat, nullModelFile, nullModelPhenoFile, debugOnlyOnce);
+			batchFiles();
+			javaQueue.run();
+			javaQueue = null;
+		} else if (askat.isrWorkers()) {
+			// Send batches to the pool of R workers
+			RWorkerPool rWorkerPool = askat.getrWorkerPool();
+			for (String job : rWorkerJobs(notDone(batchFiles())))
+				rWorkerPool.add(job, kinshipFile);
+			rWorkerPool.run();
+		} else {
+			// Split workload into batches
+			List<String> batchFiles = notDone(batchFiles());
 
-		// Create command and add them to a queue
-		OsCmdQueue queue = createQueue(batchFiles);
+			// Create command and add them to a queue
+			OsCmdQueue queue = createQueue(batchFiles);
 
-		// Run queue
-		queue.run();
+			// Run queue
+			queue.run();
+		}
 
 		// Delete all tmp files & directories
 		if (!debug) deleteFiles();
@@ -74,8 +94,17 @@ public class KinshipBlock {
 	 * @return
 	 */
 	List<String> batchFiles() {
-		if (intervals == null) return batchFilesFixedSize(); // Use a fixed number of SNPs in each batch
-		return batchFilesIntervals(); // Use a intervals to split files		
+		long start = System.nanoTime();
+		List<String> batchFiles;
+		if (intervals == null) batchFiles = batchFilesFixedSize(); // Use a fixed number of SNPs in each batch
+		else batchFiles = batchFilesIntervals(); // Use a intervals to split files
+
+		// Metrics: When testing in-process, no batch files are written (entries are queued)
+		if (javaQueue == null) {
+			askat.getMetrics().time("batch_write", start);
+			askat.getMetrics().count("batch_files", batchFiles.size());
+		}
+		return batchFiles;
 	}
 
 	/**
@@ -94,37 +123,49 @@ public class KinshipBlock {
 		if (askat.isVerbose()) Timer.showStdErr("Create batches.\n\t\t\tFile '" + blockFile + "' has " + numLines + " lines.\n\t\t\tSplit up to " + batchLines + " lines per batch.");
 
 		// Create batches 
-		try {
-			String batchFileName = null;
-			int batchNum = 1, lineNum = 0;
-			BufferedWriter outFile = null;
-			LineFileIterator lfi = new LineFileIterator(blockFile);
-
-			for (String line : lfi) {
-				// Transform from TPED to ASKAT
-				TpedEntry tpedEntry = new TpedEntry(askat.getGenome(), line);
-				line = tpedEntry.tped2askatDat();
-
-				if ((outFile == null) || (lineNum >= batchLines)) {
-					if (outFile != null) outFile.close();
-
-					batchFileName = blockName + "." + batchNum + ".askat";
+		String batchFileName = null;
+		int batchNum = 1, lineNum = 0, subBlockStart = 1;
+		AskatBatchFile outFile = null;
+		List<TpedEntry> subBlockEntries = new ArrayList<TpedEntry>();
+		TpedScanner tped = new TpedScanner(blockFile);
+		TpedEntry tpedEntry = new TpedEntry(askat.getGenome()); // Reused for every line
+
+		while (tped.next()) {
+			tpedEntry.set(tped);
+
+			if ((batchFileName == null) || (lineNum >= batchLines)) {
+				if (outFile != null) outFile.close();
+				if (!subBlockEntries.isEmpty()) javaQueue.add(batchFileName, subBlockStart, subBlockEntries);
+
+				batchFileName = scratchName + "." + batchNum + ".askat";
+				if (javaQueue == null) {
 					batchFiles.add(batchFileName);
-					if (askat.isVerbose()) Timer.showStdErr("Batch " + batchNum + ". Line " + lfi.getLineNum() + ". Creating batch : " + batchFileName);
-					outFile = new BufferedWriter(new FileWriter(batchFileName));
-					batchNum++;
-					lineNum = 0;
+					if (askat.isVerbose()) Timer.showStdErr("Batch " + batchNum + ". Line " + tped.getLineNum() + ". Creating batch : " + batchFileName);
+					outFile = new AskatBatchFile(batchFileName, tpedEntry.getNumSamples());
 				}
-
-				outFile.write(line + "\n");
-				lineNum++;
+				batchNum++;
+				lineNum = 0;
+				subBlockEntries = new ArrayList<TpedEntry>();
 			}
 
-			if (outFile != null) outFile.close();
-
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			if (javaQueue != null) {
+				// Add sub-block to ASKAT queue
+				if (subBlockEntries.isEmpty()) subBlockStart = lineNum + 1;
+				subBlockEntries.add(tpedEntry.copy()); // Entries are kept until tested
+				if (subBlockEntries.size() >= subBlock) {
+					javaQueue.add(batchFileName, subBlockStart, subBlockEntries);
+					subBlockEntries = new ArrayList<TpedEntry>();
+				}
+			} else {
+				// Transform from TPED to ASKAT
+				outFile.add(tpedEntry);
+			}
+			lineNum++;
 		}
+		tped.close();
+
+		if (outFile != null) outFile.close();
+		if (!subBlockEntries.isEmpty()) javaQueue.add(batchFileName, subBlockStart, subBlockEntries);
 
 		return batchFiles;
 	}
@@ -134,55 +175,32 @@ public class KinshipBlock {
 	 * @return
 	 */
 	List<String> batchFilesIntervals() {
-		// Build forest
-		if (askat.isVerbose()) Timer.showStdErr("Building interval forest.");
-		IntervalForest intervalForest = new IntervalForest();
-		intervalForest.add(intervals);
-		intervalForest.build();
-		if (askat.isVerbose()) Timer.showStdErr("done.");
+		final List<String> batchFiles = new ArrayList<String>();
 
-		List<String> batchFiles = new ArrayList<String>();
+		// Data is assumed to be sorted by position. So, once an entry is past 
+		// an interval's end, no more entries will hit it: save the interval's data.
+		IntervalGrouper grouper = new IntervalGrouper(intervals) {
 
-		// Map lines to intervals
-		LineFileIterator lfi = new LineFileIterator(blockFile);
-		MultivalueHashMap<Marker, String> interval2tped = new MultivalueHashMap<Marker, String>();
-		for (String line : lfi) {
-			// Transform from TPED to ASKAT
-			TpedEntry tpedEntry = new TpedEntry(askat.getGenome(), line);
-			line = tpedEntry.tped2askatDat();
-
-			// See if entry hits ANY interval in intervalForest
-			Markers results = intervalForest.query(tpedEntry);
-
-			// Show warning if no interval is hit
-			if (askat.isDebug() && results.isEmpty()) {
-				if (debug) System.err.println("WARNING: TPED entry '" + tpedEntry.getChromosomeName() + ":" + tpedEntry.getStart() + "' did not hit any interval. Ignored.");
+			@Override
+			protected void group(Marker interval, List<TpedEntry> entries) {
+				String batchFile = saveFileMarker(interval, entries); // Save file
+				if (batchFile != null) batchFiles.add(batchFile); // Add file and increment number
 			}
+		};
 
-			// Map entry to intervals it hits (can be more then one)
-			HashSet<Marker> markersNotHit = new HashSet<Marker>();
-			markersNotHit.addAll(interval2tped.keySet());
-			for (Marker m : results) {
-				interval2tped.add(m, tpedEntry.tped2askatDat());
-				markersNotHit.remove(m);
-			}
+		// Map lines to intervals
+		TpedScanner tped = new TpedScanner(blockFile);
+		TpedEntry tpedEntry = new TpedEntry(askat.getGenome()); // Reused for every line (the grouper copies entries hitting an interval)
+		while (tped.next()) {
+			tpedEntry.set(tped);
 
-			// Data is assumed to be sorted by position. So, if a marker is 
-			// no longer hit, we can assume that it will no be hit again.
-			// So we can save the data for the markers that were NOT hit.
-			for (Marker m : markersNotHit) {
-				String batchFile = saveFileMarker(m, interval2tped); // Save file
-				if (batchFile != null) batchFiles.add(batchFile); // Add file and increment number
-				interval2tped.remove(m); // Remove marker (we are done)
-			}
+			// Add entry to all intervals it hits (can be more then one). Show warning if no interval is hit
+			if (!grouper.add(tpedEntry) && debug) System.err.println("WARNING: TPED entry '" + tpedEntry.getChromosomeName() + ":" + tpedEntry.getStart() + "' did not hit any interval. Ignored.");
 		}
+		tped.close();
 
 		// Save all files that have not been saved so far
-		for (Marker m : interval2tped.keySet()) {
-			String batchFile = saveFileMarker(m, interval2tped); // Save file
-			if (batchFile != null) batchFiles.add(batchFile); // Add file and increment number
-			interval2tped.remove(m); // Remove marker (we are done)
-		}
+		grouper.finish();
 
 		return batchFiles;
 	}
@@ -190,24 +208,21 @@ public class KinshipBlock {
 	/**
 	 * Save all entries that march an interval (marker)
 	 * @param m
-	 * @param interval2tped
-	 * @return
+	 * @param entries : Entries in the interval
+	 * @return Batch file name (null if no file was created)
 	 */
-	String saveFileMarker(Marker m, MultivalueHashMap<Marker, String> interval2tped) {
+	String saveFileMarker(Marker m, List<TpedEntry> entries) {
 		// Save file
 		String mid = m.getId().replaceAll("[^a-zA-Z0-9\\-\\.]+", "_");
-		String batchFile = blockName + "." //
+		String batchFile = scratchName + "." //
 				+ m.getChromosomeName() //
 				+ ":" + (m.getStart() + 1) //
 				+ "-" + (m.getEnd() + 1) //
 				+ "_" + mid //
 				+ ".askat";
 
-		// Get lines
-		List<String> lines = interval2tped.get(m);
-
 		// Save file
-		if (intervalsCreateFile(lines, batchFile, m)) return batchFile;
+		if (intervalsCreateFile(entries, batchFile, m)) return batchFile;
 		return null;
 	}
 
@@ -219,6 +234,7 @@ public class KinshipBlock {
 	OsCmdQueue createQueue(List<String> batchFiles) {
 		OsCmdQueue queue = new OsCmdQueue();
 		queue.setNumThreads(askat.getNumWorkers());
+		askat.getMetrics().pool(POOL_R_SCRIPT, askat.getNumWorkers());
 		queue.setVerbose(askat.isVerbose());
 
 		if (intervals == null) {
@@ -229,33 +245,11 @@ public class KinshipBlock {
 				if (debugOnlyOnce) break;
 			}
 		} else {
-			// Intervals method
-			int filesPerWorker = batchFiles.size() / askat.getNumWorkers() + 1;
-			if (askat.isVerbose()) Timer.showStdErr("Using " + filesPerWorker + " files per worker.");
-
-			// Create a list of batchFile separated by comma
-			int count = 1, countJob = 0;
-			StringBuilder batchFilesPerWorker = new StringBuilder();
-			for (String batchFile : batchFiles) {
-				batchFilesPerWorker.append((batchFilesPerWorker.length() > 0 ? "," : "") + batchFile);
-				countJob++;
-
-				if (count % filesPerWorker == 0) {
-					// Create a job
-					createQueueAdd(queue, batchFilesPerWorker.toString());
-					if (askat.isVerbose()) Timer.showStdErr("\tAdded job " + queue.size() + ". Number of files : " + countJob);
-					batchFilesPerWorker = new StringBuilder();
-					if (debugOnlyOnce) break;
-					countJob = 0;
-				}
-
-				count++;
-			}
-
-			// Submit last job
-			if (batchFilesPerWorker.length() > 0) {
-				createQueueAdd(queue, batchFilesPerWorker.toString());
-				if (askat.isVerbose()) Timer.showStdErr("\tAdded job " + queue.size() + ". Number of files : " + countJob);
+			// Intervals method: Group files into jobs (comma separated), according to their cost
+			for (String job : scheduleJobs(batchFiles, CMD_JOBS_PER_WORKER)) {
+				createQueueAdd(queue, job);
+				if (askat.isVerbose()) Timer.showStdErr("\tAdded job " + queue.size() + ". Number of files : " + job.split(",").length);
+				if (debugOnlyOnce) break;
 			}
 		}
 
@@ -267,7 +261,7 @@ public class KinshipBlock {
 	 * @param queue
 	 * @param batchFile
 	 */
-	void createQueueAdd(OsCmdQueue queue, String batchFile) {
+	void createQueueAdd(OsCmdQueue queue, final String batchFile) {
 
 		// Command line arguments to execute ASKAT R script 
 		String args[] = { askat.getPath(Askat.CMD_RSCRIPT) //
@@ -278,6 +272,7 @@ public class KinshipBlock {
 				, askat.getSubBlockSize() + "" //
 				, askat.getpACC() + "" //UPD new command line argument for the p-value accuracy
 				, Boolean.toString(debugOnlyOnce).toUpperCase() //
+				, askat.getWindowStep() + "" //
 		};
 
 		// Create a line filter
@@ -285,19 +280,45 @@ public class KinshipBlock {
 
 			@Override
 			public String filter(String line) {
-				if (line.startsWith(Askat.ASKAT_RESULTS)) return line;
+				if (line.startsWith(Askat.ASKAT_RESULTS)) {
+					askat.getResultSink().add(line);
+					return line;
+				}
 				if (line.startsWith(Askat.ASKAT_WARNING)) return line; //Warning in case p-value is not converged
-				return null;
+				return askat.isDebug() ? line : null; // Show everything in debug mode
 			}
 		};
 
-		// Create command
+		// Create command (time spent waiting in the queue and running)
 		String rScriptName = args[1];
-		OsCmdRunner rScriptCmd = new OsCmdRunner("R_Script_" + rScriptName, args);
+		final Metrics metrics = askat.getMetrics();
+		final Journal journal = askat.getJournal();
+		final long queued = System.nanoTime();
+		OsCmdRunner rScriptCmd = new OsCmdRunner("R_Script_" + rScriptName, args) {
+
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				metrics.time("queue_wait", queued);
+				try {
+					super.run();
+
+					// Mark batch files as 'done' as soon as the command succeeds (failed commands are executed again when resuming)
+					if ((journal != null) && (getExitValue() == 0)) {
+						for (String bf : batchFile.split(","))
+							journal.done(bf);
+					}
+				} finally {
+					long elapsed = System.nanoTime() - start;
+					metrics.stage("r_exec").add(elapsed);
+					metrics.busy(POOL_R_SCRIPT, null, elapsed); // Commands are not bound to a worker: Only pool utilisation
+				}
+			}
+		};
 		//rScriptCmd.getOsCmd().setQuiet(!debug, !debug);
 		rScriptCmd.getOsCmd().setQuiet(false, !askat.isDebug());
 		rScriptCmd.getOsCmd().setSaveStd(true); // We want to save and parse STDOUT
-		if (!askat.isDebug()) rScriptCmd.getOsCmd().setStdOutFilter(lineFilter);
+		rScriptCmd.getOsCmd().setStdOutFilter(lineFilter);
 		queue.add(rScriptCmd);
 	}
 
@@ -317,48 +338,134 @@ public class KinshipBlock {
 		}
 	}
 
+	/**
+	 * Set file names
+	 * @param scratch : Prefix for scratch files (batch files, GenABEL files, etc.)
+	 * @param output : Prefix for kinship and null model files
+	 */
+	void fileNames(String scratch, String output) {
+		genabelGenFile = scratch + ".genabel.gen";
+		genabelPhenFile = scratch + ".genabel.phen";
+		simFile = scratch + ".sim";
+		phenoFile = scratch + ".pheno.txt";
+		kinshipFile = output + EXT_KINSHIP;
+		kinshipBinFile = output + EXT_KINSHIP_BIN;
+		nullModelFile = output + EXT_NULL_MODEL;
+		nullModelPhenoFile = output + EXT_NULL_MODEL_PHENO;
+	}
+
 	/**
 	 * Save file for batchFilesIntervals
-	 * @param lines
+	 * Note: When running ASKAT in-process, entries are added to the queue instead (no file is created)
+	 * @param entries
 	 * @param batchFile
 	 * @param m
 	 * @return
 	 */
-	boolean intervalsCreateFile(List<String> lines, String batchFile, Marker m) {
-		if (lines != null) {
+	boolean intervalsCreateFile(List<TpedEntry> entries, String batchFile, Marker m) {
+		if (entries != null) {
 			// Don't create file if it's less than MinVariants
-			if (askat.getMinVariants() >= lines.size()) {
-				if (askat.isVerbose()) Timer.showStdErr("Interval " + m + "only has " + lines.size() + " variants. Skipping.");
+			if (askat.getMinVariants() >= entries.size()) {
+				if (askat.isVerbose()) Timer.showStdErr("Interval " + m + "only has " + entries.size() + " variants. Skipping.");
 				return false;
 			}
 
-			StringBuilder sb = new StringBuilder();
-			for (String line : lines)
-				sb.append(line + "\n");
+			// Test in-process
+			if (javaQueue != null) {
+				if (askat.isVerbose()) Timer.showStdErr("Adding " + entries.size() + " variants corresponding to interval " + m);
+				javaQueue.add(batchFile, 1, entries);
+				return false;
+			}
 
 			// Save file
-			if (sb.length() > 0) {
-				if (askat.isVerbose()) Timer.showStdErr("Saving " + lines.size() + " lines to file '" + batchFile + "' corresponding to interval " + m);
-				Gpr.toFile(batchFile, sb);
+			if (!entries.isEmpty()) {
+				if (askat.isVerbose()) Timer.showStdErr("Saving " + entries.size() + " variants to file '" + batchFile + "' corresponding to interval " + m);
+				AskatBatchFile outFile = new AskatBatchFile(batchFile, entries.get(0).getNumSamples());
+				for (TpedEntry tpedEntry : entries)
+					outFile.add(tpedEntry);
+				outFile.close();
+				batchVariants.put(batchFile, entries.size());
 				return true;
 			}
 		} else if (askat.isVerbose()) Timer.showStdErr("Interval " + m + " has no variants: Skipped.");
 		return false;
 	}
 
+	/**
+	 * Calculate kinship matrix (or get it from the kinship cache)
+	 */
+	public void kinship() {
+		long start = System.nanoTime();
+		try {
+			// Note: Leave one chromosome out kinship depends on all other blocks, so it is not cached
+			KinshipCache kinshipCache = askat.getKinshipCache();
+			if ((kinshipCache == null) || (kinshipLoco != null)) {
+				kinshipCalc();
+				return;
+			}
+
+			// Use cached files (existing files are not used, they may be stale)
+			String key = kinshipCache.key(blockFile);
+			if (kinshipCache.restore(key, blockName, CACHED_FILES)) {
+				askat.getMetrics().count("kinship_cache_hits");
+				return;
+			}
+
+			kinshipCalc();
+			kinshipCache.put(key, blockName, CACHED_FILES);
+		} finally {
+			askat.getMetrics().time("kinship", start);
+		}
+	}
+
 	/**
 	 * Execute an R script to calculate kinship matrix
 	 * @param cmd
 	 */
-	public void kinship() {
+	void kinshipCalc() {
 		if (askat.isVerbose()) Timer.showStdErr("Calculating kinship matrix for block: " + blockName);
 
 		// Kinship file already exists? Use it!
-		if (Gpr.canRead(kinshipFile)) {
-			if (askat.isVerbose()) Timer.showStdErr("Kinship file '" + kinshipFile + "' alrady exists. Nothing done.");
+		// Note: The in-process ASKAT also needs the null model file. If everything
+		// is calculated in Java, the R kinship file is not used at all
+		boolean javaOnly = askat.isJavaKinship() && askat.isJavaAskat();
+		if ((javaOnly || Gpr.canRead(kinshipFile)) && (!askat.isJavaAskat() || canReadNullModel())) {
+			if (askat.isVerbose()) Timer.showStdErr("Kinship file '" + (javaOnly ? nullModelFile : kinshipFile) + "' alrady exists. Nothing done.");
+			return;
+		}
+
+		if (scratchName.equals(blockName)) {
+			kinshipCalcFiles();
 			return;
 		}
 
+		// Multi-node runs: Create files using scratch names and rename them when finished, so
+		// a duplicate job (e.g. re-queued after a heartbeat timeout) cannot overwrite files
+		// other jobs are reading
+		fileNames(scratchName, scratchName);
+		try {
+			kinshipCalcFiles();
+		} finally {
+			fileNames(scratchName, blockName);
+		}
+
+		for (String ext : CACHED_FILES) {
+			File f = new File(scratchName + ext);
+			if (f.exists() && !f.renameTo(new File(blockName + ext))) throw new RuntimeException("Cannot rename file '" + f + "' to '" + blockName + ext + "'");
+		}
+	}
+
+	/**
+	 * Calculate kinship matrix and null model files
+	 */
+	void kinshipCalcFiles() {
+		// Calculate kinship matrix and null model in Java? Then the R script only
+		// loads them (no GenABEL files are created and FaST-LMM is not invoked)
+		if (askat.isJavaKinship()) {
+			kinshipJava();
+			if (askat.isJavaAskat()) return; // R script not needed
+		}
+
 		// We should delete all these files after we are done
 		toDelete.add(genabelGenFile);
 		toDelete.add(genabelPhenFile);
@@ -378,18 +485,191 @@ public class KinshipBlock {
 				, kinshipFile //
 				, simFile //
 				, phenoFile //
-				, askat.getPath(Askat.CMD_FASTLMM) //
+				, (askat.isJavaKinship() ? "" : askat.getPath(Askat.CMD_FASTLMM)) // FaST-LMM is not used when null model is calculated in Java
+				, nullModelFile //
+				, (askat.isJavaKinship() ? kinshipBinFile : "") //
+		};
+
+		// The script reports time spent in FaST-LMM (an 'ASKAT_METRIC:' line)
+		final long fastlmmNanos[] = { 0 };
+		LineFilter lineFilter = new LineFilter() {
+
+			@Override
+			public String filter(String line) {
+				if (line.startsWith(Askat.ASKAT_METRIC)) {
+					String fields[] = line.split("\t");
+					if ((fields.length == 3) && fields[1].equals("fastlmm")) fastlmmNanos[0] += (long) (Gpr.parseDoubleSafe(fields[2]) * 1e9);
+				}
+				return debug ? line : null; // Show everything in debug mode
+			}
 		};
 
 		String rScriptName = cmd[1];
 		OsCmdRunner rScriptCmd = new OsCmdRunner("R_Script_" + rScriptName, cmd);
-		rScriptCmd.getOsCmd().setQuiet(!debug, !debug);
+		rScriptCmd.getOsCmd().setQuiet(false, !debug);
+		rScriptCmd.getOsCmd().setSaveStd(true); // We want to parse STDOUT
+		rScriptCmd.getOsCmd().setStdOutFilter(lineFilter);
 		if (debug) Timer.showStdErr("\tExecuting command: " + rScriptCmd.getOsCmd());
+		long start = System.nanoTime();
 		rScriptCmd.run();
+
+		// FaST-LMM null model is a separate stage, 'kinship_script' is the rest of the script (mostly GenABEL kinship)
+		long elapsed = System.nanoTime() - start;
+		Metrics metrics = askat.getMetrics();
+		if (fastlmmNanos[0] > 0) metrics.stage("fastlmm").add(fastlmmNanos[0]);
+		metrics.stage("kinship_script").add(Math.max(0, elapsed - fastlmmNanos[0]));
 		if (rScriptCmd.getExitValue() != 0) askat.fatalError("Execution of R script '" + rScriptName + "' failed.\n\tCommand line: " + rScriptCmd);
 	}
 
+	/**
+	 * Calculate kinship matrix (IBS) and null model (ML, or REML using '-reml') in Java.
+	 * Results are saved to 'kinshipBinFile' and 'nullModelFile'
+	 */
+	void kinshipJava() {
+		if (Gpr.canRead(kinshipBinFile) && canReadNullModel()) {
+			if (askat.isVerbose()) Timer.showStdErr("Kinship file '" + kinshipBinFile + "' and null model file '" + nullModelFile + "' alrady exist. Nothing done.");
+			return;
+		}
+
+		// Kinship matrix
+		Tfam tfam = new Tfam(askat.getTfamFile());
+		long start = System.nanoTime();
+		double kinship[][];
+		if (Gpr.canRead(kinshipBinFile)) {
+			if (askat.isVerbose()) Timer.showStdErr("Loading kinship matrix from file '" + kinshipBinFile + "'");
+			kinship = KinshipIbs.load(kinshipBinFile);
+		} else if (kinshipLoco != null) {
+			// Leave one chromosome out kinship: Calculated from all other chromosomes
+			kinship = kinshipLoco.kinship(chr);
+
+			if (askat.isVerbose()) Timer.showStdErr("Saving kinship matrix to file '" + kinshipBinFile + "'");
+			KinshipIbs.save(kinshipBinFile, kinship);
+		} else {
+			KinshipIbs kinshipIbs = new KinshipIbs(tfam.size(), askat.getNumWorkers());
+			kinshipIbs.setVerbose(askat.isVerbose());
+			kinship = kinshipIbs.kinship(askat.getGenome(), blockFile);
+
+			if (askat.isVerbose()) Timer.showStdErr("Saving kinship matrix to file '" + kinshipBinFile + "'");
+			kinshipIbs.save(kinshipBinFile);
+		}
+		askat.getMetrics().time("kinship_ibs", start);
+
+		// Null model
+		if (!canReadNullModel()) {
+			start = System.nanoTime();
+			if (askat.getPhenotypes() != null) nullModelPhenotypes(kinship, tfam);
+			else {
+				if (askat.isVerbose()) Timer.showStdErr("Fitting null model for block: " + blockName);
+				NullModelReml nullModelReml = new NullModelReml(kinship, tfam.getPhenotypes());
+				nullModelReml.setReml(askat.isReml());
+				nullModelReml.setVerbose(askat.isVerbose());
+				nullModelReml.fit().save(nullModelFile);
+			}
+			askat.getMetrics().time("null_model", start);
+		}
+	}
+
+	/**
+	 * Multi-phenotype mode: Fit a null model for each phenotype. The kinship
+	 * matrix eigen-decomposition is only calculated once and shared by all
+	 * phenotypes. The eigen-decomposition is saved to 'nullModelFile' and
+	 * variance components for each phenotype to 'nullModelPhenoFile'
+	 */
+	void nullModelPhenotypes(double kinship[][], Tfam tfam) {
+		Phenotypes phenotypes = askat.getPhenotypes();
+		double values[][] = phenotypes.get(tfam);
+		if (askat.isVerbose()) Timer.showStdErr("Fitting null models for block: " + blockName + ", " + phenotypes.size() + " phenotypes");
+
+		NullModelReml first = null;
+		List<NullModel> nullModels = new ArrayList<NullModel>();
+		for (int i = 0; i < values.length; i++) {
+			NullModelReml nullModelReml = (first == null ? new NullModelReml(kinship, values[i]) : new NullModelReml(first.getS(), first.getU(), values[i]));
+			if (first == null) first = nullModelReml;
+			nullModelReml.setReml(askat.isReml());
+			nullModelReml.setVerbose(askat.isVerbose());
+			nullModels.add(nullModelReml.fit());
+		}
+
+		NullModel.saveVarianceComponents(nullModelPhenoFile, phenotypes.getNames(), nullModels);
+		nullModels.get(0).save(nullModelFile);
+	}
+
+	/**
+	 * Are null model files available?
+	 */
+	boolean canReadNullModel() {
+		return Gpr.canRead(nullModelFile) && ((askat.getPhenotypes() == null) || Gpr.canRead(nullModelPhenoFile));
+	}
+
+	/**
+	 * Group batch files into requests for R workers (comma separated lists of files)
+	 * Note: Workers are long lived, so groups are small (for load balancing)
+	 */
+	List<String> rWorkerJobs(List<String> batchFiles) {
+		List<String> jobs = new ArrayList<String>();
+
+		if (intervals == null) {
+			// Block & sub-block method: Batch files have similar sizes, one file per request
+			for (String batchFile : batchFiles) {
+				toDelete.add(batchFile);
+				jobs.add(batchFile);
+				if (debugOnlyOnce) return jobs;
+			}
+		} else {
+			// Intervals method: Group files according to their cost
+			jobs = scheduleJobs(batchFiles, RWorkerPool.JOBS_PER_WORKER);
+			if (debugOnlyOnce) return jobs.subList(0, Math.min(1, jobs.size()));
+		}
+
+		if (askat.isVerbose()) Timer.showStdErr("Created " + jobs.size() + " requests for R workers, " + batchFiles.size() + " files.");
+		return jobs;
+	}
+
+	/**
+	 * Group interval batch files into jobs, largest first (see BatchScheduler)
+	 */
+	List<String> scheduleJobs(List<String> batchFiles, int jobsPerWorker) {
+		BatchScheduler scheduler = new BatchScheduler(askat.getNumWorkers(), askat.getSubBlockSize(), jobsPerWorker);
+		List<String> jobs = scheduler.jobs(batchFiles, batchVariants);
+		if (askat.isVerbose()) Timer.showStdErr("Scheduled " + batchFiles.size() + " files into " + jobs.size() + " jobs (largest first).");
+		return jobs;
+	}
+
+	/**
+	 * Remove batch files that were done in a previous run (see Journal)
+	 */
+	List<String> notDone(List<String> batchFiles) {
+		Journal journal = askat.getJournal();
+		if (journal == null) return batchFiles;
+
+		List<String> notDone = new ArrayList<String>();
+		for (String batchFile : batchFiles) {
+			if (!journal.isDone(batchFile)) notDone.add(batchFile);
+			else if (intervals == null) toDelete.add(batchFile);
+		}
+
+		if (askat.isVerbose() && (notDone.size() < batchFiles.size())) Timer.showStdErr("Skipping " + (batchFiles.size() - notDone.size()) + " batch files (already done), " + notDone.size() + " left.");
+		return notDone;
+	}
+
 	public void setIntervals(List<SeqChange> intervals) {
 		this.intervals = intervals;
 	}
+
+	/**
+	 * Multi-node runs: Add a tag to scratch file names (e.g. a job claim), so
+	 * several processes running the same block do not use the same files
+	 */
+	public void setScratchTag(String tag) {
+		scratchName = blockName + tag;
+		fileNames(scratchName, blockName);
+	}
+
+	/**
+	 * Use 'leave one chromosome out' kinship matrix
+	 */
+	public void setKinshipLoco(KinshipLoco kinshipLoco, String chr) {
+		this.kinshipLoco = kinshipLoco;
+		this.chr = chr;
+	}
 }
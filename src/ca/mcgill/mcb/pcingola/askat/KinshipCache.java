@@ -0,0 +1,269 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * A cache of kinship matrices and null models, shared between runs.
+ * 
+ * Entries are keyed by a hash of: the TFAM file (samples and phenotypes), 
+ * the block's content (variants that passed the filters) and the parameters
+ * used to calculate them. So a cached entry is never used if any of them changes.
+ * 
+ * Each entry is a directory named after the key. Entries are written to a
+ * temporary directory and then renamed, so concurrent runs never see a 
+ * partial entry. The cache size is limited by evicting the least recently 
+ * used entries (an entry's modification time is updated when it's used).
+ * 
+ * @author pcingola
+ */
+public class KinshipCache {
+
+	public static final String LOCK_FILE = ".lock";
+	public static final String TMP_PREFIX = ".tmp."; // Entries being created or deleted
+
+	String cacheDir;
+	long maxSize; // Maximum cache size in bytes
+	Askat askat;
+	boolean verbose;
+	Random random = new Random();
+
+	public KinshipCache(Askat askat, String cacheDir, long maxSize) {
+		this.askat = askat;
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		verbose = askat.isVerbose();
+
+		File dir = new File(cacheDir);
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) throw new RuntimeException("Cannot create kinship cache directory '" + cacheDir + "'");
+	}
+
+	/**
+	 * Copy a file (write to a temporary file and rename, so the destination is never partially written)
+	 */
+	void copy(File src, File dst) throws IOException {
+		File tmp = new File(dst.getPath() + TMP_PREFIX + random.nextInt(Integer.MAX_VALUE));
+		FileInputStream in = new FileInputStream(src);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			FileChannel inChannel = in.getChannel(), outChannel = out.getChannel();
+			long size = inChannel.size();
+			for (long pos = 0; pos < size;)
+				pos += inChannel.transferTo(pos, size - pos, outChannel);
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		if (!tmp.renameTo(dst)) {
+			tmp.delete();
+			throw new IOException("Cannot rename file '" + tmp + "' to '" + dst + "'");
+		}
+	}
+
+	/**
+	 * Delete a directory and its files
+	 */
+	void delete(File dir) {
+		File files[] = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Evict least recently used entries until the cache size is below the limit
+	 * Note: Only one process evicts entries at any time (we use a file lock)
+	 */
+	void evict() {
+		try {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(cacheDir, LOCK_FILE), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().tryLock();
+				if (lock == null) return; // Another process is evicting entries
+
+				// Entries sorted by last use
+				List<File> entries = new ArrayList<File>();
+				long size = 0;
+				for (File entry : new File(cacheDir).listFiles()) {
+					if (!entry.isDirectory() || entry.getName().startsWith(TMP_PREFIX)) continue;
+					entries.add(entry);
+					size += size(entry);
+				}
+
+				File sorted[] = entries.toArray(new File[0]);
+				Arrays.sort(sorted, new Comparator<File>() {
+
+					@Override
+					public int compare(File f1, File f2) {
+						long lm1 = f1.lastModified(), lm2 = f2.lastModified();
+						return lm1 < lm2 ? -1 : (lm1 > lm2 ? 1 : 0);
+					}
+				});
+
+				// Evict oldest entries
+				for (int i = 0; (i < sorted.length) && (size > maxSize); i++) {
+					long entrySize = size(sorted[i]);
+
+					// Rename before deleting, so that the entry disappears atomically
+					File del = new File(cacheDir, TMP_PREFIX + sorted[i].getName() + "." + random.nextInt(Integer.MAX_VALUE));
+					if (!sorted[i].renameTo(del)) continue;
+					if (verbose) Timer.showStdErr("Kinship cache: Evicting entry '" + sorted[i].getName() + "' (" + entrySize + " bytes)");
+					delete(del);
+					size -= entrySize;
+				}
+
+				lock.release();
+			} finally {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			System.err.println("WARNING: Cannot evict entries from kinship cache '" + cacheDir + "': " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Calculate key for a block
+	 */
+	public String key(String blockFile) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+			// Parameters
+			String params = "version:" + Askat.VERSION_SHORT //
+					+ "\tjavaKinship:" + askat.isJavaKinship() //
+					+ "\tjavaAskat:" + askat.isJavaAskat() //
+					+ "\tmaxMaf:" + askat.getMaxMaf() //
+					+ "\n";
+			md.update(params.getBytes());
+
+			// Samples and phenotypes
+			update(md, askat.getTfamFile());
+			if (askat.getPhenotypesFile() != null) update(md, askat.getPhenotypesFile());
+
+			// Block content
+			update(md, blockFile);
+
+			// Convert to hex
+			StringBuilder key = new StringBuilder();
+			for (byte b : md.digest())
+				key.append(String.format("%02x", b & 0xff));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException("Error calculating kinship cache key for file '" + blockFile + "'", e);
+		}
+	}
+
+	/**
+	 * Save files to the cache
+	 * @param key : Cache key
+	 * @param prefix : Files are named 'prefix + suffix'
+	 * @param suffixes : Files suffixes (files that don't exist are not saved)
+	 */
+	public void put(String key, String prefix, String suffixes[]) {
+		File entry = new File(cacheDir, key);
+		if (entry.isDirectory()) return; // Already in cache (e.g. added by another process)
+
+		File tmp = new File(cacheDir, TMP_PREFIX + key + "." + random.nextInt(Integer.MAX_VALUE));
+		try {
+			if (!tmp.mkdir()) throw new IOException("Cannot create directory '" + tmp + "'");
+			for (String suffix : suffixes) {
+				File f = new File(prefix + suffix);
+				if (f.exists()) copy(f, new File(tmp, suffix));
+			}
+
+			// Rename is atomic: If another process has already added this entry, ours is discarded
+			if (tmp.renameTo(entry)) {
+				if (verbose) Timer.showStdErr("Kinship cache: Added entry '" + key + "'");
+			} else delete(tmp);
+		} catch (IOException e) {
+			delete(tmp);
+			System.err.println("WARNING: Cannot add entry '" + key + "' to kinship cache '" + cacheDir + "': " + e.getMessage());
+		}
+
+		evict();
+	}
+
+	/**
+	 * Restore files from the cache.
+	 * Existing files are always deleted first (they may be stale). 
+	 * @param key : Cache key
+	 * @param prefix : Files are named 'prefix + suffix'
+	 * @param suffixes : Files suffixes
+	 * @return true if the entry was found in the cache (files are restored)
+	 */
+	public boolean restore(String key, String prefix, String suffixes[]) {
+		for (String suffix : suffixes)
+			new File(prefix + suffix).delete();
+
+		File entry = new File(cacheDir, key);
+		if (!entry.isDirectory()) return false;
+
+		try {
+			entry.setLastModified(System.currentTimeMillis()); // Mark as recently used
+			for (String suffix : suffixes) {
+				File f = new File(entry, suffix);
+				if (f.exists()) copy(f, new File(prefix + suffix));
+			}
+		} catch (IOException e) {
+			// Entry may have been evicted by another process while copying
+			for (String suffix : suffixes)
+				new File(prefix + suffix).delete();
+			return false;
+		}
+
+		if (verbose) Timer.showStdErr("Kinship cache: Using entry '" + key + "'");
+		return true;
+	}
+
+	/**
+	 * Total size of files in a directory
+	 */
+	long size(File dir) {
+		long size = 0;
+		File files[] = dir.listFiles();
+		if (files != null) {
+			for (File f : files)
+				size += f.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Update digest with a file's content
+	 */
+	static void update(MessageDigest md, String fileName) throws IOException {
+		FileInputStream in = new FileInputStream(fileName);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(LittleEndian.BUFFER_SIZE);
+			while (channel.read(buffer) > 0) {
+				buffer.flip();
+				md.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,445 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.mcgill.mcb.pcingola.interval.Genome;
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Kinship matrix using frequency weighted IBS. This is the same as
+ * GenABEL's 'ibs(data[, autosomal(data)], weight = "freq")' followed
+ * by 'diagReplace(kinship, upper=TRUE)' (see 'createKinship' in 'kinship.r')
+ *
+ *		K[i,j] = 1/N[i,j] * sum_k (x[i,k] - 2 p[k]) (x[j,k] - 2 p[k]) / (4 p[k] (1 - p[k]))
+ *		K[i,i] = 0.5
+ *
+ * where x[i,k] is the number of alleles, p[k] the allele frequency and N[i,j] the
+ * number of variants where both samples 'i' and 'j' are not missing. Only autosomal,
+ * polymorphic variants are used.
+ *
+ * Genotypes are read in chunks, packed at 2 bits per call (see PackedGenotypes).
+ * Each chunk is split into tiles of TILE_SIZE x TILE_SIZE sample pairs that are
+ * processed in parallel. While one chunk is being processed, the next one is read.
+ *
+ * Binary file format (little endian, read by 'kinship.r'):
+ * 		int32			n : Number of samples
+ * 		float64[n*n]	K : Kinship matrix (column major)
+ *
+ * @author pcingola
+ */
+public class KinshipIbs {
+
+	public static final int CHUNK_SIZE = 16 * PackedGenotypes.CODES_PER_WORD; // Number of variants per chunk
+	public static final int TILE_SIZE = 64; // Number of samples per tile
+
+	boolean verbose = false;
+	int n; // Number of samples
+	int numVariants; // Number of variants used
+	int numTiles;
+	double k[][]; // Kinship matrix. While calculating, only upper triangle is used (accumulated numerator)
+	int missingPairs[][]; // Number of variants where either sample is missing (upper triangle). Only created if there are missing genotypes
+	PackedGenotypes chunk, chunkNext; // Current and next chunks
+	ExecutorService executor;
+	List<Future<Object>> running; // Tiles being calculated
+	ThreadLocal<Tile> tiles; // Decoding buffers (one per thread, they are reused)
+
+	/**
+	 * Decoding buffers for a tile
+	 */
+	class Tile {
+		double rowI[][] = new double[TILE_SIZE][CHUNK_SIZE], rowJ[][] = new double[TILE_SIZE][CHUNK_SIZE];
+		long maskI[][] = new long[TILE_SIZE][], maskJ[][] = new long[TILE_SIZE][];
+		int missI[] = new int[TILE_SIZE], missJ[] = new int[TILE_SIZE]; // Number of missing calls in each row
+	}
+
+	/**
+	 * Is this an autosomal chromosome? (same as GenABEL's 'autosomal()')
+	 */
+	public static boolean isAutosomal(String chr) {
+		if (chr.toLowerCase().startsWith("chr")) chr = chr.substring(3);
+		try {
+			int num = Integer.parseInt(chr);
+			return (num >= 1) && (num <= 22);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Load a kinship matrix from a binary file
+	 */
+	public static double[][] load(String fileName) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(fileName);
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = LittleEndian.bufferRead();
+
+			int n = LittleEndian.fill(channel, buffer, 4).getInt();
+			if (n <= 0) throw new RuntimeException("Invalid number of samples (" + n + ") in kinship file '" + fileName + "'");
+
+			double k[][] = new double[n][n];
+			for (int j = 0; j < n; j++)
+				for (int i = 0; i < n; i++)
+					k[i][j] = LittleEndian.fill(channel, buffer, 8).getDouble();
+			return k;
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading kinship file '" + fileName + "'", e);
+		} finally {
+			try {
+				if (fis != null) fis.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public KinshipIbs(int n, int numThreads) {
+		this.n = n;
+		numTiles = (n + TILE_SIZE - 1) / TILE_SIZE;
+		k = new double[n][n];
+		chunk = new PackedGenotypes(n, CHUNK_SIZE);
+		chunkNext = new PackedGenotypes(n, CHUNK_SIZE);
+		executor = Executors.newFixedThreadPool(numThreads);
+		running = new ArrayList<Future<Object>>();
+
+		tiles = new ThreadLocal<Tile>() {
+			@Override
+			protected Tile initialValue() {
+				return new Tile();
+			}
+		};
+	}
+
+	/**
+	 * Add a variant
+	 * @return true if the variant was used
+	 */
+	public boolean add(TpedEntry tpedEntry) {
+		if (!isAutosomal(tpedEntry.getChromosomeName())) return false;
+
+		chunk.add(tpedEntry);
+		int t = chunk.size() - 1;
+		int count = chunk.getAlleleCount(t);
+		int nonMissing = chunk.getNonMissing(t);
+
+		// Monomorphic variants do not contribute (and would produce a division by zero)
+		if ((count == 0) || (count == 2 * nonMissing)) {
+			chunk.removeLast();
+			return false;
+		}
+
+		numVariants++;
+		if (chunk.isFull()) flush();
+		return true;
+	}
+
+	/**
+	 * Finish all calculations (release threads)
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Process remaining variants. After this, the accumulated (not normalized) values
+	 * are available in 'getKinship()' and 'getMissingPairs()' (upper triangle only)
+	 */
+	public void finish() {
+		flush();
+		waitRunning();
+	}
+
+	/**
+	 * Calculate a chunk: Wait until previous chunk is finished, then
+	 * launch tiles in parallel and swap buffers
+	 */
+	void flush() {
+		if (chunk.isEmpty()) return;
+
+		waitRunning();
+		if (chunk.hasMissing() && (missingPairs == null)) missingPairs = new int[n][n];
+
+		// Standardized values for each variant and code: w[4 * t + code] = (x - 2 p) / (2 sqrt(p (1-p))), missing is zero
+		double w[] = new double[4 * CHUNK_SIZE];
+		for (int t = 0; t < chunk.size(); t++) {
+			double p = chunk.getAlleleCount(t) / (2.0 * chunk.getNonMissing(t));
+			double norm = 2.0 * Math.sqrt(p * (1.0 - p));
+			for (int code = 0; code < PackedGenotypes.MISSING; code++)
+				w[4 * t + code] = (code - 2.0 * p) / norm;
+		}
+
+		// Launch one task for each tile (upper triangle)
+		final PackedGenotypes chunkTiles = chunk;
+		final double weightsTiles[] = w;
+		for (int ti = 0; ti < numTiles; ti++)
+			for (int tj = ti; tj < numTiles; tj++) {
+				final int tileI = ti, tileJ = tj;
+				running.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						tile(chunkTiles, weightsTiles, tileI, tileJ);
+						return null;
+					}
+				}));
+			}
+
+		// Swap buffers (we can read the next chunk while this one is calculated)
+		PackedGenotypes tmp = chunkNext;
+		chunkNext = chunk;
+		chunk = tmp;
+		chunk.clear();
+	}
+
+	public double[][] getKinship() {
+		return k;
+	}
+
+	/**
+	 * Number of variants where either sample is missing (upper triangle), null if there were no missing genotypes
+	 */
+	public int[][] getMissingPairs() {
+		return missingPairs;
+	}
+
+	public int getNumSamples() {
+		return n;
+	}
+
+	public int getNumVariants() {
+		return numVariants;
+	}
+
+	/**
+	 * Finish calculation: Process remaining variants and create the kinship matrix
+	 */
+	public double[][] kinship() {
+		finish();
+		close();
+
+		if (numVariants <= 0) throw new RuntimeException("No autosomal polymorphic variants found, cannot calculate kinship matrix");
+		if (verbose) Timer.showStdErr("Kinship matrix: " + n + " samples, " + numVariants + " variants");
+
+		// Divide by number of variants, copy upper triangle to lower triangle and replace diagonal (GenABEL's diagReplace)
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				int count = (missingPairs != null ? numVariants - missingPairs[i][j] : numVariants);
+				k[i][j] = k[j][i] = (count > 0 ? k[i][j] / count : 0.0);
+			}
+			k[i][i] = 0.5;
+		}
+
+		missingPairs = null;
+		return k;
+	}
+
+	/**
+	 * Calculate kinship matrix from a TPED file
+	 */
+	public double[][] kinship(Genome genome, String tpedFile) {
+		if (verbose) Timer.showStdErr("Calculating kinship matrix (IBS) from file '" + tpedFile + "'");
+		TpedScanner tped = new TpedScanner(tpedFile);
+		TpedEntry tpedEntry = new TpedEntry(genome); // Reused for every line (genotypes are packed by 'add')
+		while (tped.next())
+			add(tpedEntry.set(tped));
+		tped.close();
+		return kinship();
+	}
+
+	/**
+	 * Number of missing calls in a row, given its non-missing mask
+	 */
+	int countMissing(PackedGenotypes chunk, long mask[]) {
+		int nonMissing = 0;
+		for (int wi = 0; wi < mask.length; wi++)
+			nonMissing += Long.bitCount(mask[wi]);
+		return chunk.size() - nonMissing;
+	}
+
+	/**
+	 * Decode one row in a chunk
+	 * @return Non-missing mask (only if chunk has missing values)
+	 */
+	long[] decode(PackedGenotypes chunk, double w[], int i, double row[], long mask[]) {
+		long codes[] = chunk.getCodes(i);
+		for (int t = 0, size = chunk.size(); t < size; t++) {
+			int code = (int) (codes[t / PackedGenotypes.CODES_PER_WORD] >>> (2 * (t % PackedGenotypes.CODES_PER_WORD))) & 3;
+			row[t] = w[4 * t + code];
+		}
+
+		if (!chunk.hasMissing()) return mask;
+
+		int words = (chunk.size() + PackedGenotypes.CODES_PER_WORD - 1) / PackedGenotypes.CODES_PER_WORD;
+		if ((mask == null) || (mask.length != chunk.getWords())) mask = new long[chunk.getWords()];
+		for (int wi = 0; wi < mask.length; wi++)
+			mask[wi] = (wi < words ? PackedGenotypes.nonMissing(codes[wi]) : 0);
+
+		// Unused codes in the last word are zero (i.e. non-missing), clear them
+		int used = chunk.size() % PackedGenotypes.CODES_PER_WORD;
+		if (used > 0) mask[words - 1] &= (1L << (2 * used)) - 1;
+
+		return mask;
+	}
+
+	/**
+	 * Clear accumulated values (e.g. to start a new chromosome)
+	 */
+	public void reset() {
+		finish();
+		for (int i = 0; i < n; i++) {
+			Arrays.fill(k[i], 0.0);
+			if (missingPairs != null) Arrays.fill(missingPairs[i], 0);
+		}
+		numVariants = 0;
+	}
+
+	public void save(String fileName) {
+		save(fileName, k);
+	}
+
+	/**
+	 * Save a kinship matrix to a binary file
+	 */
+	public static void save(String fileName, double k[][]) {
+		int n = k.length;
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(new File(fileName));
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = LittleEndian.bufferWrite();
+
+			buffer.putInt(n);
+			for (int j = 0; j < n; j++)
+				for (int i = 0; i < n; i++)
+					LittleEndian.flush(channel, buffer, 8).putDouble(k[i][j]);
+
+			LittleEndian.flush(channel, buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing kinship file '" + fileName + "'", e);
+		} finally {
+			try {
+				if (fos != null) fos.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Accumulate one tile: all pairs (i, j) with 'i' in tile 'tileI' and 'j' in tile 'tileJ'
+	 * Note: Tiles never overlap, so there is no need to synchronize
+	 */
+	void tile(PackedGenotypes chunk, double w[], int tileI, int tileJ) {
+		Tile tile = tiles.get();
+		int size = chunk.size();
+		int words = (size + PackedGenotypes.CODES_PER_WORD - 1) / PackedGenotypes.CODES_PER_WORD;
+		boolean missing = chunk.hasMissing();
+
+		int startI = tileI * TILE_SIZE, endI = Math.min(n, startI + TILE_SIZE);
+		int startJ = tileJ * TILE_SIZE, endJ = Math.min(n, startJ + TILE_SIZE);
+
+		for (int i = startI; i < endI; i++) {
+			tile.maskI[i - startI] = decode(chunk, w, i, tile.rowI[i - startI], tile.maskI[i - startI]);
+			if (missing) tile.missI[i - startI] = countMissing(chunk, tile.maskI[i - startI]);
+		}
+
+		double rowsJ[][] = tile.rowI;
+		long masksJ[][] = tile.maskI;
+		int missJ[] = tile.missI;
+		if (tileI != tileJ) {
+			for (int j = startJ; j < endJ; j++) {
+				tile.maskJ[j - startJ] = decode(chunk, w, j, tile.rowJ[j - startJ], tile.maskJ[j - startJ]);
+				if (missing) tile.missJ[j - startJ] = countMissing(chunk, tile.maskJ[j - startJ]);
+			}
+			rowsJ = tile.rowJ;
+			masksJ = tile.maskJ;
+			missJ = tile.missJ;
+		}
+
+		for (int i = startI; i < endI; i++) {
+			double ri[] = tile.rowI[i - startI];
+			double ki[] = k[i];
+
+			int j = Math.max(startJ, i + 1);
+
+			// Four pairs at a time: Row 'i' is loaded once and sums are independent
+			for (; j + 3 < endJ; j += 4) {
+				double r0[] = rowsJ[j - startJ], r1[] = rowsJ[j + 1 - startJ], r2[] = rowsJ[j + 2 - startJ], r3[] = rowsJ[j + 3 - startJ];
+				double sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+				for (int t = 0; t < size; t++) {
+					double x = ri[t];
+					sum0 += x * r0[t];
+					sum1 += x * r1[t];
+					sum2 += x * r2[t];
+					sum3 += x * r3[t];
+				}
+				ki[j] += sum0;
+				ki[j + 1] += sum1;
+				ki[j + 2] += sum2;
+				ki[j + 3] += sum3;
+			}
+
+			for (; j < endJ; j++) {
+				double rj[] = rowsJ[j - startJ];
+				double sum = 0;
+				for (int t = 0; t < size; t++)
+					sum += ri[t] * rj[t];
+				ki[j] += sum;
+			}
+
+			if (missing) tileMissing(size, words, missingPairs[i], tile.maskI[i - startI], tile.missI[i - startI], masksJ, missJ, Math.max(startJ, i + 1) - startJ, endJ - startJ, startJ);
+		}
+	}
+
+	/**
+	 * Count variants where either sample is missing, for row 'i' and all 'j' in [startJ + jmin, startJ + jmax)
+	 */
+	void tileMissing(int size, int words, int pi[], long mi[], int missI, long masksJ[][], int missJ[], int jmin, int jmax, int startJ) {
+		for (int jj = jmin; jj < jmax; jj++) {
+			// No missing values in one of the rows? Count is trivial
+			if ((missI == 0) || (missJ[jj] == 0)) {
+				pi[startJ + jj] += missI + missJ[jj];
+				continue;
+			}
+
+			long mj[] = masksJ[jj];
+			int nonMissing = 0;
+			for (int wi = 0; wi < words; wi++)
+				nonMissing += Long.bitCount(mi[wi] & mj[wi]);
+			pi[startJ + jj] += size - nonMissing;
+		}
+	}
+
+	/**
+	 * Wait for all running tiles to finish
+	 */
+	void waitRunning() {
+		try {
+			for (Future<Object> f : running)
+				f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error calculating kinship matrix", e.getCause());
+		}
+		running.clear();
+	}
+
+}
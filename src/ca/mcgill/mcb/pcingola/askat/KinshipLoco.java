@@ -0,0 +1,231 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Leave one chromosome out (LOCO) kinship matrices.
+ *
+ * The kinship matrix used for chromosome 'c' is calculated using variants in
+ * all other chromosomes (see KinshipIbs for the kinship formula):
+ *
+ *		K_c[i,j] = (S[i,j] - S_c[i,j]) / (N[i,j] - N_c[i,j])
+ *
+ * where 'S' and 'N' are the genome-wide accumulated numerator and number of
+ * variants (non-missing in both samples), and 'S_c', 'N_c' are the ones from
+ * chromosome 'c'. So all LOCO matrices are calculated from a single pass over
+ * the variants (instead of calculating one kinship matrix per chromosome).
+ *
+ * Variants must be sorted by chromosome. Per chromosome values are saved to
+ * temporary files, so only genome-wide values are kept in memory.
+ *
+ * Binary file format for per chromosome values (little endian):
+ * 		int32					n : Number of samples
+ * 		int32					numVariants
+ * 		int32					hasMissing : 1 if 'missing pairs' are included, 0 otherwise
+ * 		float64[n*(n-1)/2]		Numerator (upper triangle, row major)
+ * 		int32[n*(n-1)/2]		Missing pairs (upper triangle, row major. Only if hasMissing)
+ *
+ * @author pcingola
+ */
+public class KinshipLoco {
+
+	boolean verbose = false;
+	int n; // Number of samples
+	String tmpPrefix; // Prefix for temporary files
+	String chr; // Current chromosome
+	KinshipIbs kinshipIbs; // Accumulate values for current chromosome
+	double total[][]; // Genome-wide accumulated numerator (upper triangle)
+	int totalMissing[][]; // Genome-wide missing pairs (upper triangle), null if there are no missing genotypes
+	int totalVariants;
+	HashMap<String, String> chrFiles; // Per chromosome values: Chromosome => File (only chromosomes having used variants)
+	HashMap<String, Integer> chrVariants; // Per chromosome number of variants (all chromosomes seen)
+
+	public KinshipLoco(int n, int numThreads, String tmpPrefix) {
+		this.n = n;
+		this.tmpPrefix = tmpPrefix;
+		kinshipIbs = new KinshipIbs(n, numThreads);
+		total = new double[n][n];
+		chrFiles = new HashMap<String, String>();
+		chrVariants = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Add a variant
+	 * @return true if the variant was used
+	 */
+	public boolean add(TpedEntry tpedEntry) {
+		String chrEntry = tpedEntry.getChromosomeName();
+		if (!chrEntry.equals(chr)) {
+			endChr();
+			if (chrVariants.containsKey(chrEntry)) throw new RuntimeException("Variants are not sorted by chromosome: Chromosome '" + chrEntry + "' found again");
+			chr = chrEntry;
+			chrVariants.put(chr, 0);
+		}
+
+		return kinshipIbs.add(tpedEntry);
+	}
+
+	/**
+	 * Delete temporary files
+	 */
+	public void delete() {
+		for (String file : chrFiles.values())
+			new File(file).delete();
+	}
+
+	/**
+	 * Finish current chromosome: Add its values to genome-wide totals and save them to a file
+	 */
+	void endChr() {
+		if (chr == null) return;
+
+		kinshipIbs.finish();
+		int numVariants = kinshipIbs.getNumVariants();
+		chrVariants.put(chr, numVariants);
+		if (verbose) Timer.showStdErr("LOCO kinship: Chromosome '" + chr + "', " + numVariants + " variants used.");
+
+		if (numVariants > 0) {
+			double k[][] = kinshipIbs.getKinship();
+			int missingPairs[][] = kinshipIbs.getMissingPairs();
+			if ((missingPairs != null) && (totalMissing == null)) totalMissing = new int[n][n];
+
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++) {
+					total[i][j] += k[i][j];
+					if (missingPairs != null) totalMissing[i][j] += missingPairs[i][j];
+				}
+			totalVariants += numVariants;
+
+			String file = tmpPrefix + chr + ".loco.bin";
+			save(file, numVariants, k, missingPairs);
+			chrFiles.put(chr, file);
+		}
+
+		kinshipIbs.reset();
+		chr = null;
+	}
+
+	/**
+	 * Finish adding variants
+	 */
+	public void finish() {
+		endChr();
+		kinshipIbs.close();
+		kinshipIbs = null;
+		if (totalVariants <= 0) throw new RuntimeException("No autosomal polymorphic variants found, cannot calculate kinship matrix");
+		if (verbose) Timer.showStdErr("LOCO kinship: " + n + " samples, " + totalVariants + " variants, " + chrVariants.size() + " chromosomes.");
+	}
+
+	/**
+	 * Leave one chromosome out kinship matrix for chromosome 'chr'
+	 * Note: Chromosomes without used variants (e.g. non-autosomal) use all variants
+	 */
+	public double[][] kinship(String chr) {
+		int numVariantsChr = 0;
+		double s[][] = null;
+		int missing[][] = null;
+
+		// Load per chromosome values
+		String file = chrFiles.get(chr);
+		if (file != null) {
+			s = new double[n][n];
+			FileInputStream fis = null;
+			try {
+				fis = new FileInputStream(file);
+				FileChannel channel = fis.getChannel();
+				ByteBuffer buffer = LittleEndian.bufferRead();
+
+				int nFile = LittleEndian.fill(channel, buffer, 4).getInt();
+				if (nFile != n) throw new RuntimeException("Invalid number of samples (" + nFile + ") in LOCO file '" + file + "'");
+				numVariantsChr = LittleEndian.fill(channel, buffer, 4).getInt();
+				boolean hasMissing = LittleEndian.fill(channel, buffer, 4).getInt() != 0;
+
+				for (int i = 0; i < n; i++)
+					for (int j = i + 1; j < n; j++)
+						s[i][j] = LittleEndian.fill(channel, buffer, 8).getDouble();
+
+				if (hasMissing) {
+					missing = new int[n][n];
+					for (int i = 0; i < n; i++)
+						for (int j = i + 1; j < n; j++)
+							missing[i][j] = LittleEndian.fill(channel, buffer, 4).getInt();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading LOCO file '" + file + "'", e);
+			} finally {
+				try {
+					if (fis != null) fis.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		int numVariants = totalVariants - numVariantsChr;
+		if (numVariants <= 0) throw new RuntimeException("Cannot calculate LOCO kinship matrix for chromosome '" + chr + "': No variants in other chromosomes");
+		if (verbose) Timer.showStdErr("LOCO kinship: Chromosome '" + chr + "', using " + numVariants + " variants from other chromosomes.");
+
+		// Subtract chromosome's values and normalize (same as KinshipIbs.kinship())
+		double k[][] = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				double sum = total[i][j] - (s != null ? s[i][j] : 0.0);
+				int count = numVariants;
+				if (totalMissing != null) count -= totalMissing[i][j] - (missing != null ? missing[i][j] : 0);
+				k[i][j] = k[j][i] = (count > 0 ? sum / count : 0.0);
+			}
+			k[i][i] = 0.5;
+		}
+
+		return k;
+	}
+
+	/**
+	 * Save per chromosome values
+	 */
+	void save(String fileName, int numVariants, double k[][], int missingPairs[][]) {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(new File(fileName));
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = LittleEndian.bufferWrite();
+
+			buffer.putInt(n);
+			buffer.putInt(numVariants);
+			buffer.putInt(missingPairs != null ? 1 : 0);
+			for (int i = 0; i < n; i++)
+				for (int j = i + 1; j < n; j++)
+					LittleEndian.flush(channel, buffer, 8).putDouble(k[i][j]);
+
+			if (missingPairs != null) {
+				for (int i = 0; i < n; i++)
+					for (int j = i + 1; j < n; j++)
+						LittleEndian.flush(channel, buffer, 4).putInt(missingPairs[i][j]);
+			}
+
+			LittleEndian.flush(channel, buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing LOCO file '" + fileName + "'", e);
+		} finally {
+			try {
+				if (fos != null) fos.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+		kinshipIbs.setVerbose(verbose);
+	}
+
+}
@@ -0,0 +1,75 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered access to binary files in little endian format (the format used by R's 'readBin' / 'writeBin' in our scripts)
+ *
+ * @author pcingola
+ */
+public class LittleEndian {
+
+	public static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Create an empty buffer for reading
+	 */
+	public static ByteBuffer bufferRead() {
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip(); // Empty buffer
+		return buffer;
+	}
+
+	/**
+	 * Create an empty buffer for writing
+	 */
+	public static ByteBuffer bufferWrite() {
+		return ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Make sure there are at least 'minBytes' available for reading
+	 */
+	public static ByteBuffer fill(FileChannel channel, ByteBuffer buffer, int minBytes) throws IOException {
+		if (buffer.remaining() >= minBytes) return buffer;
+		buffer.compact();
+		while (buffer.position() < minBytes)
+			if (channel.read(buffer) < 0) throw new IOException("Unexpected end of file");
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Write all bytes in 'src'
+	 */
+	public static void put(FileChannel channel, ByteBuffer buffer, byte src[]) throws IOException {
+		for (int off = 0; off < src.length;) {
+			int len = Math.min(src.length - off, buffer.capacity());
+			flush(channel, buffer, len).put(src, off, len);
+			off += len;
+		}
+	}
+
+	/**
+	 * Make sure there are at least 'minBytes' available for writing
+	 */
+	public static ByteBuffer flush(FileChannel channel, ByteBuffer buffer, int minBytes) throws IOException {
+		if (buffer.remaining() >= minBytes) return buffer;
+		flush(channel, buffer);
+		return buffer;
+	}
+
+	/**
+	 * Write all buffer contents
+	 */
+	public static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+}
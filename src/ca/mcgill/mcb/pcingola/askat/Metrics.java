@@ -0,0 +1,405 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Per-stage metrics: Latency histograms, counters and worker utilisation.
+ *
+ * Stages (e.g. 'tped_scan', 'kinship', 'r_exec') record the time of each
+ * operation in a histogram. Counters record number of events (e.g. number
+ * of variants filtered). Pools of workers (e.g. R workers) record the time
+ * each worker is busy, so utilisation is busy time over elapsed time.
+ *
+ * Metrics can be saved periodically (see 'start()') to a file, either in
+ * Prometheus' text format or JSON (if the file name ends with '.json').
+ * Files are written to a temporary file and renamed, so readers never
+ * see a partial file.
+ *
+ * Typical usage:
+ * 		long start = System.nanoTime();
+ * 		...
+ * 		metrics.time("kinship", start);
+ *
+ * Hot loops should keep a reference to the stage (see 'stage()') to avoid
+ * looking it up every time.
+ *
+ * @author pcingola
+ */
+public class Metrics {
+
+	public static final String PREFIX = "askat_";
+	public static final double BUCKETS[] = { 1e-6, 1e-5, 1e-4, 1e-3, 1e-2, 0.1, 1, 10, 60, 600, 3600 }; // Histogram bucket limits, in seconds
+	public static final double NANO = 1e-9;
+
+	/**
+	 * Latency histogram for a stage
+	 */
+	public class Stage {
+		String name;
+		long count, totalNanos, maxNanos;
+		long buckets[] = new long[BUCKETS.length + 1]; // Last bucket is '+Inf'
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Add one operation that took 'nanos' nanoseconds
+		 */
+		public synchronized void add(long nanos) {
+			count++;
+			totalNanos += nanos;
+			if (nanos > maxNanos) maxNanos = nanos;
+
+			double secs = nanos * NANO;
+			int i = 0;
+			while ((i < BUCKETS.length) && (secs > BUCKETS[i]))
+				i++;
+			buckets[i]++;
+		}
+
+		/**
+		 * Add one operation started at 'startNanos' (see System.nanoTime())
+		 */
+		public void time(long startNanos) {
+			add(System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * A pool of workers: Busy time for each worker
+	 */
+	class Pool {
+		String name;
+		int numWorkers; // Number of workers available (used to calculate pool utilisation)
+		long busyNanos;
+		LinkedHashMap<String, Long> workerBusyNanos = new LinkedHashMap<String, Long>();
+
+		Pool(String name, int numWorkers) {
+			this.name = name;
+			this.numWorkers = numWorkers;
+		}
+
+		void add(String worker, long nanos) {
+			busyNanos += nanos;
+			if (worker != null) {
+				Long busy = workerBusyNanos.get(worker);
+				workerBusyNanos.put(worker, (busy != null ? busy : 0) + nanos);
+			}
+		}
+	}
+
+	long startNanos;
+	LinkedHashMap<String, Stage> stages;
+	LinkedHashMap<String, Long> counters;
+	LinkedHashMap<String, Pool> pools;
+	String fileName; // Save metrics to this file (null if not used)
+	ScheduledExecutorService scheduler;
+
+	public Metrics() {
+		startNanos = System.nanoTime();
+		stages = new LinkedHashMap<String, Stage>();
+		counters = new LinkedHashMap<String, Long>();
+		pools = new LinkedHashMap<String, Pool>();
+	}
+
+	/**
+	 * Add time to a worker (the worker was busy for 'nanos' nanoseconds)
+	 * @param pool : Pool name (see 'pool()')
+	 * @param worker : Worker name (null if workers cannot be identified, only pool utilisation is recorded)
+	 */
+	public synchronized void busy(String pool, String worker, long nanos) {
+		Pool p = pools.get(pool);
+		if (p == null) {
+			p = new Pool(pool, 1);
+			pools.put(pool, p);
+		}
+		p.add(worker, nanos);
+	}
+
+	/**
+	 * Stop saving metrics periodically and save them one last time
+	 */
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+			try {
+				scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			scheduler = null;
+		}
+		if (fileName != null) save();
+	}
+
+	/**
+	 * Increment a counter
+	 */
+	public void count(String counter) {
+		count(counter, 1);
+	}
+
+	public synchronized void count(String counter, long n) {
+		Long count = counters.get(counter);
+		counters.put(counter, (count != null ? count : 0) + n);
+	}
+
+	/**
+	 * Format a number (avoid scientific notation for 'normal' numbers)
+	 */
+	String num(double d) {
+		if (Double.isInfinite(d)) return "+Inf";
+		if ((d != 0) && (Math.abs(d) < 1e-3)) return Double.toString(d);
+		return String.format(Locale.US, "%.6f", d).replaceAll("0+$", "").replaceAll("\\.$", "");
+	}
+
+	/**
+	 * Register a pool of workers
+	 * @param numWorkers : Number of workers in the pool
+	 */
+	public synchronized void pool(String pool, int numWorkers) {
+		Pool p = pools.get(pool);
+		if (p == null) pools.put(pool, new Pool(pool, numWorkers));
+		else p.numWorkers = Math.max(p.numWorkers, numWorkers);
+	}
+
+	/**
+	 * Save metrics to file (write a temporary file and rename it)
+	 */
+	public synchronized void save() {
+		String tmpFile = fileName + ".tmp";
+		try {
+			FileWriter out = new FileWriter(tmpFile);
+			out.write(fileName.endsWith(".json") ? toJson() : toPrometheus());
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing metrics file '" + tmpFile + "'", e);
+		}
+		if (!new File(tmpFile).renameTo(new File(fileName))) throw new RuntimeException("Cannot rename metrics file '" + tmpFile + "' to '" + fileName + "'");
+	}
+
+	/**
+	 * Get a stage (create it if it doesn't exist)
+	 */
+	public synchronized Stage stage(String name) {
+		Stage stage = stages.get(name);
+		if (stage == null) {
+			stage = new Stage(name);
+			stages.put(name, stage);
+		}
+		return stage;
+	}
+
+	/**
+	 * Save metrics to 'fileName' every 'intervalSecs' seconds
+	 */
+	public void start(String fileName, int intervalSecs) {
+		this.fileName = fileName;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Metrics");
+				t.setDaemon(true); // Do not prevent the JVM from exiting
+				return t;
+			}
+		});
+
+		scheduler.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					save();
+				} catch (RuntimeException e) {
+					// Metrics should never stop the analysis
+					Timer.showStdErr("WARNING: " + e.getMessage());
+				}
+			}
+		}, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * A summary table: One line per stage, counter and pool
+	 */
+	public synchronized String summary() {
+		double elapsed = uptime();
+		StringBuilder sb = new StringBuilder();
+		sb.append("Metrics summary. Elapsed time: " + num(elapsed) + " secs.\n");
+
+		if (!stages.isEmpty()) {
+			sb.append(String.format("\t%-16s %12s %14s %12s %12s %8s\n", "stage", "count", "total_secs", "mean_secs", "max_secs", "%time"));
+			for (Stage s : stages.values()) {
+				double total = s.totalNanos * NANO;
+				sb.append(String.format("\t%-16s %12d %14.3f %12.6f %12.6f %7.1f%%\n", s.name, s.count, total, (s.count > 0 ? total / s.count : 0), s.maxNanos * NANO, (elapsed > 0 ? 100 * total / elapsed : 0)));
+			}
+		}
+
+		for (String counter : counters.keySet())
+			sb.append(String.format("\t%-16s %12d\n", counter, counters.get(counter)));
+
+		for (Pool p : pools.values()) {
+			sb.append(String.format("\tpool %-11s %12d workers, utilisation %.1f%%\n", p.name, p.numWorkers, 100 * utilisation(p.busyNanos, p.numWorkers, elapsed)));
+			for (String worker : p.workerBusyNanos.keySet())
+				sb.append(String.format("\t\tworker %-8s busy %12.3f secs, utilisation %.1f%%\n", worker, p.workerBusyNanos.get(worker) * NANO, 100 * utilisation(p.workerBusyNanos.get(worker), 1, elapsed)));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Add one operation to a stage, started at 'startNanos' (see System.nanoTime())
+	 */
+	public void time(String stage, long startNanos) {
+		stage(stage).time(startNanos);
+	}
+
+	/**
+	 * Metrics in JSON format
+	 */
+	public synchronized String toJson() {
+		double elapsed = uptime();
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n\t\"uptime_seconds\": " + num(elapsed) + ",\n");
+
+		// Stages
+		List<String> items = new ArrayList<String>();
+		for (Stage s : stages.values()) {
+			StringBuilder buckets = new StringBuilder();
+			for (int i = 0; i < s.buckets.length; i++)
+				buckets.append((i > 0 ? ", " : "") + "\"" + num(i < BUCKETS.length ? BUCKETS[i] : Double.POSITIVE_INFINITY) + "\": " + s.buckets[i]);
+
+			double total = s.totalNanos * NANO;
+			items.add("\t\t\"" + s.name + "\": { \"count\": " + s.count //
+					+ ", \"sum_seconds\": " + num(total) //
+					+ ", \"mean_seconds\": " + num(s.count > 0 ? total / s.count : 0) //
+					+ ", \"max_seconds\": " + num(s.maxNanos * NANO) //
+					+ ", \"buckets\": { " + buckets + " } }");
+		}
+		sb.append("\t\"stages\": {\n" + join(items) + "\t},\n");
+
+		// Counters
+		items.clear();
+		for (String counter : counters.keySet())
+			items.add("\t\t\"" + counter + "\": " + counters.get(counter));
+		sb.append("\t\"counters\": {\n" + join(items) + "\t},\n");
+
+		// Pools
+		items.clear();
+		for (Pool p : pools.values()) {
+			List<String> workers = new ArrayList<String>();
+			for (String worker : p.workerBusyNanos.keySet())
+				workers.add("\"" + worker + "\": { \"busy_seconds\": " + num(p.workerBusyNanos.get(worker) * NANO) + ", \"utilisation\": " + num(utilisation(p.workerBusyNanos.get(worker), 1, elapsed)) + " }");
+
+			StringBuilder ws = new StringBuilder();
+			for (String w : workers)
+				ws.append((ws.length() > 0 ? ", " : "") + w);
+
+			items.add("\t\t\"" + p.name + "\": { \"workers\": " + p.numWorkers //
+					+ ", \"busy_seconds\": " + num(p.busyNanos * NANO) //
+					+ ", \"utilisation\": " + num(utilisation(p.busyNanos, p.numWorkers, elapsed)) //
+					+ ", \"worker\": { " + ws + " } }");
+		}
+		sb.append("\t\"pools\": {\n" + join(items) + "\t}\n");
+
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Join JSON items (one per line)
+	 */
+	String join(List<String> items) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < items.size(); i++)
+			sb.append(items.get(i) + (i < items.size() - 1 ? "," : "") + "\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Metrics in Prometheus' text format
+	 */
+	public synchronized String toPrometheus() {
+		double elapsed = uptime();
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("# HELP " + PREFIX + "uptime_seconds Time since the analysis started\n");
+		sb.append("# TYPE " + PREFIX + "uptime_seconds gauge\n");
+		sb.append(PREFIX + "uptime_seconds " + num(elapsed) + "\n");
+
+		// Stages: Histograms (buckets are cumulative)
+		sb.append("# HELP " + PREFIX + "stage_seconds Time spent in each stage\n");
+		sb.append("# TYPE " + PREFIX + "stage_seconds histogram\n");
+		for (Stage s : stages.values()) {
+			long cumulative = 0;
+			for (int i = 0; i < s.buckets.length; i++) {
+				cumulative += s.buckets[i];
+				sb.append(PREFIX + "stage_seconds_bucket{stage=\"" + s.name + "\",le=\"" + num(i < BUCKETS.length ? BUCKETS[i] : Double.POSITIVE_INFINITY) + "\"} " + cumulative + "\n");
+			}
+			sb.append(PREFIX + "stage_seconds_sum{stage=\"" + s.name + "\"} " + num(s.totalNanos * NANO) + "\n");
+			sb.append(PREFIX + "stage_seconds_count{stage=\"" + s.name + "\"} " + s.count + "\n");
+		}
+
+		sb.append("# HELP " + PREFIX + "stage_max_seconds Longest operation in each stage\n");
+		sb.append("# TYPE " + PREFIX + "stage_max_seconds gauge\n");
+		for (Stage s : stages.values())
+			sb.append(PREFIX + "stage_max_seconds{stage=\"" + s.name + "\"} " + num(s.maxNanos * NANO) + "\n");
+
+		// Counters
+		sb.append("# HELP " + PREFIX + "events_total Number of events\n");
+		sb.append("# TYPE " + PREFIX + "events_total counter\n");
+		for (String counter : counters.keySet())
+			sb.append(PREFIX + "events_total{counter=\"" + counter + "\"} " + counters.get(counter) + "\n");
+
+		// Pools
+		sb.append("# HELP " + PREFIX + "pool_utilisation Fraction of time workers in the pool were busy\n");
+		sb.append("# TYPE " + PREFIX + "pool_utilisation gauge\n");
+		for (Pool p : pools.values())
+			sb.append(PREFIX + "pool_utilisation{pool=\"" + p.name + "\"} " + num(utilisation(p.busyNanos, p.numWorkers, elapsed)) + "\n");
+
+		sb.append("# HELP " + PREFIX + "worker_busy_seconds Time each worker was busy\n");
+		sb.append("# TYPE " + PREFIX + "worker_busy_seconds counter\n");
+		for (Pool p : pools.values())
+			for (String worker : p.workerBusyNanos.keySet())
+				sb.append(PREFIX + "worker_busy_seconds{pool=\"" + p.name + "\",worker=\"" + worker + "\"} " + num(p.workerBusyNanos.get(worker) * NANO) + "\n");
+
+		sb.append("# HELP " + PREFIX + "worker_utilisation Fraction of time each worker was busy\n");
+		sb.append("# TYPE " + PREFIX + "worker_utilisation gauge\n");
+		for (Pool p : pools.values())
+			for (String worker : p.workerBusyNanos.keySet())
+				sb.append(PREFIX + "worker_utilisation{pool=\"" + p.name + "\",worker=\"" + worker + "\"} " + num(utilisation(p.workerBusyNanos.get(worker), 1, elapsed)) + "\n");
+
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return summary();
+	}
+
+	/**
+	 * Seconds since metrics were created
+	 */
+	public double uptime() {
+		return (System.nanoTime() - startNanos) * NANO;
+	}
+
+	double utilisation(long busyNanos, int numWorkers, double elapsed) {
+		if ((elapsed <= 0) || (numWorkers <= 0)) return 0;
+		return busyNanos * NANO / (elapsed * numWorkers);
+	}
+
+}
@@ -0,0 +1,179 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+
+/**
+ * Null model (no genotype effect) of the linear mixed model used by ASKAT.
+ * This is what FaST-LMM calculates in 'kinship.r' (see 'invokeFastlmm')
+ * or NullModelReml
+ *
+ * Binary file format (little endian, written by 'kinship.r'):
+ * 		int32		n : Number of samples
+ * 		float64		nullGeneticVar
+ * 		float64		nullResidualVar
+ * 		float64[n]	S : Eigenvalues of the similarity matrix (decreasing order)
+ * 		float64[n*n]	U : Eigenvectors (column major, same order as S)
+ *
+ * Multi-phenotype mode: All phenotypes share the eigen-decomposition, only
+ * variance components are different. These are saved to a text file (see
+ * 'saveVarianceComponents()'), one line per phenotype (tab separated):
+ * 		name	nullGeneticVar	nullResidualVar
+ *
+ * @author pcingola
+ */
+public class NullModel {
+
+	int n; // Number of samples
+	double nullGeneticVar, nullResidualVar;
+	double s[]; // Eigenvalues
+	double u[][]; // Eigenvectors: u[i][k] is the component of sample 'i' in eigenvector 'k'
+
+	public NullModel() {
+	}
+
+	public NullModel(String fileName) {
+		load(fileName);
+	}
+
+	public NullModel(double nullGeneticVar, double nullResidualVar, double s[], double u[][]) {
+		n = s.length;
+		this.nullGeneticVar = nullGeneticVar;
+		this.nullResidualVar = nullResidualVar;
+		this.s = s;
+		this.u = u;
+	}
+
+	/**
+	 * Save variance components for several phenotypes sharing this eigen-decomposition
+	 * @param names : Phenotype names
+	 * @param nullModels : Null model for each phenotype
+	 */
+	public static void saveVarianceComponents(String fileName, List<String> names, List<NullModel> nullModels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < names.size(); i++)
+			sb.append(names.get(i) + "\t" + nullModels.get(i).nullGeneticVar + "\t" + nullModels.get(i).nullResidualVar + "\n");
+		Gpr.toFile(fileName, sb.toString());
+	}
+
+	public double getNullGeneticVar() {
+		return nullGeneticVar;
+	}
+
+	public double getNullResidualVar() {
+		return nullResidualVar;
+	}
+
+	public double[] getS() {
+		return s;
+	}
+
+	public double[][] getU() {
+		return u;
+	}
+
+	/**
+	 * Load from a binary file
+	 * @param fileName
+	 */
+	public void load(String fileName) {
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(fileName);
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = LittleEndian.bufferRead();
+
+			// Header
+			LittleEndian.fill(channel, buffer, 4 + 8 + 8);
+			n = buffer.getInt();
+			nullGeneticVar = buffer.getDouble();
+			nullResidualVar = buffer.getDouble();
+			if (n <= 0) throw new RuntimeException("Invalid number of samples (" + n + ") in null model file '" + fileName + "'");
+
+			// Eigenvalues
+			s = new double[n];
+			for (int i = 0; i < n; i++)
+				s[i] = LittleEndian.fill(channel, buffer, 8).getDouble();
+
+			// Eigenvectors (stored column by column)
+			u = new double[n][n];
+			for (int k = 0; k < n; k++)
+				for (int i = 0; i < n; i++)
+					u[i][k] = LittleEndian.fill(channel, buffer, 8).getDouble();
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading null model file '" + fileName + "'", e);
+		} finally {
+			try {
+				if (fis != null) fis.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Load variance components for several phenotypes (see 'saveVarianceComponents()')
+	 * @param names : Phenotype names (must match the ones in the file)
+	 * @return A null model for each phenotype, sharing this eigen-decomposition
+	 */
+	public List<NullModel> loadVarianceComponents(String fileName, List<String> names) {
+		if (!Gpr.canRead(fileName)) throw new RuntimeException("Cannot read variance components file '" + fileName + "'");
+		String lines[] = Gpr.readFile(fileName).split("\n");
+		if (lines.length != names.size()) throw new RuntimeException("Variance components file '" + fileName + "' has " + lines.length + " phenotypes, expecting " + names.size());
+
+		List<NullModel> nullModels = new ArrayList<NullModel>();
+		for (int i = 0; i < lines.length; i++) {
+			String fields[] = lines[i].split("\t");
+			if ((fields.length != 3) || !fields[0].equals(names.get(i))) throw new RuntimeException("Variance components file '" + fileName + "', line " + (i + 1) + ": Expecting phenotype '" + names.get(i) + "'");
+			nullModels.add(new NullModel(Gpr.parseDoubleSafe(fields[1]), Gpr.parseDoubleSafe(fields[2]), s, u));
+		}
+		return nullModels;
+	}
+
+	/**
+	 * Save to a binary file (same format as 'kinship.r')
+	 * @param fileName
+	 */
+	public void save(String fileName) {
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(new File(fileName));
+			FileChannel channel = fos.getChannel();
+			ByteBuffer buffer = LittleEndian.bufferWrite();
+
+			buffer.putInt(n);
+			buffer.putDouble(nullGeneticVar);
+			buffer.putDouble(nullResidualVar);
+
+			for (int i = 0; i < n; i++)
+				LittleEndian.flush(channel, buffer, 8).putDouble(s[i]);
+
+			for (int k = 0; k < n; k++)
+				for (int i = 0; i < n; i++)
+					LittleEndian.flush(channel, buffer, 8).putDouble(u[i][k]);
+
+			LittleEndian.flush(channel, buffer);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing null model file '" + fileName + "'", e);
+		} finally {
+			try {
+				if (fos != null) fos.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public int size() {
+		return n;
+	}
+
+}
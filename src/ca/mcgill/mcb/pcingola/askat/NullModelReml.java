@@ -0,0 +1,207 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Fit the null model (no genotype effect) of the linear mixed model
+ *
+ * 		Y = 1 beta + g + e		g ~ N(0, s2g K), e ~ N(0, s2e I)
+ *
+ * where K is the similarity matrix (i.e. 2 * kinship, see 'createSim' in 'kinship.r').
+ * This replaces the invocation of FaST-LMM ('invokeFastlmm' in 'kinship.r'):
+ *
+ * 		1) Eigen-decomposition K = U S U^T
+ * 		2) Rotate: Y.tilde = U^T Y, X.tilde = U^T 1
+ * 		3) Maximize the log-likelihood over log(delta), where delta = s2e / s2g, using
+ * 		   a grid search followed by a golden section search (same approach as FaST-LMM).
+ * 		   For a given delta, beta and s2g have closed form solutions.
+ *
+ * The objective is maximum likelihood (ML), same as 'invokeFastlmm' (fastlmmc
+ * is invoked without '-REML'). Restricted maximum likelihood (REML) can be
+ * selected using 'setReml(true)'.
+ *
+ * Several phenotypes can share the same eigen-decomposition (see
+ * 'NullModelReml(s, u, phenotype)'), so it is only calculated once.
+ *
+ * @author pcingola
+ */
+public class NullModelReml {
+
+	public static final double LOG_DELTA_MIN = -10; // Search range for log(delta)
+	public static final double LOG_DELTA_MAX = 10;
+	public static final int GRID_SIZE = 100; // Number of grid intervals
+	public static final double TOLERANCE = 1e-8; // Convergence for log(delta)
+
+	boolean verbose = false;
+	boolean reml = false; // Maximize restricted log-likelihood (REML) instead of log-likelihood (ML)
+	int n;
+	double s[], u[][];
+	double xTilde[], yTilde[];
+	double logDelta, s2g, logLik;
+
+	public NullModelReml(double kinship[][], double phenotype[]) {
+		n = kinship.length;
+		if (phenotype.length != n) throw new RuntimeException("Number of phenotypes (" + phenotype.length + ") does not match kinship matrix size (" + n + ")");
+
+		// Similarity matrix
+		double sim[][] = new double[n][n];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j <= i; j++)
+				sim[i][j] = 2.0 * kinship[i][j];
+
+		// Eigen-decomposition
+		SymmetricEigen eigen = new SymmetricEigen(sim);
+		init(eigen.getEigenvalues(), eigen.getEigenvectors(), phenotype);
+	}
+
+	/**
+	 * Use an existing eigen-decomposition of the similarity matrix (e.g. from another phenotype)
+	 * @param s : Eigenvalues
+	 * @param u : Eigenvectors
+	 */
+	public NullModelReml(double s[], double u[][], double phenotype[]) {
+		n = s.length;
+		if (phenotype.length != n) throw new RuntimeException("Number of phenotypes (" + phenotype.length + ") does not match kinship matrix size (" + n + ")");
+		init(s, u, phenotype);
+	}
+
+	/**
+	 * Rotate: Y.tilde = U^T Y, X.tilde = U^T 1
+	 */
+	void init(double s[], double u[][], double phenotype[]) {
+		this.s = s;
+		this.u = u;
+
+		xTilde = new double[n];
+		yTilde = new double[n];
+		for (int i = 0; i < n; i++) {
+			double ui[] = u[i];
+			double yi = phenotype[i];
+			for (int k = 0; k < n; k++) {
+				xTilde[k] += ui[k];
+				yTilde[k] += ui[k] * yi;
+			}
+		}
+	}
+
+	/**
+	 * Find delta maximizing the log-likelihood (or restricted log-likelihood)
+	 * @return Null model
+	 */
+	public NullModel fit() {
+		// Grid search
+		double step = (LOG_DELTA_MAX - LOG_DELTA_MIN) / GRID_SIZE;
+		int best = 0;
+		double bestLogLik = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i <= GRID_SIZE; i++) {
+			double ll = logLikelihood(LOG_DELTA_MIN + i * step);
+			if (ll > bestLogLik) {
+				bestLogLik = ll;
+				best = i;
+			}
+		}
+
+		// Golden section search around best grid point
+		double a = LOG_DELTA_MIN + Math.max(0, best - 1) * step;
+		double b = LOG_DELTA_MIN + Math.min(GRID_SIZE, best + 1) * step;
+		double invPhi = (Math.sqrt(5.0) - 1.0) / 2.0;
+		double x1 = b - invPhi * (b - a), x2 = a + invPhi * (b - a);
+		double f1 = logLikelihood(x1), f2 = logLikelihood(x2);
+		while ((b - a) > TOLERANCE) {
+			if (f1 > f2) {
+				b = x2;
+				x2 = x1;
+				f2 = f1;
+				x1 = b - invPhi * (b - a);
+				f1 = logLikelihood(x1);
+			} else {
+				a = x1;
+				x1 = x2;
+				f1 = f2;
+				x2 = a + invPhi * (b - a);
+				f2 = logLikelihood(x2);
+			}
+		}
+
+		// Best point (grid point could be better if the maximum is on the border)
+		logDelta = (a + b) / 2.0;
+		if (bestLogLik > logLikelihood(logDelta)) logDelta = LOG_DELTA_MIN + best * step;
+
+		s2g = sigma2g(logDelta);
+		double s2e = Math.exp(logDelta) * s2g;
+		logLik = logLikelihood(logDelta);
+		if (verbose) Timer.showStdErr("Null model (" + (reml ? "REML" : "ML") + "): log(delta) = " + logDelta + ", genetic variance = " + s2g + ", residual variance = " + s2e + ", log-likelihood = " + logLik);
+
+		return new NullModel(s2g, s2e, s, u);
+	}
+
+	public double getLogDelta() {
+		return logDelta;
+	}
+
+	public double[] getS() {
+		return s;
+	}
+
+	public double[][] getU() {
+		return u;
+	}
+
+	public double getLogLik() {
+		return logLik;
+	}
+
+	public boolean isReml() {
+		return reml;
+	}
+
+	/**
+	 * Log-likelihood (or restricted log-likelihood) for a given log(delta)
+	 * Note: Beta and s2g are set to their optimal values
+	 */
+	double logLikelihood(double logDelta) {
+		double delta = Math.exp(logDelta);
+		double xx = 0, xy = 0, yy = 0, logDet = 0;
+		for (int k = 0; k < n; k++) {
+			double d = Math.max(s[k], 0) + delta; // Eigenvalues should be non-negative, but there might be small rounding errors
+			xx += xTilde[k] * xTilde[k] / d;
+			xy += xTilde[k] * yTilde[k] / d;
+			yy += yTilde[k] * yTilde[k] / d;
+			logDet += Math.log(d);
+		}
+
+		double rss = yy - xy * xy / xx;
+		if (!reml) {
+			double s2g = rss / n;
+			return -0.5 * (n * Math.log(2 * Math.PI * s2g) + logDet + n);
+		}
+
+		int dof = n - 1; // One covariate (intercept)
+		double s2g = rss / dof;
+		return -0.5 * (dof * Math.log(2 * Math.PI * s2g) + logDet + Math.log(xx) - Math.log(n) + dof);
+	}
+
+	public void setReml(boolean reml) {
+		this.reml = reml;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Genetic variance for a given log(delta)
+	 */
+	double sigma2g(double logDelta) {
+		double delta = Math.exp(logDelta);
+		double xx = 0, xy = 0, yy = 0;
+		for (int k = 0; k < n; k++) {
+			double d = Math.max(s[k], 0) + delta;
+			xx += xTilde[k] * xTilde[k] / d;
+			xy += xTilde[k] * yTilde[k] / d;
+			yy += yTilde[k] * yTilde[k] / d;
+		}
+		return (yy - xy * xy / xx) / (reml ? n - 1 : n);
+	}
+
+}
@@ -0,0 +1,153 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+/**
+ * A chunk of genotypes packed at 2 bits per call.
+ *
+ * Genotypes are stored sample-major (all variants for sample 'i' are
+ * contiguous), so that a sample's row in the chunk can be decoded
+ * sequentially. Codes are the number of non-major alleles (0, 1, 2),
+ * same as 'TpedEntry.dosage()', or MISSING.
+ *
+ * @author pcingola
+ */
+public class PackedGenotypes {
+
+	public static final int MISSING = 3;
+	public static final int CODES_PER_WORD = 32; // 2 bits per call in a 64 bit 'long'
+	public static final long LOW_BITS_MASK = 0x5555555555555555L; // Lower bit of each code
+
+	int numSamples; // Number of samples
+	int capacity; // Maximum number of variants in this chunk
+	int size; // Number of variants in this chunk
+	int words; // Number of 'long' words per sample
+	long codes[][]; // Packed genotypes: codes[sample][word]
+	int alleleCount[]; // Number of non-major alleles, per variant
+	int nonMissing[]; // Number of non-missing calls, per variant
+	boolean missing; // Is there any missing call in this chunk?
+
+	/**
+	 * Code for a TPED genotype (pair of alleles)
+	 */
+	static int code(byte a1, byte a2, char maxBase) {
+		if (!isBase(a1) || !isBase(a2)) return MISSING;
+		return (a1 == maxBase ? 0 : 1) + (a2 == maxBase ? 0 : 1);
+	}
+
+	static boolean isBase(byte base) {
+		return (base == 'A') || (base == 'C') || (base == 'G') || (base == 'T');
+	}
+
+	/**
+	 * Bit mask having a '1' in the lower bit of every non-missing code in 'word'
+	 * Note: Only MISSING has both bits set
+	 */
+	public static long nonMissing(long word) {
+		return ~(word & (word >>> 1)) & LOW_BITS_MASK;
+	}
+
+	public PackedGenotypes(int numSamples, int capacity) {
+		this.numSamples = numSamples;
+		this.capacity = capacity;
+		words = (capacity + CODES_PER_WORD - 1) / CODES_PER_WORD;
+		codes = new long[numSamples][words];
+		alleleCount = new int[capacity];
+		nonMissing = new int[capacity];
+	}
+
+	/**
+	 * Add a variant to this chunk
+	 * @return false if the chunk is full (variant not added)
+	 */
+	public boolean add(TpedEntry tpedEntry) {
+		if (isFull()) return false;
+
+		byte alleles[] = tpedEntry.alleles;
+		if (tpedEntry.getNumSamples() != numSamples) throw new RuntimeException("Number of samples in TPED entry (" + tpedEntry.getNumSamples() + ") does not match expected number of samples (" + numSamples + ")");
+
+		int word = size / CODES_PER_WORD;
+		int shift = 2 * (size % CODES_PER_WORD);
+		char maxBase = tpedEntry.maxBase;
+		int count = 0, nonMiss = 0;
+		for (int i = 0, j = 0; i < numSamples; i++, j += 2) {
+			int code = code(alleles[j], alleles[j + 1], maxBase);
+			if (code == MISSING) missing = true;
+			else {
+				count += code;
+				nonMiss++;
+			}
+			codes[i][word] |= ((long) code) << shift;
+		}
+
+		alleleCount[size] = count;
+		nonMissing[size] = nonMiss;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Remove all variants
+	 */
+	public void clear() {
+		for (int i = 0; i < numSamples; i++)
+			for (int w = 0; w < words; w++)
+				codes[i][w] = 0;
+		size = 0;
+		missing = false;
+	}
+
+	/**
+	 * Genotype code for sample 'i' and variant 't'
+	 */
+	public int get(int i, int t) {
+		return (int) (codes[i][t / CODES_PER_WORD] >>> (2 * (t % CODES_PER_WORD))) & 3;
+	}
+
+	public int getAlleleCount(int t) {
+		return alleleCount[t];
+	}
+
+	public long[] getCodes(int i) {
+		return codes[i];
+	}
+
+	public int getNonMissing(int t) {
+		return nonMissing[t];
+	}
+
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	public int getWords() {
+		return words;
+	}
+
+	public boolean hasMissing() {
+		return missing;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size >= capacity;
+	}
+
+	/**
+	 * Remove last variant added
+	 */
+	public void removeLast() {
+		if (size <= 0) return;
+		size--;
+		int word = size / CODES_PER_WORD;
+		long mask = ~(3L << (2 * (size % CODES_PER_WORD)));
+		for (int i = 0; i < numSamples; i++)
+			codes[i][word] &= mask;
+	}
+
+	public int size() {
+		return size;
+	}
+
+}
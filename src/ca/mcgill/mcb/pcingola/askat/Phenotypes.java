@@ -0,0 +1,118 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+
+/**
+ * A phenotype matrix: Several phenotypes for each sample, keyed by
+ * sample ID (same IDs as the TFAM file).
+ *
+ * File format is the same as PLINK's '--pheno' files (whitespace
+ * separated), one line per sample:
+ *
+ * 		FID		IID		pheno_1		pheno_2		...
+ *
+ * The first line can be a header (starting with 'FID IID') containing
+ * phenotype names, otherwise phenotypes are named 'pheno_1', 'pheno_2', etc.
+ * Missing values ('NA' or '-9') are not allowed, since all phenotypes
+ * share the same samples (and kinship eigen-decomposition).
+ *
+ * References: http://pngu.mgh.harvard.edu/~purcell/plink/data.shtml#pheno
+ *
+ * @author pcingola
+ */
+public class Phenotypes {
+
+	public static final String MISSING[] = { "NA", "-9" };
+
+	String fileName;
+	List<String> names;
+	HashMap<String, String[]> valuesById; // Values (as strings) for each sample ID
+
+	public Phenotypes(String fileName) {
+		this.fileName = fileName;
+		load();
+	}
+
+	/**
+	 * Phenotype values for all samples in a TFAM file
+	 * @return A matrix 'values[phenotype][sample]', samples are in the same order as the TFAM file
+	 */
+	public double[][] get(Tfam tfam) {
+		double values[][] = new double[size()][tfam.size()];
+		for (int j = 0; j < tfam.size(); j++) {
+			String id = tfam.getEntry(j).id;
+			String fields[] = valuesById.get(id);
+			if (fields == null) throw new RuntimeException("Sample '" + id + "' not found in phenotypes file '" + fileName + "'");
+
+			for (int i = 0; i < size(); i++) {
+				String value = fields[i + 2];
+				if (isMissing(value)) throw new RuntimeException("Missing value for sample '" + id + "', phenotype '" + names.get(i) + "' in file '" + fileName + "'. Multi-phenotype mode requires all phenotypes for all samples.");
+
+				try {
+					values[i][j] = Double.parseDouble(value);
+				} catch (NumberFormatException e) {
+					throw new RuntimeException("Invalid value '" + value + "' for sample '" + id + "', phenotype '" + names.get(i) + "' in file '" + fileName + "'", e);
+				}
+			}
+		}
+		return values;
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	boolean isMissing(String value) {
+		for (String missing : MISSING)
+			if (value.equals(missing)) return true;
+		return false;
+	}
+
+	/**
+	 * Read and parse file
+	 */
+	void load() {
+		if (!Gpr.canRead(fileName)) throw new RuntimeException("Cannot read phenotypes file '" + fileName + "'");
+		String lines[] = Gpr.readFile(fileName).split("\n");
+
+		names = null;
+		valuesById = new HashMap<String, String[]>();
+		int numFields = -1;
+		for (int lineNum = 0; lineNum < lines.length; lineNum++) {
+			String line = lines[lineNum].trim();
+			if (line.isEmpty()) continue;
+
+			String fields[] = line.split("\\s+");
+			if (fields.length < 3) throw new RuntimeException("Phenotypes file '" + fileName + "', line " + (lineNum + 1) + ": Expecting at least 3 columns (FID, IID and one phenotype)");
+			if (numFields < 0) numFields = fields.length;
+			else if (fields.length != numFields) throw new RuntimeException("Phenotypes file '" + fileName + "', line " + (lineNum + 1) + ": Expecting " + numFields + " columns, found " + fields.length);
+
+			// Header?
+			if (valuesById.isEmpty() && (names == null) && fields[0].equalsIgnoreCase("FID") && fields[1].equalsIgnoreCase("IID")) {
+				names = new ArrayList<String>();
+				for (int i = 2; i < fields.length; i++)
+					names.add(fields[i]);
+				continue;
+			}
+
+			if (valuesById.put(fields[1], fields) != null) throw new RuntimeException("Phenotypes file '" + fileName + "', line " + (lineNum + 1) + ": Duplicate sample ID '" + fields[1] + "'");
+		}
+		if (numFields < 0) throw new RuntimeException("Phenotypes file '" + fileName + "' is empty");
+
+		// Default names
+		if (names == null) {
+			names = new ArrayList<String>();
+			for (int i = 2; i < numFields; i++)
+				names.add("pheno_" + (i - 1));
+		}
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+}
@@ -0,0 +1,123 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * A long lived R process running ASKAT's R script in 'worker' mode.
+ * Requests are sent to the process' STDIN and results are read from its STDOUT.
+ *
+ * @author pcingola
+ */
+public class RWorker {
+
+	public static final String ASKAT_DONE = "ASKAT_DONE";
+	public static final String ASKAT_ERROR = "ASKAT_ERROR:"; // Error processing a batch file: 'ASKAT_ERROR:	batchFile	message'
+
+	String name;
+	boolean debug;
+	Process process;
+	BufferedWriter stdin;
+	BufferedReader stdout;
+
+	public RWorker(String name, String cmd[], boolean debug) {
+		this.name = name;
+		this.debug = debug;
+
+		try {
+			if (debug) Timer.showStdErr("\tStarting R worker '" + name + "': " + join(cmd));
+			process = new ProcessBuilder(cmd).start();
+			stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+			stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			drain(process.getErrorStream());
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot start R worker: " + join(cmd), e);
+		}
+	}
+
+	/**
+	 * Finish the process (R script exits after reading EOF)
+	 */
+	public void close() {
+		try {
+			stdin.close();
+			process.waitFor();
+		} catch (Exception e) {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Read STDERR in a separate thread, otherwise the process may block
+	 */
+	void drain(final InputStream stderr) {
+		Thread thread = new Thread("R_worker_stderr_" + name) {
+			@Override
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(stderr));
+					for (String line; (line = reader.readLine()) != null;)
+						if (debug) System.err.println(line);
+				} catch (IOException e) {
+					// Nothing to do, the process is finished
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Is the process still running?
+	 */
+	public boolean isAlive() {
+		try {
+			process.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	String join(String cmd[]) {
+		StringBuilder sb = new StringBuilder();
+		for (String c : cmd)
+			sb.append((sb.length() > 0 ? " " : "") + c);
+		return sb.toString();
+	}
+
+	/**
+	 * Send a request and wait for the results
+	 * Note: Errors are reported for each batch file (see ASKAT_ERROR), the
+	 * R script keeps processing other files and the worker can still be used
+	 * @return Result, warning and error lines
+	 */
+	public List<String> run(String request) {
+		List<String> results = new ArrayList<String>();
+		try {
+			stdin.write(request);
+			stdin.newLine();
+			stdin.flush();
+
+			for (String line; (line = stdout.readLine()) != null;) {
+				if (line.equals(ASKAT_DONE)) return results;
+
+				if (line.startsWith(Askat.ASKAT_RESULTS) || line.startsWith(Askat.ASKAT_WARNING) || line.startsWith(ASKAT_ERROR)) results.add(line);
+				else if (debug) System.err.println(line);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error communicating with R worker '" + name + "'", e);
+		}
+
+		throw new RuntimeException("R worker '" + name + "' finished unexpectedly.\n\tRequest: " + request);
+	}
+
+}
@@ -0,0 +1,186 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * A pool of long lived R processes (see RWorker). This avoids paying for
+ * an 'Rscript' startup and loading the kinship file on every job: each
+ * worker keeps the last kinship file loaded until a different one is requested.
+ *
+ * Workers are started on demand and live until 'close()' is called,
+ * so they are reused across blocks.
+ *
+ * Errors are reported for each batch file: Results from other files in
+ * the same request are kept, failed files are logged (and not marked as
+ * 'done' in the journal, so they are processed again when resuming).
+ *
+ * @author pcingola
+ */
+public class RWorkerPool {
+
+	public static final String POOL_R_WORKER = "r_worker"; // Metrics: Pool name
+	public static final int JOBS_PER_WORKER = 10; // When grouping many small files, create this many requests per worker (load balancing)
+
+	Askat askat;
+	int numWorkers, count;
+	ExecutorService executor;
+	LinkedBlockingQueue<RWorker> idle; // Workers available
+	List<RWorker> workers; // All workers
+	List<Future<Object>> running; // Requests being processed
+	List<String> failedFiles; // Batch files that failed (since last 'run()')
+
+	public RWorkerPool(Askat askat) {
+		this.askat = askat;
+		numWorkers = askat.getNumWorkers();
+		executor = Executors.newFixedThreadPool(numWorkers);
+		idle = new LinkedBlockingQueue<RWorker>();
+		workers = new ArrayList<RWorker>();
+		running = new ArrayList<Future<Object>>();
+		failedFiles = new ArrayList<String>();
+		askat.getMetrics().pool(POOL_R_WORKER, numWorkers);
+	}
+
+	/**
+	 * Add a request (batch files are processed by the next available worker)
+	 * @param batchFiles : Comma separated list of batch files
+	 * @param kinshipFile
+	 */
+	public synchronized void add(final String batchFiles, String kinshipFile) {
+		final String request = batchFiles + "\t" + kinshipFile + "\t" + askat.getSubBlockSize() + "\t" + askat.getpACC() + "\t" + askat.getWindowStep();
+		final Metrics metrics = askat.getMetrics();
+		final long queued = System.nanoTime();
+
+		running.add(executor.submit(new Callable<Object>() {
+
+			@Override
+			public Object call() throws Exception {
+				metrics.time("queue_wait", queued);
+				RWorker worker = worker();
+				List<String> results;
+				long start = System.nanoTime();
+				try {
+					results = worker.run(request);
+				} catch (RuntimeException e) {
+					// Worker process died: All files in this request failed
+					results = new ArrayList<String>();
+					for (String batchFile : batchFiles.split(","))
+						results.add(RWorker.ASKAT_ERROR + "\t" + batchFile + "\t" + e.getMessage().replace('\n', ' '));
+				} finally {
+					long elapsed = System.nanoTime() - start;
+					metrics.stage("r_exec").add(elapsed);
+					metrics.busy(POOL_R_WORKER, worker.name, elapsed);
+					idle.add(worker); // Worker can be reused (if the process died, 'worker()' will replace it)
+				}
+
+				// Failed batch files
+				HashSet<String> failed = new HashSet<String>();
+				for (String line : results) {
+					if (!line.startsWith(RWorker.ASKAT_ERROR)) continue;
+					String fields[] = line.substring(RWorker.ASKAT_ERROR.length()).trim().split("\t", 2);
+					failed.add(fields[0]);
+					failed(worker, fields[0], fields.length > 1 ? fields[1] : "");
+				}
+
+				synchronized (System.out) {
+					for (String line : results)
+						if (!line.startsWith(RWorker.ASKAT_ERROR)) System.out.println(line);
+				}
+
+				for (String line : results)
+					askat.getResultSink().add(line);
+
+				// Batch files in this request are done (except failed ones)
+				Journal journal = askat.getJournal();
+				if (journal != null) {
+					for (String batchFile : batchFiles.split(","))
+						if (!failed.contains(batchFile)) journal.done(batchFile);
+				}
+				return null;
+			}
+		}));
+	}
+
+	/**
+	 * A batch file failed: Log it and keep going
+	 */
+	void failed(RWorker worker, String batchFile, String error) {
+		synchronized (failedFiles) {
+			failedFiles.add(batchFile);
+		}
+		askat.getMetrics().count("r_worker_errors");
+		Timer.showStdErr("ERROR: R worker '" + worker.name + "' failed processing batch file '" + batchFile + "': " + error);
+	}
+
+	/**
+	 * Finish all workers
+	 */
+	public synchronized void close() {
+		executor.shutdown();
+		synchronized (workers) {
+			for (RWorker worker : workers)
+				worker.close();
+			workers.clear();
+		}
+		idle.clear();
+	}
+
+	/**
+	 * Wait for all pending requests
+	 */
+	public synchronized void run() {
+		try {
+			for (Future<Object> f : running)
+				f.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error running ASKAT (R worker)", e.getCause());
+		} finally {
+			if (askat.isVerbose()) Timer.showStdErr("Finished " + running.size() + " requests.");
+			running.clear();
+			synchronized (failedFiles) {
+				if (!failedFiles.isEmpty()) Timer.showStdErr("WARNING: " + failedFiles.size() + " batch files failed (see errors above). Use '-resume' to process them again.");
+				failedFiles.clear();
+			}
+		}
+	}
+
+	/**
+	 * Get an available worker or start a new one
+	 * Note: There are never more workers than threads, so if none is idle we can create it
+	 */
+	RWorker worker() {
+		RWorker worker = idle.poll();
+		if (worker != null) {
+			if (worker.isAlive()) return worker;
+
+			// Process died: Replace it
+			synchronized (workers) {
+				workers.remove(worker);
+			}
+		}
+
+		String cmd[] = { askat.getPath(Askat.CMD_RSCRIPT) //
+				, askat.getrPath() + Askat.R_SCRIPT_ASKAT //
+				, "-worker" //
+				, askat.getTfamFile() //
+		};
+
+		synchronized (workers) {
+			worker = new RWorker("" + (++count), cmd, askat.isDebug());
+			workers.add(worker);
+		}
+		return worker;
+	}
+
+}
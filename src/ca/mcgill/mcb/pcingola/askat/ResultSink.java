@@ -0,0 +1,218 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Collect ASKAT results (from R scripts, R workers or in-process tests).
+ *
+ * Results are saved to a compressed TSV file (see AskatResult.TSV_HEADER),
+ * sorted by position, even though jobs finish in any order. Results are
+ * kept in memory and sorted; when there are too many, they are saved to a
+ * temporary 'run' file. When closing, all runs are merged (external sort).
+ *
+ * The top results (minimum p-values) are also kept in memory.
+ *
+ * @author pcingola
+ */
+public class ResultSink {
+
+	public static final int MAX_BUFFER = 100 * 1000; // Maximum number of results in memory (before saving a run)
+
+	/**
+	 * A run file being merged
+	 */
+	class Run {
+		BufferedReader reader;
+		AskatResult result; // Current result
+
+		Run(String fileName) throws IOException {
+			reader = new BufferedReader(new FileReader(fileName));
+			next();
+		}
+
+		boolean next() throws IOException {
+			String line = reader.readLine();
+			result = (line != null ? AskatResult.parseTsv(line) : null);
+			if (result == null) reader.close();
+			return result != null;
+		}
+	}
+
+	String fileName;
+	int topK;
+	boolean verbose;
+	int count;
+	List<AskatResult> buffer; // Results not yet saved
+	List<String> runFiles; // Temporary files (sorted results)
+	PriorityQueue<AskatResult> top; // Top results (the worst one is at the head)
+	Journal journal; // Journal results (null if not used)
+	Metrics metrics; // Time parsing results (null if not used)
+	boolean phenotype; // Results have a phenotype name (multi-phenotype mode)
+	boolean permutation; // Results have empirical p-values
+
+	public ResultSink(String fileName, int topK) {
+		this.fileName = fileName;
+		this.topK = topK;
+		buffer = new ArrayList<AskatResult>();
+		runFiles = new ArrayList<String>();
+		top = new PriorityQueue<AskatResult>(Math.max(1, topK), Collections.reverseOrder(AskatResult.PVALUE_COMPARATOR));
+	}
+
+	/**
+	 * Add a result
+	 */
+	public synchronized void add(AskatResult result) {
+		count++;
+		if (result.phenotype != null) phenotype = true;
+		if (result.numPermutations > 0) permutation = true;
+
+		// Update top results
+		if ((topK > 0) && !Double.isNaN(result.pValue)) {
+			if (top.size() < topK) top.add(result);
+			else if (result.pValue < top.peek().pValue) {
+				top.poll();
+				top.add(result);
+			}
+		}
+
+		buffer.add(result);
+		if (buffer.size() >= MAX_BUFFER) saveRun();
+	}
+
+	/**
+	 * Add a result and save it to the journal
+	 * @param journalKey : Work that produced this result (see Journal)
+	 */
+	public void add(AskatResult result, String journalKey) {
+		if (journal != null) journal.result(journalKey, result);
+		add(result);
+	}
+
+	/**
+	 * Parse and add an 'ASKAT_RESULTS:' line (other lines are ignored)
+	 * Results are journaled using the block (i.e. batch file) name as key
+	 */
+	public void add(String line) {
+		long start = System.nanoTime();
+		AskatResult result = AskatResult.parse(line);
+		if (result != null) add(result, result.block);
+		if (metrics != null) metrics.time("result_parse", start);
+	}
+
+	/**
+	 * Merge all results and save them to the output file
+	 */
+	public synchronized void close() {
+		Collections.sort(buffer, AskatResult.POSITION_COMPARATOR);
+
+		try {
+			// Open all runs
+			PriorityQueue<Run> runs = new PriorityQueue<Run>(Math.max(1, runFiles.size()), new Comparator<Run>() {
+
+				@Override
+				public int compare(Run r1, Run r2) {
+					return AskatResult.POSITION_COMPARATOR.compare(r1.result, r2.result);
+				}
+			});
+
+			for (String runFile : runFiles) {
+				Run run = new Run(runFile);
+				if (run.result != null) runs.add(run);
+			}
+
+			// Merge runs and results in memory
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(fileName))));
+			out.write((permutation ? AskatResult.TSV_HEADER_PERMUTATION : (phenotype ? AskatResult.TSV_HEADER_PHENOTYPE : AskatResult.TSV_HEADER)) + "\n");
+			int i = 0;
+			while (!runs.isEmpty() || (i < buffer.size())) {
+				AskatResult result;
+				if (runs.isEmpty() || ((i < buffer.size()) && (AskatResult.POSITION_COMPARATOR.compare(buffer.get(i), runs.peek().result) <= 0))) {
+					result = buffer.get(i++);
+				} else {
+					Run run = runs.poll();
+					result = run.result;
+					if (run.next()) runs.add(run);
+				}
+				out.write(result.toTsv() + "\n");
+			}
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing results file '" + fileName + "'", e);
+		}
+
+		// Delete temporary files
+		for (String runFile : runFiles)
+			new File(runFile).delete();
+		runFiles.clear();
+		buffer.clear();
+
+		if (verbose) {
+			Timer.showStdErr("Saved " + count + " results to file '" + fileName + "'");
+			StringBuilder sb = new StringBuilder();
+			for (AskatResult result : getTop())
+				sb.append("\n\t" + AskatResult.num(result.pValue) + "\t" + result.chrStart + ":" + result.posStart + " - " + result.chrEnd + ":" + result.posEnd + "\t" + result.idStart + " - " + result.idEnd + (result.phenotype != null ? "\t" + result.phenotype : "") + (result.numPermutations > 0 ? "\tempirical p-value: " + AskatResult.num(result.pValuePerm) : ""));
+			Timer.showStdErr("Top " + top.size() + " results (minimum p-values):" + sb);
+		}
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Top results, sorted by p-value
+	 */
+	public synchronized List<AskatResult> getTop() {
+		List<AskatResult> list = new ArrayList<AskatResult>(top);
+		Collections.sort(list, AskatResult.PVALUE_COMPARATOR);
+		return list;
+	}
+
+	/**
+	 * Sort results in memory and save them to a temporary file
+	 */
+	void saveRun() {
+		Collections.sort(buffer, AskatResult.POSITION_COMPARATOR);
+
+		String runFile = fileName + ".run." + runFiles.size() + ".tmp";
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(runFile));
+			for (AskatResult result : buffer)
+				out.write(result.toTsv() + "\n");
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing temporary results file '" + runFile + "'", e);
+		}
+
+		runFiles.add(runFile);
+		buffer.clear();
+	}
+
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+}
@@ -0,0 +1,84 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Sample registry: Sample IDs and an 'ID => index' map, built once.
+ *
+ * Subsets and re-orderings of samples are represented as arrays of
+ * indexes, so they can be applied directly to genotypes (e.g. VCF to
+ * TPED conversion) instead of checking every sample.
+ *
+ * Note: If an ID is repeated, the first one is used
+ *
+ * @author pcingola
+ */
+public class SampleIndex {
+
+	String ids[];
+	HashMap<String, Integer> indexById;
+
+	/**
+	 * Is 'idx' the identity (i.e. all samples, in the same order)?
+	 */
+	public static boolean isIdentity(int idx[], int size) {
+		if (idx.length != size) return false;
+		for (int i = 0; i < idx.length; i++)
+			if (idx[i] != i) return false;
+		return true;
+	}
+
+	public SampleIndex(List<String> sampleIds) {
+		ids = sampleIds.toArray(new String[0]);
+		indexById = new HashMap<String, Integer>(2 * ids.length);
+		for (int i = ids.length - 1; i >= 0; i--)
+			indexById.put(ids[i], i); // Iterate backwards, so the first one is kept
+	}
+
+	public boolean contains(String id) {
+		return indexById.containsKey(id);
+	}
+
+	public String getId(int idx) {
+		return ids[idx];
+	}
+
+	/**
+	 * Index of a sample (-1 if not found)
+	 */
+	public int indexOf(String id) {
+		Integer idx = indexById.get(id);
+		return idx != null ? idx : -1;
+	}
+
+	/**
+	 * Indexes of the samples in 'other' (in 'other' order)
+	 * @return An array of the same length as 'other' (-1 for samples not found)
+	 */
+	public int[] indexOf(SampleIndex other) {
+		int idx[] = new int[other.size()];
+		for (int i = 0; i < idx.length; i++)
+			idx[i] = indexOf(other.ids[i]);
+		return idx;
+	}
+
+	/**
+	 * Indexes of samples also in 'other' (in this registry's order)
+	 */
+	public int[] intersect(SampleIndex other) {
+		int count = 0;
+		for (String id : ids)
+			if (other.contains(id)) count++;
+
+		int idx[] = new int[count];
+		for (int i = 0, j = 0; i < ids.length; i++)
+			if (other.contains(ids[i])) idx[j++] = i;
+		return idx;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+}
@@ -0,0 +1,274 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+/**
+ * Eigen-decomposition of a real symmetric matrix
+ *
+ * Householder tri-diagonalization followed by the implicit QL algorithm
+ * (tred2 / tql2, as in EISPACK and JAMA).
+ *
+ * Eigenvalues are sorted in decreasing order (same as R's 'eigen(..., symmetric=TRUE)')
+ *
+ * @author pcingola
+ */
+public class SymmetricEigen {
+
+	static final double EPSILON = Math.pow(2.0, -52.0);
+
+	int n;
+	double d[]; // Eigenvalues
+	double e[]; // Off diagonal elements (working array)
+	double v[][]; // Eigenvectors: v[i][k] is the i-th component of the k-th eigenvector
+
+	/**
+	 * Hypotenuse without under/overflow
+	 */
+	static double hypot(double a, double b) {
+		a = Math.abs(a);
+		b = Math.abs(b);
+		if (a > b) {
+			double r = b / a;
+			return a * Math.sqrt(1 + r * r);
+		} else if (b != 0) {
+			double r = a / b;
+			return b * Math.sqrt(1 + r * r);
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Decompose matrix 'a'. Only the lower triangle is used. Matrix 'a' is not modified.
+	 * @param a
+	 */
+	public SymmetricEigen(double a[][]) {
+		n = a.length;
+		d = new double[n];
+		e = new double[n];
+		v = new double[n][n];
+
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j <= i; j++)
+				v[i][j] = v[j][i] = a[i][j];
+
+		if (n > 0) {
+			tred2();
+			tql2();
+			sort();
+		}
+		e = null;
+	}
+
+	/**
+	 * Eigenvalues (decreasing order)
+	 */
+	public double[] getEigenvalues() {
+		return d;
+	}
+
+	/**
+	 * Eigenvectors: Column 'k' is the eigenvector for eigenvalue 'k'
+	 */
+	public double[][] getEigenvectors() {
+		return v;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * Sort eigenvalues (and eigenvectors) in decreasing order
+	 */
+	void sort() {
+		for (int i = 0; i < n - 1; i++) {
+			int k = i;
+			double p = d[i];
+			for (int j = i + 1; j < n; j++) {
+				if (d[j] > p) {
+					k = j;
+					p = d[j];
+				}
+			}
+
+			if (k != i) {
+				d[k] = d[i];
+				d[i] = p;
+				for (int j = 0; j < n; j++) {
+					p = v[j][i];
+					v[j][i] = v[j][k];
+					v[j][k] = p;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Symmetric tridiagonal QL algorithm
+	 */
+	void tql2() {
+		for (int i = 1; i < n; i++)
+			e[i - 1] = e[i];
+		e[n - 1] = 0.0;
+
+		double f = 0.0, tst1 = 0.0;
+		for (int l = 0; l < n; l++) {
+			// Find small sub-diagonal element
+			tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+			int m = l;
+			while (m < n - 1) {
+				if (Math.abs(e[m]) <= EPSILON * tst1) break;
+				m++;
+			}
+
+			// If m == l, d[l] is an eigenvalue, otherwise, iterate.
+			if (m > l) {
+				do {
+					// Compute implicit shift
+					double g = d[l];
+					double p = (d[l + 1] - g) / (2.0 * e[l]);
+					double r = hypot(p, 1.0);
+					if (p < 0) r = -r;
+					d[l] = e[l] / (p + r);
+					d[l + 1] = e[l] * (p + r);
+					double dl1 = d[l + 1];
+					double h = g - d[l];
+					for (int i = l + 2; i < n; i++)
+						d[i] -= h;
+					f = f + h;
+
+					// Implicit QL transformation.
+					p = d[m];
+					double c = 1.0, c2 = c, c3 = c;
+					double el1 = e[l + 1];
+					double s = 0.0, s2 = 0.0;
+					for (int i = m - 1; i >= l; i--) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = hypot(p, e[i]);
+						e[i + 1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i + 1] = h + s * (c * g + s * d[i]);
+
+						// Accumulate transformation.
+						for (int k = 0; k < n; k++) {
+							double vk[] = v[k];
+							h = vk[i + 1];
+							vk[i + 1] = s * vk[i] + c * h;
+							vk[i] = c * vk[i] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+
+					// Check for convergence.
+				} while (Math.abs(e[l]) > EPSILON * tst1);
+			}
+			d[l] = d[l] + f;
+			e[l] = 0.0;
+		}
+	}
+
+	/**
+	 * Symmetric Householder reduction to tridiagonal form
+	 */
+	void tred2() {
+		for (int j = 0; j < n; j++)
+			d[j] = v[n - 1][j];
+
+		for (int i = n - 1; i > 0; i--) {
+			// Scale to avoid under/overflow.
+			double scale = 0.0, h = 0.0;
+			for (int k = 0; k < i; k++)
+				scale += Math.abs(d[k]);
+
+			if (scale == 0.0) {
+				e[i] = d[i - 1];
+				for (int j = 0; j < i; j++) {
+					d[j] = v[i - 1][j];
+					v[i][j] = 0.0;
+					v[j][i] = 0.0;
+				}
+			} else {
+				// Generate Householder vector.
+				for (int k = 0; k < i; k++) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i - 1];
+				double g = Math.sqrt(h);
+				if (f > 0) g = -g;
+				e[i] = scale * g;
+				h = h - f * g;
+				d[i - 1] = f - g;
+				for (int j = 0; j < i; j++)
+					e[j] = 0.0;
+
+				// Apply similarity transformation to remaining columns.
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					v[j][i] = f;
+					g = e[j] + v[j][j] * f;
+					for (int k = j + 1; k <= i - 1; k++) {
+						g += v[k][j] * d[k];
+						e[k] += v[k][j] * f;
+					}
+					e[j] = g;
+				}
+
+				f = 0.0;
+				for (int j = 0; j < i; j++) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+
+				double hh = f / (h + h);
+				for (int j = 0; j < i; j++)
+					e[j] -= hh * d[j];
+
+				for (int j = 0; j < i; j++) {
+					f = d[j];
+					g = e[j];
+					for (int k = j; k <= i - 1; k++)
+						v[k][j] -= (f * e[k] + g * d[k]);
+					d[j] = v[i - 1][j];
+					v[i][j] = 0.0;
+				}
+			}
+			d[i] = h;
+		}
+
+		// Accumulate transformations.
+		for (int i = 0; i < n - 1; i++) {
+			v[n - 1][i] = v[i][i];
+			v[i][i] = 1.0;
+			double h = d[i + 1];
+			if (h != 0.0) {
+				for (int k = 0; k <= i; k++)
+					d[k] = v[k][i + 1] / h;
+
+				for (int j = 0; j <= i; j++) {
+					double g = 0.0;
+					for (int k = 0; k <= i; k++)
+						g += v[k][i + 1] * v[k][j];
+					for (int k = 0; k <= i; k++)
+						v[k][j] -= g * d[k];
+				}
+			}
+
+			for (int k = 0; k <= i; k++)
+				v[k][i + 1] = 0.0;
+		}
+
+		for (int j = 0; j < n; j++) {
+			d[j] = v[n - 1][j];
+			v[n - 1][j] = 0.0;
+		}
+		v[n - 1][n - 1] = 1.0;
+		e[0] = 0.0;
+	}
+}
@@ -16,6 +16,7 @@ import ca.mcgill.mcb.pcingola.util.Gpr;
 public class Tfam implements Iterable<TfamEntry> {
 
 	ArrayList<TfamEntry> tfamEntries;
+	SampleIndex sampleIndex; // Sample ID => index (created on demand)
 
 	public Tfam() {
 		tfamEntries = new ArrayList<TfamEntry>();
@@ -27,6 +28,7 @@ public class Tfam implements Iterable<TfamEntry> {
 
 	public void add(TfamEntry te) {
 		tfamEntries.add(te);
+		sampleIndex = null;
 	}
 
 	/**
@@ -35,9 +37,8 @@ public class Tfam implements Iterable<TfamEntry> {
 	 * @return
 	 */
 	public TfamEntry find(String id) {
-		for (TfamEntry te : this)
-			if (te.id.equals(id)) return te;
-		return null;
+		int idx = getSampleIndex().indexOf(id);
+		return idx >= 0 ? tfamEntries.get(idx) : null;
 	}
 
 	/**
@@ -49,6 +50,25 @@ public class Tfam implements Iterable<TfamEntry> {
 		return tfamEntries.get(idx);
 	}
 
+	/**
+	 * Get an array of phenotypes (same order as TFAM entries)
+	 * @return
+	 */
+	public double[] getPhenotypes() {
+		double phenotypes[] = new double[size()];
+		for (int i = 0; i < phenotypes.length; i++)
+			phenotypes[i] = tfamEntries.get(i).phenotype;
+		return phenotypes;
+	}
+
+	/**
+	 * Sample registry (sample ID => index)
+	 */
+	public SampleIndex getSampleIndex() {
+		if (sampleIndex == null) sampleIndex = new SampleIndex(getSampleNames());
+		return sampleIndex;
+	}
+
 	/**
 	 * Get a list of sample names
 	 * @return
@@ -75,11 +95,12 @@ public class Tfam implements Iterable<TfamEntry> {
 		String lines[] = Gpr.readFile(tfamFileName).split("\n");
 
 		// Add all entries
-		tfamEntries = new ArrayList<TfamEntry>();
+		tfamEntries = new ArrayList<TfamEntry>(lines.length);
 		for (String line : lines) {
 			TfamEntry te = new TfamEntry(line);
 			tfamEntries.add(te);
 		}
+		sampleIndex = null;
 	}
 
 	public void save(String fileName) {
@@ -90,6 +111,17 @@ public class Tfam implements Iterable<TfamEntry> {
 		Gpr.toFile(fileName, sb.toString());
 	}
 
+	/**
+	 * A new TFAM having entries 'idx' (in that order)
+	 */
+	public Tfam select(int idx[]) {
+		Tfam tfam = new Tfam();
+		tfam.tfamEntries.ensureCapacity(idx.length);
+		for (int i : idx)
+			tfam.tfamEntries.add(tfamEntries.get(i));
+		return tfam;
+	}
+
 	public int size() {
 		return tfamEntries.size();
 	}
@@ -7,7 +7,13 @@ import ca.mcgill.mcb.pcingola.util.GprSeq;
 
 /**
  * Entry in a TPED file (a line)
- * 
+ *
+ * An entry can be reused as a 'cursor' over a TPED file (see 'set(TpedScanner)'):
+ * buffers are allocated once and overwritten by each line, so no objects are
+ * created per line. Since it is a Marker, it can be used to query intervals.
+ * A reused entry is only valid until the next call to 'set()', use 'copy()'
+ * to keep it.
+ *
  * @author pcingola
  */
 public class TpedEntry extends Marker {
@@ -15,42 +21,163 @@ public class TpedEntry extends Marker {
 	private static final long serialVersionUID = 3407992013631475007L;
 
 	Genome genome;
-	String line;
-	String recs[];
-	int count[];
-	char genotypes[];
+	String chrName; // Chromosome name (the chromosome is only looked up when the name changes)
+	String geneticDistance;
+	TpedScanner tped; // Scanner used to decode 'id' and 'geneticDistance' on demand (null if they are already decoded)
+	int lineNum; // Line number in 'tped'
+	int numAlleles;
+	byte alleles[]; // Alleles (first character, upper case), two per sample. Only the first 'numAlleles' are used
+	int count[] = new int[4]; // Count bases: A, C, G, T
 	char maxBase;
+	double maf;
+	byte dosage[]; // Number of non-major alleles (0, 1 or 2), one value per sample
+	byte packed[]; // Packed genotypes (see AskatBatchFile), created only once even if the entry is in many batches
+	boolean packedValid;
 
-	public TpedEntry(Genome genome, String line) {
+	/**
+	 * Create an empty entry, to be reused (see 'set()')
+	 */
+	public TpedEntry(Genome genome) {
 		this.genome = genome;
-		this.line = line;
-		parse();
+	}
+
+	public TpedEntry(Genome genome, String line) {
+		this(genome);
+		parse(line);
 	}
 
 	/**
-	 * Calculate Minimum allele frequency
-	 * @param line
-	 * @return
+	 * Create an entry from the current line in a TPED scanner (no regex splitting)
 	 */
-	public double maf() {
-		double maf = 1.0;
+	public TpedEntry(Genome genome, TpedScanner tped) {
+		this(genome);
+		set(tped);
+		getId();
+		getGeneticDistance();
+	}
 
-		// Total
-		int tot = 0;
-		for (int i = 0; i < count.length; i++)
-			tot += count[i];
+	/**
+	 * Get chromosome from genome
+	 * Note: Genome is shared by blocks running in parallel (see BlockPipeline)
+	 */
+	Marker chromosome(String chr) {
+		synchronized (genome) {
+			return genome.getOrCreateChromosome(chr);
+		}
+	}
 
-		// Minor allele frequency
+	/**
+	 * A copy that can be kept (it is not affected when this entry is reused)
+	 */
+	public TpedEntry copy() {
+		TpedEntry copy = new TpedEntry(genome);
+		copy.chrName = chrName;
+		copy.parent = parent;
+		copy.start = start;
+		copy.end = end;
+		copy.id = getId();
+		copy.geneticDistance = getGeneticDistance();
+		copy.numAlleles = numAlleles;
+		copy.alleles = new byte[numAlleles];
+		System.arraycopy(alleles, 0, copy.alleles, 0, numAlleles);
+		System.arraycopy(count, 0, copy.count, 0, count.length);
+		copy.maxBase = maxBase;
+		copy.maf = maf;
+		copy.dosage = dosage.clone();
+		if (packedValid) {
+			copy.packed = packed.clone();
+			copy.packedValid = true;
+		}
+		return copy;
+	}
+
+	/**
+	 * Genotypes coded as number of non-major alleles (0, 1 or 2), one value per sample
+	 * Note: This is the same coding used in 'tped2askatDat()'
+	 * Note: The array is reused, it must not be modified
+	 * @return
+	 */
+	public byte[] dosage() {
+		return dosage;
+	}
+
+	/**
+	 * Major allele and dosage. Counts must be already calculated
+	 */
+	void encode() {
+		// Get base having maximum frequency
+		int max = 0, maxIdx = 0, tot = 0;
 		for (int i = 0; i < count.length; i++) {
-			if (count[i] > 0) {
-				double af = ((double) count[i]) / ((double) tot);
-				maf = Math.min(maf, af);
+			tot += count[i];
+			if (max < count[i]) {
+				max = count[i];
+				maxIdx = i;
 			}
 		}
 
+		// Major allele
+		maxBase = GprSeq.BASES[maxIdx]; // This is assumed to be the reference
+
+		// Minor allele frequency
+		maf = 1.0;
+		for (int i = 0; i < count.length; i++)
+			if (count[i] > 0) maf = Math.min(maf, ((double) count[i]) / ((double) tot));
+
+		// Dosage
+		int numSamples = getNumSamples();
+		if ((dosage == null) || (dosage.length != numSamples)) dosage = new byte[numSamples];
+		for (int i = 0, j = 0; j < numSamples; i += 2, j++)
+			dosage[j] = (byte) ((alleles[i] == maxBase ? 0 : 1) + (alleles[i + 1] == maxBase ? 0 : 1));
+
+		packedValid = false;
+	}
+
+	public String getGeneticDistance() {
+		decode();
+		return geneticDistance;
+	}
+
+	/**
+	 * Decode strings from scanner
+	 */
+	void decode() {
+		if (tped == null) return;
+		if (tped.getLineNum() != lineNum) throw new RuntimeException("TPED entry is no longer valid (scanner moved from line " + lineNum + " to line " + tped.getLineNum() + "). Use 'copy()' to keep entries.");
+		id = tped.getId();
+		geneticDistance = tped.getGeneticDistance();
+		tped = null;
+	}
+
+	@Override
+	public String getId() {
+		decode();
+		return id;
+	}
+
+	public int getNumSamples() {
+		return numAlleles / 2;
+	}
+
+	/**
+	 * Calculate Minimum allele frequency
+	 * @param line
+	 * @return
+	 */
+	public double maf() {
 		return maf;
 	}
 
+	/**
+	 * Genotypes packed as in binary batch files (see AskatBatchFile.pack)
+	 */
+	public byte[] packed() {
+		if (!packedValid) {
+			packed = AskatBatchFile.pack(dosage, packed);
+			packedValid = true;
+		}
+		return packed;
+	}
+
 	/**
 	 * Parse a TPED line. Fill array of genotypes and counts
 	 * @param line
@@ -58,53 +185,63 @@ public class TpedEntry extends Marker {
 	 * @param count
 	 * @return Base having max frequency
 	 */
-	void parse() {
-		recs = line.split("\\s+");
+	void parse(String line) {
+		String recs[] = line.split("\\s+");
 		if (recs.length % 2 != 0) throw new RuntimeException("Odd number of records. This should never happen!\n\t'" + line + "'");
 
 		// Chromosome
-		parent = genome.getOrCreateChromosome(recs[0]);
+		setChromosome(recs[0]);
+
+		// Variant ID
+		id = recs[1];
+		geneticDistance = recs[2];
+		tped = null;
 
 		// Start and End position
 		start = end = Gpr.parseIntSafe(recs[3]);
 
-		// Count bases
-		count = new int[4];
-		genotypes = new char[recs.length - 4];
-
-		// Convert to char and count
+		// Convert to upper case and count
+		for (int i = 0; i < count.length; i++)
+			count[i] = 0;
+		numAlleles = recs.length - 4;
+		alleles = new byte[numAlleles];
 		for (int i = 4, j = 0; i < recs.length; i++, j++) {
-			char base = Character.toUpperCase(recs[i].charAt(0));
-			genotypes[j] = base;
-
-			switch (base) {
-			case 'A':
-				count[0]++;
-				break;
-			case 'C':
-				count[1]++;
-				break;
-			case 'G':
-				count[2]++;
-				break;
-			case 'T':
-				count[3]++;
-				break;
-			default: // Nothing to do (missing data)
-			}
+			alleles[j] = (byte) Character.toUpperCase(recs[i].charAt(0));
+			int idx = TpedScanner.baseIdx(alleles[j]);
+			if (idx >= 0) count[idx]++;
 		}
+		encode();
+	}
 
-		// Get base having maximum frequency
-		int max = 0, maxIdx = 0;
-		for (int i = 0; i < count.length; i++) {
-			if (max < count[i]) {
-				max = count[i];
-				maxIdx = i;
-			}
-		}
+	/**
+	 * Set this entry from the current line in a TPED scanner, reusing all buffers.
+	 * Counts are calculated by the scanner while splitting the line, so the only
+	 * pass over the genotypes is the dosage calculation.
+	 */
+	public TpedEntry set(TpedScanner tped) {
+		setChromosome(tped.getChromosomeName());
+		start = end = tped.getPosition();
 
-		// Major allele
-		maxBase = GprSeq.BASES[maxIdx]; // This is assumed to be the reference
+		// Strings are only decoded if needed
+		this.tped = tped;
+		lineNum = tped.getLineNum();
+		id = geneticDistance = null;
+
+		// Alleles and counts
+		numAlleles = tped.getNumAlleles();
+		if ((alleles == null) || (alleles.length < numAlleles)) alleles = new byte[numAlleles];
+		System.arraycopy(tped.alleles, 0, alleles, 0, numAlleles);
+		System.arraycopy(tped.count, 0, count, 0, count.length);
+		encode();
+
+		return this;
+	}
+
+	void setChromosome(String chr) {
+		if (!chr.equals(chrName)) {
+			parent = chromosome(chr);
+			chrName = chr;
+		}
 	}
 
 	/**
@@ -115,17 +252,12 @@ public class TpedEntry extends Marker {
 	public String tped2askatDat() {
 		// Create a numeric line
 		StringBuilder datLine = new StringBuilder();
-		datLine.append(recs[0] + " ");
-		datLine.append(recs[1] + " ");
-		datLine.append(recs[2] + " ");
-		datLine.append(recs[3] + " ");
-		for (int i = 0; i < genotypes.length; i += 2) {
-			int num0 = (genotypes[i] == maxBase ? 0 : 1);
-			int num1 = (genotypes[i + 1] == maxBase ? 0 : 1);
-
-			int num = num0 + num1;
-			datLine.append(num + " ");
-		}
+		datLine.append(chrName + " ");
+		datLine.append(getId() + " ");
+		datLine.append(getGeneticDistance() + " ");
+		datLine.append(start + " ");
+		for (int i = 0; i < dosage.length; i++)
+			datLine.append(dosage[i] + " ");
 
 		return datLine.toString();
 	}
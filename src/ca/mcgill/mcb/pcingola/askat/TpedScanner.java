@@ -0,0 +1,335 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import ca.mcgill.mcb.pcingola.util.GprSeq;
+
+/**
+ * Memory mapped TPED file scanner.
+ *
+ * Lines are tokenized in place (no String is created per line or per allele).
+ * The scanner works as a reusable cursor: after 'next()' returns true, the
+ * accessors refer to the current line, until 'next()' is called again.
+ * 
+ * Lines can also be read from a VCF stream (see VcfTpedStream), instead of
+ * a TPED file.
+ *
+ * Typical usage:
+ * 		TpedScanner tped = new TpedScanner(fileName);
+ * 		while (tped.next()) {
+ * 			... tped.getChromosomeName(), tped.getPosition(), tped.getAllele(i) ...
+ * 		}
+ * 		tped.close();
+ *
+ * @author pcingola
+ */
+public class TpedScanner {
+
+	public static final int WINDOW_SIZE = 256 * 1024 * 1024; // Size of each mapped region
+	public static final int NUM_FIELDS = 4; // Fields before genotypes: chromosome, ID, genetic distance, position
+
+	String fileName;
+	FileInputStream fis;
+	FileChannel channel;
+	long fileSize;
+	VcfTpedStream stream; // Read lines from a stream, instead of a file
+	ByteBuffer buffer; // Current window (or current line, when reading from a stream)
+	long windowStart; // File offset of current window
+	int windowSize = WINDOW_SIZE;
+	int pos; // Position (in window) where the next line starts
+	int lineStart, lineEnd; // Current line (in window, 'lineEnd' is exclusive and excludes new line characters)
+	int lineNum; // Current line number (one-based)
+	int fieldStart[] = new int[NUM_FIELDS], fieldEnd[] = new int[NUM_FIELDS];
+	byte alleles[] = new byte[1024]; // Alleles (first character of each allele, upper case)
+	int numAlleles;
+	int count[] = new int[4]; // Count bases: A, C, G, T
+	byte chrBytes[] = new byte[0]; // Chromosome name (cached)
+	String chr = "";
+
+	public TpedScanner(String fileName) {
+		this.fileName = fileName;
+		try {
+			fis = new FileInputStream(fileName);
+			channel = fis.getChannel();
+			fileSize = channel.size();
+			map(0);
+		} catch (IOException e) {
+			throw new RuntimeException("Error opening file '" + fileName + "'", e);
+		}
+	}
+
+	public TpedScanner(VcfTpedStream stream) {
+		this.stream = stream;
+		fileName = stream.getVcfFile();
+		stream.start();
+	}
+
+	public void close() {
+		try {
+			buffer = null;
+			if (stream != null) stream.close();
+			if (fis != null) fis.close();
+			fis = null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Base index (same order as GprSeq.BASES), or -1 if not a base
+	 */
+	static int baseIdx(byte b) {
+		switch (b) {
+		case 'A':
+			return 0;
+		case 'C':
+			return 1;
+		case 'G':
+			return 2;
+		case 'T':
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Find the end of current line, remapping if needed
+	 * @return false if there are no more lines
+	 */
+	boolean findLine() {
+		if (stream != null) {
+			byte line[] = stream.take();
+			if (line == null) return false;
+			buffer = ByteBuffer.wrap(line);
+			lineStart = 0;
+			lineEnd = line.length;
+			return true;
+		}
+
+		while (true) {
+			int limit = buffer.limit();
+			int i = pos;
+			while ((i < limit) && (buffer.get(i) != '\n'))
+				i++;
+
+			// Found a new line or reached end of file?
+			boolean eof = (windowStart + i >= fileSize);
+			if ((i < limit) || eof) {
+				if ((i == pos) && eof) return false; // Nothing left
+
+				lineStart = pos;
+				lineEnd = i;
+				if ((lineEnd > lineStart) && (buffer.get(lineEnd - 1) == '\r')) lineEnd--;
+				pos = i + 1;
+				return true;
+			}
+
+			// Line crosses the end of the window: Map a new window starting at this line
+			if (pos == 0) windowSize = (int) Math.min(Integer.MAX_VALUE, 2L * windowSize); // Line is longer than the window
+			map(windowStart + pos);
+		}
+	}
+
+	/**
+	 * Allele 'i' (first character, upper case)
+	 */
+	public byte getAllele(int i) {
+		return alleles[i];
+	}
+
+	/**
+	 * Chromosome name. The String is reused while the chromosome doesn't change
+	 */
+	public String getChromosomeName() {
+		int start = fieldStart[0], len = fieldEnd[0] - start;
+		boolean same = (len == chrBytes.length);
+		for (int i = 0; same && (i < len); i++)
+			same = (buffer.get(start + i) == chrBytes[i]);
+
+		if (!same) {
+			chrBytes = new byte[len];
+			for (int i = 0; i < len; i++)
+				chrBytes[i] = buffer.get(start + i);
+			chr = new String(chrBytes);
+		}
+		return chr;
+	}
+
+	/**
+	 * Field as a String (decoded on demand)
+	 */
+	public String getField(int fieldNum) {
+		int len = fieldEnd[fieldNum] - fieldStart[fieldNum];
+		byte b[] = new byte[len];
+		for (int i = 0; i < len; i++)
+			b[i] = buffer.get(fieldStart[fieldNum] + i);
+		return new String(b);
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getGeneticDistance() {
+		return getField(2);
+	}
+
+	public String getId() {
+		return getField(1);
+	}
+
+	/**
+	 * Current line as a String (only for error messages)
+	 */
+	public String getLine() {
+		byte b[] = new byte[lineEnd - lineStart];
+		for (int i = 0; i < b.length; i++)
+			b[i] = buffer.get(lineStart + i);
+		return new String(b);
+	}
+
+	public int getLineNum() {
+		return lineNum;
+	}
+
+	/**
+	 * Most common base (this is assumed to be the reference), same as TpedEntry
+	 */
+	public char getMaxBase() {
+		int max = 0, maxIdx = 0;
+		for (int i = 0; i < count.length; i++) {
+			if (max < count[i]) {
+				max = count[i];
+				maxIdx = i;
+			}
+		}
+		return GprSeq.BASES[maxIdx];
+	}
+
+	public int getNumAlleles() {
+		return numAlleles;
+	}
+
+	public int getNumSamples() {
+		return numAlleles / 2;
+	}
+
+	/**
+	 * Position (parsed in place). Same as Gpr.parseIntSafe: Returns 0 if it cannot be parsed
+	 */
+	public int getPosition() {
+		int num = 0;
+		for (int i = fieldStart[3]; i < fieldEnd[3]; i++) {
+			int digit = buffer.get(i) - '0';
+			if ((digit < 0) || (digit > 9)) return 0;
+			num = num * 10 + digit;
+		}
+		return num;
+	}
+
+	boolean isSpace(byte b) {
+		return (b == ' ') || (b == '\t');
+	}
+
+	/**
+	 * Minor allele frequency (same as TpedEntry.maf())
+	 */
+	public double maf() {
+		int tot = 0;
+		for (int i = 0; i < count.length; i++)
+			tot += count[i];
+
+		double maf = 1.0;
+		for (int i = 0; i < count.length; i++)
+			if (count[i] > 0) maf = Math.min(maf, ((double) count[i]) / ((double) tot));
+
+		return maf;
+	}
+
+	/**
+	 * Map a window starting at file offset 'start'
+	 */
+	void map(long start) {
+		try {
+			windowStart = start;
+			long size = Math.min(windowSize, fileSize - start);
+			buffer = channel.map(MapMode.READ_ONLY, start, size);
+			pos = 0;
+		} catch (IOException e) {
+			throw new RuntimeException("Error mapping file '" + fileName + "'", e);
+		}
+	}
+
+	/**
+	 * Advance to next (non-empty) line
+	 * @return false if there are no more lines
+	 */
+	public boolean next() {
+		while (findLine()) {
+			lineNum++;
+			if (tokenize()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Split current line into fields and alleles
+	 * @return false if the line is empty
+	 */
+	boolean tokenize() {
+		numAlleles = 0;
+		for (int i = 0; i < count.length; i++)
+			count[i] = 0;
+
+		int field = 0;
+		int i = lineStart;
+		while (i < lineEnd) {
+			// Skip spaces
+			while ((i < lineEnd) && isSpace(buffer.get(i)))
+				i++;
+			if (i >= lineEnd) break;
+
+			// Find end of token
+			int start = i;
+			while ((i < lineEnd) && !isSpace(buffer.get(i)))
+				i++;
+
+			if (field < NUM_FIELDS) {
+				fieldStart[field] = start;
+				fieldEnd[field] = i;
+				field++;
+			} else {
+				byte base = buffer.get(start);
+				if ((base >= 'a') && (base <= 'z')) base -= 'a' - 'A';
+
+				if (numAlleles >= alleles.length) {
+					byte newAlleles[] = new byte[2 * alleles.length];
+					System.arraycopy(alleles, 0, newAlleles, 0, numAlleles);
+					alleles = newAlleles;
+				}
+				alleles[numAlleles++] = base;
+
+				int idx = baseIdx(base);
+				if (idx >= 0) count[idx]++;
+			}
+		}
+
+		if (field == 0) return false; // Empty line
+		if (field < NUM_FIELDS) throw new RuntimeException("Missing fields in TPED file '" + fileName + "', line " + lineNum + ":\n\t'" + getLine() + "'");
+		if (numAlleles % 2 != 0) throw new RuntimeException("Odd number of alleles in TPED file '" + fileName + "', line " + lineNum + ". This should never happen!");
+		return true;
+	}
+
+	/**
+	 * Copy current line (including a new line character) to 'out'
+	 */
+	public void write(TpedWriter out) {
+		out.write(buffer, lineStart, lineEnd);
+	}
+
+}
@@ -0,0 +1,74 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write TPED lines as raw bytes (e.g. copied from a TpedScanner), without decoding them into Strings
+ *
+ * @author pcingola
+ */
+public class TpedWriter {
+
+	String fileName;
+	FileOutputStream fos;
+	FileChannel channel;
+	ByteBuffer buffer;
+
+	public TpedWriter(String fileName) {
+		this.fileName = fileName;
+		try {
+			fos = new FileOutputStream(new File(fileName));
+			channel = fos.getChannel();
+			buffer = ByteBuffer.allocateDirect(LittleEndian.BUFFER_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException("Error creating file '" + fileName + "'", e);
+		}
+	}
+
+	public void close() {
+		try {
+			flush();
+			fos.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + fileName + "'", e);
+		}
+	}
+
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Write bytes [start, end) from 'src' followed by a new line
+	 */
+	public void write(ByteBuffer src, int start, int end) {
+		try {
+			ByteBuffer slice = src.duplicate();
+			slice.limit(end).position(start);
+
+			if (slice.remaining() + 1 > buffer.remaining()) flush();
+			if (slice.remaining() + 1 > buffer.remaining()) {
+				// Line doesn't fit in buffer: Write directly
+				while (slice.hasRemaining())
+					channel.write(slice);
+			} else buffer.put(slice);
+
+			if (!buffer.hasRemaining()) flush();
+			buffer.put((byte) '\n');
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + fileName + "'", e);
+		}
+	}
+
+}
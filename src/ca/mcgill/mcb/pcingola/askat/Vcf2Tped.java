@@ -0,0 +1,152 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.askat.Askat.UseMissing;
+import ca.mcgill.mcb.pcingola.vcf.VcfEntry;
+import ca.mcgill.mcb.pcingola.vcf.VcfGenotype;
+
+/**
+ * Convert VCF entries to TPED lines, counting converted and skipped entries
+ * 
+ * Important: If the variant is NOT a SNP, we create a 'fake' snp ( A -> T ).
+ * 			  This is done in order to be able to MAP InDels into PED files and keep compatibility with downstream programs (GenAble).
+ * 			  Yes, it's an awful hack. YOu've been warned!
+ * 
+ * @author pcingola
+ */
+public class Vcf2Tped {
+
+	boolean debug;
+	boolean onlySnp;
+	UseMissing useMissing;
+	int samples[]; // Samples to use (indexes in VCF file, in output order)
+	int countVcf, countTped; // Note: Entries throwing an exception are not counted in 'countVcf'
+	int skipMissing, skipNotSnp, skipNonBiAllelic;
+
+	public Vcf2Tped(Askat askat, int samples[]) {
+		debug = askat.isDebug();
+		onlySnp = askat.isOnlySnp();
+		useMissing = askat.getUseMissing();
+		this.samples = samples;
+	}
+
+	/**
+	 * Add counters from another converter
+	 */
+	public void add(Vcf2Tped v2t) {
+		countVcf += v2t.countVcf;
+		countTped += v2t.countTped;
+		skipMissing += v2t.skipMissing;
+		skipNotSnp += v2t.skipNotSnp;
+		skipNonBiAllelic += v2t.skipNonBiAllelic;
+	}
+
+	public int getCountTped() {
+		return countTped;
+	}
+
+	public int getCountVcf() {
+		return countVcf;
+	}
+
+	/**
+	 * Return REF anf ALT values as if they were a SNP
+	 */
+	String snpGenotype(VcfEntry ve, VcfGenotype gen, int genoNum) {
+		if (ve.isSnp()) {
+			if (genoNum < 0) return ve.getRef(); // Reference
+			return gen.getGenotype(genoNum);
+		}
+
+		// Create fake SNP "A -> T" and map InDel values to it
+		if (genoNum < 0) return "A"; // Reference
+		if (gen.getGenotype(genoNum).equals(ve.getRef())) return "A"; // ALT[genoNum] == REF 
+		return "T"; // ALT[genoNum] != REF
+	}
+
+	@Override
+	public String toString() {
+		return countVcf + " VCF entries converted to " + countTped + " TPED entries.\nSkipped entries:\n\tNon Biallelic: " + skipNonBiAllelic + "\n\tNon SNPs: " + skipNotSnp + "\n\tMissing genotypes: " + skipMissing;
+	}
+
+	/**
+	 * Convert a VCF entry to a TPED line (without a trailing new line)
+	 * @param ve : VCF entry
+	 * @param lineNum : Line number in VCF file (used to create a unique ID)
+	 * @return A TPED line or null if the entry is skipped
+	 */
+	public String tpedLine(VcfEntry ve, int lineNum) {
+		String line = convert(ve, lineNum);
+		countVcf++; // Only entries converted (or skipped) without exceptions are counted
+		return line;
+	}
+
+	String convert(VcfEntry ve, int lineNum) {
+		// Warning: More than one ALT is not currently supported
+		// Warning: Only SNPs are supported
+		if (ve.getAlts().length != 1) { // No bi-allelic? => We skip it
+			skipNonBiAllelic++;
+			if (debug) System.err.println("Skipping line " + lineNum + ": Not bi-allelic");
+			return null;
+		}
+
+		if (onlySnp && !ve.isSnp()) { // Not a SNP? skip it if 'onlySnp' is true
+			skipNotSnp++;
+			if (debug) System.err.println("Skipping line " + lineNum + ": Not a SNP");
+			return null;
+		}
+
+		boolean missingValues = false; // Any missing values in this line?
+
+		// Prepare TPED line
+		StringBuilder tpedLine = new StringBuilder();
+
+		int pos = ve.getStart() + 1;
+		String chr = ve.getChromosomeName();
+		String id = "id_" + lineNum; // Create a unique ID
+
+		tpedLine.append(chr + " "); // Chromosome
+		tpedLine.append(id + " "); // Identifier
+		tpedLine.append("0 "); // Genetic distance in Moragans
+		tpedLine.append(pos + " "); // Base pair position
+
+		// Add all genotypes (only samples in use)
+		List<VcfGenotype> genotypes = ve.getVcfGenotypes();
+		for (int idx : samples) {
+			VcfGenotype gen = genotypes.get(idx);
+			if (gen.getGenotypeCode() < 0) { // Missing genotype?
+				missingValues = true;
+				if (useMissing == UseMissing.REFERENCE) {
+					String ref = snpGenotype(ve, gen, -1);
+					tpedLine.append(ref + " " + ref + " "); // Mark both of them as reference
+				} else tpedLine.append("0 0 "); // Mark both as missing
+			} else {
+				String gen0 = snpGenotype(ve, gen, 0);
+				String gen1 = snpGenotype(ve, gen, 1);
+				if (gen.getGenotype().length == 2) tpedLine.append(gen0 + " " + gen1 + " ");
+				else {
+					if (useMissing == UseMissing.REFERENCE) {
+						String ref = ve.getRef();
+						tpedLine.append(ref + " " + ref + " "); // Mark both of them as reference
+					} else tpedLine.append("0 0 "); // Mark both as missing
+				}
+			}
+		}
+
+		// Remove last space
+		int lastChar = tpedLine.length() - 1;
+		if (tpedLine.charAt(lastChar) == ' ') tpedLine.deleteCharAt(lastChar);
+
+		// Skipped because of misisng values?
+		if ((useMissing == UseMissing.DO_NOT_USE) && missingValues) {
+			skipMissing++;
+			if (debug) System.err.println("Skipping line " + lineNum + ": Missing values");
+			return null;
+		}
+
+		countTped++;
+		return tpedLine.toString();
+	}
+
+}
@@ -0,0 +1,158 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.mcgill.mcb.pcingola.fileIterator.VcfFileIterator;
+import ca.mcgill.mcb.pcingola.util.Gpr;
+import ca.mcgill.mcb.pcingola.util.Timer;
+import ca.mcgill.mcb.pcingola.vcf.VcfEntry;
+
+/**
+ * Convert a VCF file to TPED lines using several threads.
+ * 
+ * VCF entries are read sequentially and grouped into batches. Batches are
+ * converted in parallel, and returned in the same order as in the VCF file.
+ * Each batch has its own counters, which are added once the batch is 
+ * returned, so the totals are the same as in a single threaded conversion.
+ * 
+ * Typical usage:
+ * 		Vcf2TpedParallel vcf2Tped = new Vcf2TpedParallel(askat, vcfFile);
+ * 		for (List<String> lines = vcf2Tped.next(); lines != null; lines = vcf2Tped.next()) {
+ * 			...
+ * 		}
+ * 		vcf2Tped.close();
+ * 
+ * @author pcingola
+ */
+public class Vcf2TpedParallel {
+
+	public static final int BATCH_SIZE = 1000; // Number of VCF entries per batch
+
+	/**
+	 * Convert a batch of VCF entries
+	 */
+	class Batch implements Callable<Batch> {
+		List<VcfEntry> entries = new ArrayList<VcfEntry>(BATCH_SIZE);
+		List<Integer> lineNums = new ArrayList<Integer>(BATCH_SIZE);
+		List<String> lines;
+		Vcf2Tped vcf2Tped;
+		String location; // Last entry's position (for progress messages)
+
+		void add(VcfEntry ve, int lineNum) {
+			entries.add(ve);
+			lineNums.add(lineNum);
+			location = ve.getChromosomeName() + ":" + (ve.getStart() + 1);
+		}
+
+		@Override
+		public Batch call() {
+			vcf2Tped = new Vcf2Tped(askat, samples);
+			lines = new ArrayList<String>(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				VcfEntry ve = entries.get(i);
+				try {
+					String line = vcf2Tped.tpedLine(ve, lineNums.get(i));
+					if (line != null) lines.add(line);
+				} catch (Exception e) {
+					Gpr.debug("Exception processing VCF entry : " + ve);
+					e.printStackTrace();
+				}
+			}
+			entries = null; // Free memory
+			return this;
+		}
+	}
+
+	Askat askat;
+	String vcfFile;
+	boolean verbose;
+	int maxBatches; // Maximum number of batches being converted at the same time
+	int samples[]; // Samples to use (indexes in VCF file)
+	VcfFileIterator vcf;
+	Iterator<VcfEntry> vcfIterator;
+	ExecutorService executor;
+	LinkedList<Future<Batch>> pending; // Batches, in the same order as the VCF file
+	Vcf2Tped vcf2Tped; // Totals
+
+	public Vcf2TpedParallel(Askat askat, String vcfFile) {
+		this.askat = askat;
+		this.vcfFile = vcfFile;
+		verbose = askat.isVerbose();
+		int numWorkers = Math.max(1, askat.getNumWorkers());
+		maxBatches = 2 * numWorkers;
+		executor = Executors.newFixedThreadPool(numWorkers);
+		pending = new LinkedList<Future<Batch>>();
+		vcf = new VcfFileIterator(vcfFile);
+		vcfIterator = vcf.iterator();
+
+		// Totals. Note: The VCF entries count starts at one (same as the single threaded conversion)
+		vcf2Tped = new Vcf2Tped(askat, null);
+		vcf2Tped.countVcf = 1;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		vcf.close();
+	}
+
+	/**
+	 * Totals (converted and skipped entries)
+	 */
+	public Vcf2Tped getVcf2Tped() {
+		return vcf2Tped;
+	}
+
+	/**
+	 * Next converted lines (without new line characters)
+	 * @return A list of TPED lines (can be empty) or null if there are no more VCF entries
+	 */
+	public List<String> next() {
+		// Keep workers busy
+		while ((pending.size() < maxBatches) && vcfIterator.hasNext())
+			pending.add(executor.submit(read()));
+
+		if (pending.isEmpty()) return null;
+
+		// Wait for the oldest batch
+		Batch batch;
+		try {
+			batch = pending.removeFirst().get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error converting VCF file '" + vcfFile + "'", e.getCause());
+		}
+
+		// Update totals
+		int countVcfPrev = vcf2Tped.getCountVcf();
+		vcf2Tped.add(batch.vcf2Tped);
+		if (verbose && (countVcfPrev / BATCH_SIZE != vcf2Tped.getCountVcf() / BATCH_SIZE)) Timer.showStdErr("\tVCF to TPED:\tLine " + vcf2Tped.getCountVcf() + "\t" + batch.location);
+
+		return batch.lines;
+	}
+
+	/**
+	 * Read next batch of VCF entries
+	 */
+	Batch read() {
+		Batch batch = new Batch();
+		while ((batch.entries.size() < BATCH_SIZE) && vcfIterator.hasNext()) {
+			VcfEntry ve = vcfIterator.next();
+
+			// Process header information
+			if (samples == null) samples = askat.vcfAndTfamSamples(vcf); // Consolidate TFAM and VCF samples
+
+			batch.add(ve, vcf.getLineNum());
+		}
+		return batch;
+	}
+
+}
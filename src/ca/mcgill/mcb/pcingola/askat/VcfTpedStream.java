@@ -0,0 +1,128 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Stream a VCF file as TPED lines.
+ * 
+ * A background thread converts VCF entries and puts the TPED lines into a
+ * bounded queue, so only a few lines are kept in memory at any time. The 
+ * TPED file can be (optionally) saved while streaming.
+ * 
+ * @author pcingola
+ */
+public class VcfTpedStream implements Runnable {
+
+	public static final int QUEUE_SIZE = 1024; // Maximum number of lines in the queue
+	static final byte[] END = new byte[0]; // End of stream marker
+
+	Askat askat;
+	String vcfFile;
+	String tpedFile; // Save TPED file (null if not required)
+	boolean verbose;
+	BlockingQueue<byte[]> queue;
+	Thread thread;
+	Vcf2TpedParallel vcf2Tped;
+	volatile boolean cancelled; // Consumer is no longer reading
+	volatile Throwable error; // Error in conversion thread
+	boolean done; // End of stream reached
+
+	public VcfTpedStream(Askat askat, String vcfFile, String tpedFile) {
+		this.askat = askat;
+		this.vcfFile = vcfFile;
+		this.tpedFile = tpedFile;
+		verbose = askat.isVerbose();
+		queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+	}
+
+	/**
+	 * Stop conversion (e.g. consumer is not reading any more lines)
+	 */
+	public void close() {
+		if (done) return;
+		cancelled = true;
+		done = true;
+		if (thread != null) thread.interrupt();
+	}
+
+	public String getVcfFile() {
+		return vcfFile;
+	}
+
+	@Override
+	public void run() {
+		TpedWriter tped = null;
+		String tpedTmpFile = tpedFile + ".tmp"; // Write to a temporary file, so that an incomplete file is never used as input
+		try {
+			vcf2Tped = new Vcf2TpedParallel(askat, vcfFile);
+			if (tpedFile != null) tped = new TpedWriter(tpedTmpFile);
+
+			for (List<String> lines = vcf2Tped.next(); (lines != null) && !cancelled; lines = vcf2Tped.next()) {
+				for (String line : lines) {
+					byte bytes[] = line.getBytes();
+					if (tped != null) tped.write(ByteBuffer.wrap(bytes), 0, bytes.length);
+					queue.put(bytes);
+				}
+			}
+
+			if (tped != null) {
+				tped.close();
+				tped = null;
+				if (!cancelled) (new File(tpedTmpFile)).renameTo(new File(tpedFile));
+			}
+		} catch (InterruptedException e) {
+			// Cancelled: Nothing to do
+		} catch (Throwable t) {
+			error = t;
+		} finally {
+			if (vcf2Tped != null) vcf2Tped.close();
+			if (tped != null) tped.close();
+
+			// Signal end of stream
+			try {
+				if (!cancelled) queue.put(END);
+			} catch (InterruptedException e) {
+				// Cancelled: Nothing to do
+			}
+		}
+	}
+
+	/**
+	 * Start conversion thread
+	 */
+	public void start() {
+		if (verbose) Timer.showStdErr("Streaming file '" + vcfFile + "' as TPED" + (tpedFile != null ? ", saving TPED file '" + tpedFile + "'" : ""));
+		thread = new Thread(this, "VcfTpedStream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Next TPED line (blocks until a line is available)
+	 * @return A TPED line (without new line) or null if there are no more lines
+	 */
+	public byte[] take() {
+		if (done) return null;
+
+		byte line[];
+		try {
+			line = queue.take();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (line != END) return line;
+
+		// End of stream
+		done = true;
+		if (error != null) throw new RuntimeException("Error converting VCF file '" + vcfFile + "'", error);
+		if (verbose) Timer.showStdErr("Done: " + vcf2Tped.getVcf2Tped());
+		return null;
+	}
+
+}
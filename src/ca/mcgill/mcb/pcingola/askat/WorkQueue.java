@@ -0,0 +1,354 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ca.mcgill.mcb.pcingola.util.Gpr;
+
+/**
+ * A queue of jobs shared by several processes (possibly on different
+ * nodes) through a shared filesystem (e.g. an NFS scratch volume).
+ * There is no server: All state is kept in the queue directory.
+ *
+ * Queue directory layout:
+ * 		manifest.txt				All jobs, one line per job: 'id	job' (see Job)
+ * 		todo/ID						Jobs waiting to be claimed (file contains the job)
+ * 		claimed/ID.WORKER			Jobs being processed by a worker
+ * 		heartbeat/ID.WORKER			Heartbeat counter for a claimed job (increased by the worker periodically)
+ * 		done/ID						Finished jobs
+ * 		failed/ID					Failed jobs (file contains the error)
+ * 		results/ID.tsv.gz			Results from a job (see ResultSink)
+ * 		closed						No more jobs will be added
+ * 		finished					Coordinator finished, workers can exit
+ *
+ * Every state change is a file rename, which is atomic (also on NFS): Only
+ * one worker succeeds renaming 'todo/ID' to 'claimed/ID.WORKER'. New files
+ * are written to a temporary directory first, so a file is either missing
+ * or complete.
+ *
+ * Heartbeats are checked using the coordinator's clock (a claim is stale
+ * if its heartbeat counter did not change for a while), so clocks on
+ * different nodes do not need to be synchronized. The counter is the
+ * file's content (not its modification time), since NFS attribute caching
+ * can hide modification time updates from other nodes.
+ *
+ * @author pcingola
+ */
+public class WorkQueue {
+
+	public static final String MANIFEST = "manifest.txt";
+	public static final String CLOSED = "closed";
+	public static final String FINISHED = "finished";
+	public static final String RESULTS_EXT = ".tsv.gz";
+
+	// Job types
+	public static final String JOB_BLOCK = "block"; // Kinship and ASKAT for a whole block
+	public static final String JOB_KINSHIP = "kinship"; // Kinship (and null model) for a block
+	public static final String JOB_BATCH = "batch"; // ASKAT for a part of the intervals in a block (kinship is calculated by another job)
+
+	/**
+	 * A job: One line, tab separated
+	 * 		type	blockFile	dependsOn	chr	part	numParts
+	 *
+	 * Batch jobs test part 'part' (of 'numParts') of the intervals in
+	 * chromosome 'chr' ('-' means all intervals)
+	 */
+	public static class Job {
+		public String id;
+		public String type;
+		public String blockFile;
+		public String dependsOn; // This job can only start after job 'dependsOn' is done (null if none)
+		public String chr; // Only for batch jobs (null means all chromosomes)
+		public int part, numParts; // Only for batch jobs
+		File claimedFile; // Set when the job is claimed
+		long heartbeat; // Heartbeat counter
+
+		public Job(String type, String blockFile) {
+			this.type = type;
+			this.blockFile = blockFile;
+		}
+
+		static String str(String s) {
+			return s != null ? s : "-";
+		}
+
+		static String val(String s) {
+			return s.equals("-") ? null : s;
+		}
+
+		/**
+		 * Parse a line created by 'toString()'
+		 */
+		public static Job parse(String id, String line) {
+			String fields[] = line.trim().split("\t");
+			if (fields.length < 6) throw new RuntimeException("Cannot parse job '" + id + "': '" + line + "'");
+
+			Job job = new Job(fields[0], fields[1]);
+			job.id = id;
+			job.dependsOn = val(fields[2]);
+			job.chr = val(fields[3]);
+			job.part = Gpr.parseIntSafe(fields[4]);
+			job.numParts = Gpr.parseIntSafe(fields[5]);
+			return job;
+		}
+
+		@Override
+		public String toString() {
+			return type + "\t" + blockFile + "\t" + str(dependsOn) + "\t" + str(chr) + "\t" + part + "\t" + numParts;
+		}
+	}
+
+	File dir, todoDir, claimedDir, heartbeatDir, doneDir, failedDir, resultsDir, tmpDir;
+	int nextId = 1;
+	HashMap<String, long[]> heartbeats; // Last heartbeat counter seen for each claimed file and (local) time when it was seen
+
+	public WorkQueue(String dirName) {
+		dir = new File(dirName);
+		todoDir = new File(dir, "todo");
+		claimedDir = new File(dir, "claimed");
+		heartbeatDir = new File(dir, "heartbeat");
+		doneDir = new File(dir, "done");
+		failedDir = new File(dir, "failed");
+		resultsDir = new File(dir, "results");
+		tmpDir = new File(dir, "tmp");
+		heartbeats = new HashMap<String, long[]>();
+	}
+
+	/**
+	 * Add a job to the queue (the job's ID is set)
+	 */
+	public synchronized Job add(Job job) {
+		job.id = String.format("%06d", nextId++);
+		write(new File(todoDir, job.id), job.toString());
+
+		// Append to manifest
+		try {
+			FileOutputStream out = new FileOutputStream(new File(dir, MANIFEST), true);
+			out.write((job.id + "\t" + job + "\n").getBytes());
+			out.getFD().sync();
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing manifest in queue directory '" + dir + "'", e);
+		}
+		return job;
+	}
+
+	/**
+	 * Claim a job
+	 * @param worker : Worker name (must not contain '/')
+	 * @return A job or null if no job is available
+	 */
+	public Job claim(String worker) {
+		for (String id : list(todoDir)) {
+			File todoFile = new File(todoDir, id);
+			String line = read(todoFile);
+			if (line == null) continue; // Claimed by another worker
+
+			Job job = Job.parse(id, line);
+			if ((job.dependsOn != null) && !isDone(job.dependsOn)) continue; // Dependency not finished
+
+			File claimedFile = new File(claimedDir, id + "." + worker);
+			if (todoFile.renameTo(claimedFile)) {
+				job.claimedFile = claimedFile;
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Mark queue as closed: No more jobs will be added
+	 */
+	public void close() {
+		write(new File(dir, CLOSED), "");
+	}
+
+	/**
+	 * Create the queue directory
+	 */
+	public void create() {
+		if (new File(dir, MANIFEST).exists()) throw new RuntimeException("Queue directory '" + dir + "' is already in use (found '" + MANIFEST + "'). Remove it first.");
+		for (File d : new File[] { dir, todoDir, claimedDir, heartbeatDir, doneDir, failedDir, resultsDir, tmpDir })
+			if (!d.isDirectory() && !d.mkdirs()) throw new RuntimeException("Cannot create queue directory '" + d + "'");
+	}
+
+	/**
+	 * A claimed job is finished
+	 * @param resultsFile : Results file to move into the queue (null if none)
+	 * @return False if the job is no longer claimed by this worker (e.g. it was re-queued)
+	 */
+	public boolean done(Job job, String resultsFile) {
+		if ((resultsFile != null) && !new File(resultsFile).renameTo(results(job.id))) throw new RuntimeException("Cannot move results file '" + resultsFile + "' to queue directory '" + dir + "'");
+		heartbeatFile(job.claimedFile.getName()).delete();
+		return job.claimedFile.renameTo(new File(doneDir, job.id));
+	}
+
+	/**
+	 * IDs of finished jobs
+	 */
+	public List<String> done() {
+		return list(doneDir);
+	}
+
+	/**
+	 * A claimed job failed
+	 */
+	public void failed(Job job, String error) {
+		write(new File(failedDir, job.id), error);
+		heartbeatFile(job.claimedFile.getName()).delete();
+		job.claimedFile.delete();
+	}
+
+	/**
+	 * IDs of failed jobs
+	 */
+	public List<String> failed() {
+		return list(failedDir);
+	}
+
+	/**
+	 * Error message from a failed job
+	 */
+	public String failedError(String id) {
+		return read(new File(failedDir, id));
+	}
+
+	/**
+	 * Coordinator finished: Workers should exit
+	 */
+	public void finish() {
+		write(new File(dir, FINISHED), "");
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Increase a claimed job's heartbeat counter, so it is not considered stale
+	 */
+	public void heartbeat(Job job) {
+		write(heartbeatFile(job.claimedFile.getName()), "" + (++job.heartbeat));
+	}
+
+	/**
+	 * Heartbeat file for a claimed job
+	 */
+	File heartbeatFile(String claimedName) {
+		return new File(heartbeatDir, claimedName);
+	}
+
+	/**
+	 * Has the queue been created?
+	 */
+	public boolean exists() {
+		return new File(dir, MANIFEST).exists();
+	}
+
+	public boolean isClosed() {
+		return new File(dir, CLOSED).exists();
+	}
+
+	public boolean isDone(String id) {
+		return new File(doneDir, id).exists();
+	}
+
+	public boolean isFinished() {
+		return new File(dir, FINISHED).exists();
+	}
+
+	/**
+	 * List files in a directory (sorted)
+	 */
+	List<String> list(File d) {
+		String names[] = d.list();
+		if (names == null) return new ArrayList<String>();
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+
+	/**
+	 * Read a (small) file. Returns null if the file does not exist
+	 */
+	String read(File file) {
+		if (!file.exists()) return null;
+		try {
+			return Gpr.readFile(file.getPath());
+		} catch (RuntimeException e) {
+			if (!file.exists()) return null; // Renamed while reading
+			throw e;
+		}
+	}
+
+	/**
+	 * Put a job back in the queue (e.g. after a failure)
+	 */
+	public void requeue(Job job) {
+		new File(failedDir, job.id).delete();
+		write(new File(todoDir, job.id), job.toString());
+	}
+
+	/**
+	 * Put stale jobs back in the queue: Jobs whose heartbeat did not change in 'timeout' milliseconds
+	 * @return IDs of re-queued jobs
+	 */
+	public List<String> requeueStale(long timeout) {
+		List<String> requeued = new ArrayList<String>();
+		long now = System.currentTimeMillis();
+		HashMap<String, long[]> seen = new HashMap<String, long[]>();
+		for (String name : list(claimedDir)) {
+			String content = read(heartbeatFile(name));
+			long counter = (content != null ? Gpr.parseLongSafe(content.trim()) : -1); // No heartbeat yet: -1
+
+			long hb[] = heartbeats.get(name);
+			if ((hb == null) || (hb[0] != counter)) hb = new long[] { counter, now }; // New claim or heartbeat
+			else if (now - hb[1] > timeout) {
+				String id = name.substring(0, name.indexOf('.'));
+				if (new File(claimedDir, name).renameTo(new File(todoDir, id))) {
+					heartbeatFile(name).delete();
+					requeued.add(id);
+				}
+				continue;
+			}
+			seen.put(name, hb);
+		}
+		heartbeats = seen;
+		return requeued;
+	}
+
+	/**
+	 * Results file for a job
+	 */
+	public File results(String id) {
+		return new File(resultsDir, id + RESULTS_EXT);
+	}
+
+	/**
+	 * Temporary file name (in the queue directory, so it can be renamed into the queue)
+	 */
+	public String tmpFile(String name) {
+		return new File(tmpDir, name).getPath();
+	}
+
+	/**
+	 * Write a file: Write to a temporary file and rename
+	 */
+	void write(File file, String content) {
+		File tmp = new File(tmpDir, file.getName() + "." + System.nanoTime() + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			out.write(content.getBytes());
+			out.getFD().sync();
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing file '" + tmp + "'", e);
+		}
+		if (!tmp.renameTo(file)) throw new RuntimeException("Cannot rename file '" + tmp + "' to '" + file + "'");
+	}
+
+}
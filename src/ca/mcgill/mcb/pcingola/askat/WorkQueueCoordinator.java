@@ -0,0 +1,175 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import ca.mcgill.mcb.pcingola.interval.SeqChange;
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Coordinator for multi-node runs: Instead of processing blocks locally
+ * (see BlockPipeline), blocks are added as jobs to a WorkQueue. Any number
+ * of worker processes (see WorkQueueWorker) claim and process the jobs,
+ * and the coordinator merges their results.
+ *
+ * Jobs:
+ * 		- Without intervals: One job per block (kinship, then ASKAT)
+ * 		- Using intervals: One kinship job per block, then the block's
+ * 		  intervals are split into batch jobs of INTERVALS_PER_JOB intervals,
+ * 		  which can start as soon as the kinship job is done
+ *
+ * Jobs from dead workers (no heartbeat) are put back in the queue, failed
+ * jobs are retried up to MAX_ATTEMPTS times.
+ *
+ * @author pcingola
+ */
+public class WorkQueueCoordinator {
+
+	public static final int INTERVALS_PER_JOB = 500; // Batch jobs: Number of intervals in each job
+	public static final int MAX_ATTEMPTS = 3; // Failed jobs are retried
+	public static final int HEARTBEAT_TIMEOUT_FACTOR = 6; // A job is stale after missing this many heartbeats
+	public static final int MIN_HEARTBEAT_TIMEOUT = 300; // Minimum heartbeat timeout (seconds). Well above NFS attribute caching (acregmax / acdirmax, 60 seconds by default)
+	public static final long POLL_INTERVAL = 1000; // Check for finished jobs (milliseconds)
+
+	Askat askat;
+	WorkQueue queue;
+	HashMap<String, WorkQueue.Job> jobs; // All jobs, by ID
+	HashMap<String, Integer> attempts; // Number of failed attempts for each job
+	HashSet<String> merged; // Jobs finished and merged
+	long timeout; // Heartbeat timeout (milliseconds)
+
+	public WorkQueueCoordinator(Askat askat, String queueDir) {
+		this.askat = askat;
+		queue = new WorkQueue(queueDir);
+		queue.create();
+		jobs = new HashMap<String, WorkQueue.Job>();
+		attempts = new HashMap<String, Integer>();
+		merged = new HashSet<String>();
+		timeout = Math.max(HEARTBEAT_TIMEOUT_FACTOR * askat.getHeartbeat(), MIN_HEARTBEAT_TIMEOUT) * 1000L;
+		if (askat.isVerbose()) Timer.showStdErr("Coordinator: Queue directory '" + queueDir + "'");
+	}
+
+	/**
+	 * Add jobs for a block
+	 * @param chr : Block's chromosome (null if the block has several chromosomes)
+	 */
+	public void add(String blockFile, String chr) {
+		List<SeqChange> intervals = askat.getIntervals();
+		if (intervals == null) add(new WorkQueue.Job(WorkQueue.JOB_BLOCK, blockFile));
+		else {
+			WorkQueue.Job kinship = add(new WorkQueue.Job(WorkQueue.JOB_KINSHIP, blockFile));
+
+			int numParts = Math.max(1, (intervals(intervals, chr) + INTERVALS_PER_JOB - 1) / INTERVALS_PER_JOB);
+			for (int part = 0; part < numParts; part++) {
+				WorkQueue.Job batch = new WorkQueue.Job(WorkQueue.JOB_BATCH, blockFile);
+				batch.dependsOn = kinship.id;
+				batch.chr = chr;
+				batch.part = part;
+				batch.numParts = numParts;
+				add(batch);
+			}
+		}
+
+		poll();
+	}
+
+	WorkQueue.Job add(WorkQueue.Job job) {
+		queue.add(job);
+		jobs.put(job.id, job);
+		if (askat.isVerbose()) Timer.showStdErr("Coordinator: Added job " + job.id + "\t" + job);
+		return job;
+	}
+
+	/**
+	 * Number of intervals in a chromosome (null means all chromosomes)
+	 */
+	public static int intervals(List<SeqChange> intervals, String chr) {
+		if (chr == null) return intervals.size();
+		int count = 0;
+		for (SeqChange sc : intervals)
+			if (sc.getChromosomeName().equals(chr)) count++;
+		return count;
+	}
+
+	/**
+	 * Add results from a finished job
+	 */
+	void merge(String id) {
+		File resultsFile = queue.results(id);
+		int count = 0;
+		if (resultsFile.exists()) { // Kinship jobs have no results
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(resultsFile))));
+				reader.readLine(); // Skip header
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					if (line.isEmpty()) continue;
+					askat.getResultSink().add(AskatResult.parseTsv(line));
+					count++;
+				}
+				reader.close();
+			} catch (IOException e) {
+				throw new RuntimeException("Error reading results file '" + resultsFile + "'", e);
+			}
+		}
+
+		merged.add(id);
+		askat.getMetrics().count("queue_jobs_done");
+		if (askat.isVerbose()) Timer.showStdErr("Coordinator: Job " + id + " finished, " + count + " results. Finished " + merged.size() + " / " + jobs.size() + " jobs");
+	}
+
+	/**
+	 * Check the queue: Merge finished jobs, retry failed jobs and re-queue stale jobs
+	 */
+	void poll() {
+		for (String id : queue.done())
+			if (!merged.contains(id)) merge(id);
+
+		for (String id : queue.failed()) {
+			String error = queue.failedError(id);
+			if (error == null) continue; // Already re-queued
+
+			int count = (attempts.containsKey(id) ? attempts.get(id) : 0) + 1;
+			attempts.put(id, count);
+			if (count >= MAX_ATTEMPTS) {
+				queue.finish(); // Workers exit
+				throw new RuntimeException("Job " + id + " failed " + count + " times (" + jobs.get(id) + "). Last error:\n" + error);
+			}
+
+			Timer.showStdErr("Coordinator: Job " + id + " failed (attempt " + count + "), retrying. Error:\n" + error);
+			askat.getMetrics().count("queue_jobs_failed");
+			queue.requeue(jobs.get(id));
+		}
+
+		for (String id : queue.requeueStale(timeout)) {
+			Timer.showStdErr("Coordinator: Job " + id + " has no heartbeat (worker died?), re-queued");
+			askat.getMetrics().count("queue_jobs_stale");
+		}
+	}
+
+	/**
+	 * No more jobs: Wait for all jobs to finish
+	 */
+	public void run() {
+		queue.close();
+		if (askat.isVerbose()) Timer.showStdErr("Coordinator: All " + jobs.size() + " jobs added. Waiting for workers to finish");
+
+		try {
+			for (poll(); merged.size() < jobs.size(); poll())
+				Thread.sleep(POLL_INTERVAL);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			queue.finish(); // Workers exit (also on errors)
+		}
+
+		if (askat.isVerbose()) Timer.showStdErr("Coordinator: Finished " + jobs.size() + " jobs.");
+	}
+
+}
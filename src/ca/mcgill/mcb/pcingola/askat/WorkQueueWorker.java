@@ -0,0 +1,179 @@
+package ca.mcgill.mcb.pcingola.askat;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ca.mcgill.mcb.pcingola.interval.SeqChange;
+import ca.mcgill.mcb.pcingola.util.Timer;
+
+/**
+ * Worker for multi-node runs: Claim jobs from a WorkQueue (see
+ * WorkQueueCoordinator) and process them, until the coordinator finishes.
+ *
+ * Workers must use the same command line as the coordinator (except for
+ * '-coordinator' / '-worker'), and run on the same directory (shared
+ * filesystem), since jobs refer to block files by name.
+ *
+ * Each job's results are saved to a file in the queue directory, the
+ * coordinator merges them. While a job is running, a heartbeat is sent
+ * every 'heartbeat' seconds.
+ *
+ * Scratch files (batch files, GenABEL files, etc.) are named after the
+ * claim, so if a job is re-queued while still running (e.g. heartbeats
+ * were delayed) the duplicate run does not overwrite or delete them.
+ *
+ * @author pcingola
+ */
+public class WorkQueueWorker {
+
+	public static final long POLL_INTERVAL = 1000; // Check for new jobs (milliseconds)
+
+	Askat askat;
+	WorkQueue queue;
+	String name;
+	ScheduledExecutorService heartbeatExecutor;
+	int count;
+
+	/**
+	 * Worker name: Process ID and host name (e.g. '1234@node01')
+	 */
+	public static String workerName() {
+		return ManagementFactory.getRuntimeMXBean().getName().replace('/', '_');
+	}
+
+	public WorkQueueWorker(Askat askat, String queueDir) {
+		this.askat = askat;
+		queue = new WorkQueue(queueDir);
+		name = workerName();
+	}
+
+	/**
+	 * Intervals for a batch job: Part 'job.part' (out of 'job.numParts') of the intervals in the job's chromosome
+	 */
+	List<SeqChange> intervals(WorkQueue.Job job) {
+		List<SeqChange> intervals = new ArrayList<SeqChange>();
+		for (SeqChange sc : askat.getIntervals())
+			if ((job.chr == null) || sc.getChromosomeName().equals(job.chr)) intervals.add(sc);
+
+		int start = (int) (((long) job.part) * intervals.size() / job.numParts);
+		int end = (int) (((long) job.part + 1) * intervals.size() / job.numParts);
+		return new ArrayList<SeqChange>(intervals.subList(start, end));
+	}
+
+	/**
+	 * Wait until the coordinator creates the queue
+	 */
+	public void waitQueue() {
+		if (askat.isVerbose() && !queue.exists()) Timer.showStdErr("Worker '" + name + "': Waiting for coordinator to create queue '" + queue.getDir() + "'");
+		try {
+			while (!queue.exists())
+				Thread.sleep(POLL_INTERVAL);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Process jobs until the coordinator finishes
+	 */
+	public void run() {
+		if (askat.isVerbose()) Timer.showStdErr("Worker '" + name + "': Queue directory '" + queue.getDir() + "'");
+
+		heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			while (!queue.isFinished()) {
+				WorkQueue.Job job = queue.claim(name);
+				if (job != null) run(job);
+				else Thread.sleep(POLL_INTERVAL);
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			heartbeatExecutor.shutdownNow();
+		}
+
+		if (askat.isVerbose()) Timer.showStdErr("Worker '" + name + "': Coordinator finished. Processed " + count + " jobs.");
+	}
+
+	/**
+	 * Process one job
+	 */
+	void run(final WorkQueue.Job job) {
+		if (askat.isVerbose()) Timer.showStdErr("Worker '" + name + "': Starting job " + job.id + "\t" + job);
+		long start = System.nanoTime();
+
+		ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				queue.heartbeat(job);
+			}
+		}, 0, askat.getHeartbeat(), TimeUnit.SECONDS);
+
+		try {
+			// Scratch files are named after this claim
+			final String scratchTag = ".job" + job.id + "_" + name.replaceAll("[^a-zA-Z0-9\\-]", "_");
+
+			// Results from this job are saved to their own file (block names without the scratch tag)
+			String resultsFile = null;
+			if (!job.type.equals(WorkQueue.JOB_KINSHIP)) {
+				resultsFile = queue.tmpFile(job.id + "." + name + WorkQueue.RESULTS_EXT);
+				askat.setResultSink(new ResultSink(resultsFile, 0) {
+
+					@Override
+					public synchronized void add(AskatResult result) {
+						if (result.block != null) result.block = result.block.replace(scratchTag, "");
+						super.add(result);
+					}
+				});
+			}
+
+			KinshipBlock block = new KinshipBlock(askat, job.blockFile);
+			block.setScratchTag(scratchTag);
+			if (job.type.equals(WorkQueue.JOB_BLOCK)) {
+				block.kinship();
+				block.askat();
+			} else if (job.type.equals(WorkQueue.JOB_KINSHIP)) {
+				block.kinship();
+			} else if (job.type.equals(WorkQueue.JOB_BATCH)) {
+				block.setIntervals(intervals(job));
+				block.askat();
+			} else throw new RuntimeException("Unknown job type '" + job.type + "'");
+
+			if (resultsFile != null) askat.getResultSink().close();
+			heartbeat.cancel(false);
+			if (!queue.done(job, resultsFile)) Timer.showStdErr("Worker '" + name + "': Job " + job.id + " was re-queued by the coordinator (heartbeat timeout), another worker will process it");
+			count++;
+			askat.getMetrics().count("queue_jobs_done");
+		} catch (Throwable t) {
+			heartbeat.cancel(false);
+			Timer.showStdErr("Worker '" + name + "': Job " + job.id + " failed: " + t);
+			StringWriter sw = new StringWriter();
+			t.printStackTrace(new PrintWriter(sw));
+			queue.failed(job, "Worker '" + name + "':\n" + sw);
+			askat.getMetrics().count("queue_jobs_failed");
+		} finally {
+			askat.getMetrics().time("queue_job", start);
+		}
+
+		if (askat.isVerbose()) Timer.showStdErr("Worker '" + name + "': Finished job " + job.id);
+	}
+
+}